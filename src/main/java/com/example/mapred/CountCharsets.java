@@ -5,20 +5,30 @@ import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapred.*;
-import org.apache.hadoop.mapred.lib.LongSumReducer;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.archive.io.hdfs.HDFSWriterDocument;
+import org.archive.io.hdfs.HDFSWriterInputFormat;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 /**
  * This Map/Reduce application generates counts for each unique
  * character encoding (charset) encountered in a Heritrix crawl.
  *
+ * Only the fields and response headers of each record are read (see
+ * {@link HDFSWriterInputFormat#setProjection}).  Optional arguments after
+ * the paths limit the records counted:
+ *
+ * <pre>
+ *   CountCharsets &lt;input&gt; &lt;output&gt; [-status 200,3xx] [-mime text/,application/xhtml]
+ * </pre>
+ *
  * @author Doug Judd
  */
 public class CountCharsets extends Configured implements Tool {
@@ -27,44 +37,63 @@ public class CountCharsets extends Configured implements Tool {
     * If character encoding can be determined, emits it as
     * (<b>charset</b>, <b>1</b>).
     */
-    public static class MapClass extends MapReduceBase implements Mapper<Text, Text, Text, LongWritable> {
+    public static class MapClass extends Mapper<Text, HDFSWriterDocument, Text, LongWritable> {
 
         private final static LongWritable one = new LongWritable(1);
 
-        public void map(Text uri, Text docText, OutputCollector<Text, LongWritable> collector, Reporter reporter) throws IOException {
+        private final Text charset = new Text();
+
+        @Override
+        public void map(Text uri, HDFSWriterDocument hdfsDoc, Context context) throws IOException, InterruptedException {
 
-            HDFSWriterDocument hdfsDoc = new HDFSWriterDocument();
-            hdfsDoc.readFields(new DataInputStream(new ByteArrayInputStream(docText.getBytes())));
-            
             if (hdfsDoc.getCharset() != null) {
-                collector.collect(new Text(hdfsDoc.getCharset()), one);
+                charset.set(hdfsDoc.getCharset());
+                context.write(charset, one);
             }
         }
     }
 
-    public int run(String[] args) throws Exception {
-        JobConf jobConf = new JobConf(getConf(), CountCharsets.class);
-        jobConf.setJobName("Count Charsets");
-
-        FileInputFormat.setInputPaths(jobConf, new Path(args[0]));
-	    FileOutputFormat.setOutputPath(jobConf, new Path(args[1]));
+    static int printUsage() {
+        System.out.println("CountCharsets <input> <output> [-status 200,3xx] [-mime text/,application/xhtml]");
+        return -1;
+    }
 
-        jobConf.setInputFormat(SequenceFileInputFormat.class);
+    public int run(String[] args) throws Exception {
+        if (args.length < 2)
+            return printUsage();
+
+        Job job = Job.getInstance(getConf(), "Count Charsets");
+        job.setJarByClass(CountCharsets.class);
+
+        FileInputFormat.setInputPaths(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+        job.setInputFormatClass(HDFSWriterInputFormat.class);
+        HDFSWriterInputFormat.setProjection(job, true);
+
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length)
+                return printUsage();
+            if (args[i].equals("-status"))
+                HDFSWriterInputFormat.setStatusCodes(job, args[i+1].split(","));
+            else if (args[i].equals("-mime"))
+                HDFSWriterInputFormat.setMimeTypePrefixes(job, args[i+1].split(","));
+            else
+                return printUsage();
+        }
 
         // the output keys are words (strings)
-        jobConf.setOutputKeyClass(Text.class);
+        job.setOutputKeyClass(Text.class);
         // the output values are counts (ints)
-        jobConf.setOutputValueClass(LongWritable.class);
+        job.setOutputValueClass(LongWritable.class);
 
-        jobConf.setMapperClass(MapClass.class);
-        jobConf.setCombinerClass(LongSumReducer.class);
-        jobConf.setReducerClass(LongSumReducer.class);
+        job.setMapperClass(MapClass.class);
+        job.setCombinerClass(LongSumReducer.class);
+        job.setReducerClass(LongSumReducer.class);
 
-        jobConf.setNumReduceTasks(1);
+        job.setNumReduceTasks(1);
 
-        RunningJob job = JobClient.runJob(jobConf);
-        job.waitForCompletion();
-        return 0;
+        return job.waitForCompletion(true) ? 0 : 1;
     }
 
     /**
@@ -0,0 +1,245 @@
+package com.example.mapred;
+
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.archive.io.hdfs.HDFSParameters;
+import org.archive.io.hdfs.HDFSWriterDocument;
+import org.archive.io.hdfs.HDFSWriterInputFormat;
+import org.archive.io.hdfs.util.ByteSeq;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * This Map/Reduce application computes several statistics of a Heritrix
+ * crawl in one pass: counts per charset, MIME type, status code, host and
+ * URL scheme, and a histogram of record sizes.
+ *
+ * Each output line is a statistic, a value and its count, for example
+ * <code>mime&nbsp;text/html&nbsp;1234</code>.  Sizes are bucketed by powers
+ * of two, the value being the lower bound of the bucket.
+ *
+ * The mapper counts in memory, in primitive-valued hash maps, and only
+ * writes its counts when the maps reach an estimated size of
+ * <code>crawlstats.flush.bytes</code> (16 MB by default) and at the end of
+ * the task.  Most tasks therefore emit one pair per distinct value rather
+ * than one per record.  Records are read with projection, so response
+ * bodies are skipped.
+ *
+ * <pre>
+ *   CrawlStats &lt;input&gt; &lt;output&gt; [-status 200,3xx] [-mime text/,application/xhtml]
+ * </pre>
+ */
+public class CrawlStats extends Configured implements Tool {
+
+    public static final String FLUSH_BYTES = "crawlstats.flush.bytes";
+
+    public static final String CHARSET = "charset";
+    public static final String MIME = "mime";
+    public static final String STATUS = "status";
+    public static final String HOST = "host";
+    public static final String SCHEME = "scheme";
+    public static final String SIZE = "size";
+
+    /**
+     * Counts the statistics of the records of a task.
+     */
+    public static class MapClass extends Mapper<Text, HDFSWriterDocument, Text, LongWritable> {
+
+        /** Rough cost of a map entry besides its key, for the flush policy */
+        private static final int ENTRY_BYTES = 48;
+
+        private final Object2LongOpenHashMap<String> charsets = new Object2LongOpenHashMap<String>();
+        private final Object2LongOpenHashMap<String> mimeTypes = new Object2LongOpenHashMap<String>();
+        private final Object2LongOpenHashMap<String> hosts = new Object2LongOpenHashMap<String>();
+        private final Object2LongOpenHashMap<String> schemes = new Object2LongOpenHashMap<String>();
+        private final Int2LongOpenHashMap statusCodes = new Int2LongOpenHashMap();
+        private final long [] sizes = new long [33];
+
+        private final ByteSeq url = new ByteSeq();
+        private final Text outKey = new Text();
+        private final LongWritable outValue = new LongWritable();
+
+        private long flushBytes;
+        private long estimatedBytes = 0;
+
+        @Override
+        protected void setup(Context context) {
+            flushBytes = context.getConfiguration().getLong(FLUSH_BYTES, 16L*1024*1024);
+        }
+
+        @Override
+        public void map(Text uri, HDFSWriterDocument hdfsDoc, Context context) throws IOException, InterruptedException {
+
+            count(charsets, hdfsDoc.getCharset());
+            count(mimeTypes, hdfsDoc.getContentType());
+
+            int code = hdfsDoc.getResponseCode();
+            long n = statusCodes.get(code);
+            if (n == 0)
+                estimatedBytes += ENTRY_BYTES;
+            statusCodes.put(code, n + 1);
+
+            int length = hdfsDoc.getDocumentLength();
+            sizes[(length == 0) ? 0 : 32 - Integer.numberOfLeadingZeros(length)]++;
+
+            if (hdfsDoc.getFieldBytes(HDFSParameters.NAMED_FIELD_URL, url))
+                countURL(url.buf, url.offset, url.end);
+
+            if (estimatedBytes >= flushBytes)
+                flush(context);
+        }
+
+        /**
+         * Counts the scheme and the lower cased host of a URL.
+         */
+        private void countURL(byte [] buf, int offset, int end) {
+            int colon = offset;
+            while (colon < end && buf[colon] != ':' && buf[colon] != '/')
+                colon++;
+            if (colon == end || buf[colon] != ':')
+                return;
+            count(schemes, new String(buf, offset, colon - offset).toLowerCase());
+
+            int host = colon + 1;
+            if (host + 1 < end && buf[host] == '/' && buf[host+1] == '/')
+                host += 2;
+            else
+                return;
+
+            // skip user info
+            int p = host;
+            while (p < end && buf[p] != '/' && buf[p] != '?' && buf[p] != '#') {
+                if (buf[p] == '@')
+                    host = p + 1;
+                p++;
+            }
+            // the port follows the closing bracket of an IPv6 address
+            int hostEnd = host;
+            if (hostEnd < p && buf[hostEnd] == '[') {
+                while (hostEnd < p && buf[hostEnd] != ']')
+                    hostEnd++;
+            }
+            while (hostEnd < p && buf[hostEnd] != ':')
+                hostEnd++;
+            if (hostEnd > host)
+                count(hosts, new String(buf, host, hostEnd - host).toLowerCase());
+        }
+
+        private void count(Object2LongOpenHashMap<String> counts, String value) {
+            if (value == null)
+                return;
+            long n = counts.getLong(value);
+            if (n == 0)
+                estimatedBytes += ENTRY_BYTES + 2 * value.length();
+            counts.put(value, n + 1);
+        }
+
+        /**
+         * Writes the counts accumulated so far and clears them.
+         */
+        private void flush(Context context) throws IOException, InterruptedException {
+            write(context, CHARSET, charsets);
+            write(context, MIME, mimeTypes);
+            write(context, HOST, hosts);
+            write(context, SCHEME, schemes);
+
+            for (Iterator<Int2LongMap.Entry> iter = statusCodes.int2LongEntrySet().iterator(); iter.hasNext();) {
+                Int2LongMap.Entry entry = iter.next();
+                write(context, STATUS, Integer.toString(entry.getIntKey()), entry.getLongValue());
+            }
+            statusCodes.clear();
+
+            for (int i = 0; i < sizes.length; i++) {
+                if (sizes[i] > 0) {
+                    write(context, SIZE, Long.toString((i == 0) ? 0 : 1L << (i - 1)), sizes[i]);
+                    sizes[i] = 0;
+                }
+            }
+
+            estimatedBytes = 0;
+        }
+
+        private void write(Context context, String statistic, Object2LongOpenHashMap<String> counts)
+            throws IOException, InterruptedException {
+            for (Iterator<Object2LongMap.Entry<String>> iter = counts.object2LongEntrySet().iterator(); iter.hasNext();) {
+                Object2LongMap.Entry<String> entry = iter.next();
+                write(context, statistic, entry.getKey(), entry.getLongValue());
+            }
+            counts.clear();
+        }
+
+        private void write(Context context, String statistic, String value, long count)
+            throws IOException, InterruptedException {
+            outKey.set(statistic + "\t" + value);
+            outValue.set(count);
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+        }
+    }
+
+    static int printUsage() {
+        System.out.println("CrawlStats <input> <output> [-status 200,3xx] [-mime text/,application/xhtml]");
+        return -1;
+    }
+
+    public int run(String[] args) throws Exception {
+        if (args.length < 2)
+            return printUsage();
+
+        Job job = Job.getInstance(getConf(), "Crawl Stats");
+        job.setJarByClass(CrawlStats.class);
+
+        FileInputFormat.setInputPaths(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+        job.setInputFormatClass(HDFSWriterInputFormat.class);
+        HDFSWriterInputFormat.setProjection(job, true);
+
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length)
+                return printUsage();
+            if (args[i].equals("-status"))
+                HDFSWriterInputFormat.setStatusCodes(job, args[i+1].split(","));
+            else if (args[i].equals("-mime"))
+                HDFSWriterInputFormat.setMimeTypePrefixes(job, args[i+1].split(","));
+            else
+                return printUsage();
+        }
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(LongWritable.class);
+
+        job.setMapperClass(MapClass.class);
+        job.setCombinerClass(LongSumReducer.class);
+        job.setReducerClass(LongSumReducer.class);
+
+        job.setNumReduceTasks(1);
+
+        return job.waitForCompletion(true) ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int res = ToolRunner.run(new Configuration(), new CrawlStats(), args);
+        System.exit(res);
+    }
+}
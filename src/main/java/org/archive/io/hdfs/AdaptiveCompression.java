@@ -0,0 +1,184 @@
+package org.archive.io.hdfs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibCompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses the compression level of each new file from the CPU headroom
+ * of the crawler.
+ *
+ * The levels, from cheapest to smallest output, are {@link #NONE}
+ * (uncompressed SequenceFile) and the zlib levels <code>BEST_SPEED</code>,
+ * <code>DEFAULT_COMPRESSION</code> and <code>BEST_COMPRESSION</code> of
+ * the default codec, limited to the range configured with
+ * {@link HDFSParameters#getCompressionLevelMin()} and
+ * {@link HDFSParameters#getCompressionLevelMax()}.
+ *
+ * When a writer rolls its file it asks {@link #nextLevel()} for the level
+ * of the next one.  At most once per
+ * {@link HDFSParameters#getAdaptiveCompressionIntervalMs()} the level
+ * moves one step: down while the system load per core is above
+ * {@link HDFSParameters#getAdaptiveLoadHigh()}, so compression does not
+ * take CPU from fetching; up while it is below
+ * {@link HDFSParameters#getAdaptiveLoadLow()}, or when writers are being
+ * held back by the bandwidth limits and smaller output is worth the CPU.
+ * CPU time spent appending is tracked and logged with every change, and
+ * stands in for the load where the platform does not report one.
+ */
+public class AdaptiveCompression {
+
+    public static final String NONE = "NONE";
+
+    /**
+     * Held while priming a compressor and creating the writer using it,
+     * and while closing a compressing writer, which returns its compressor
+     */
+    public static final Object PRIME_LOCK = new Object();
+
+    /** Levels from cheapest to smallest output */
+    public static final List<String> LEVELS =
+        Arrays.asList(NONE,
+                      ZlibCompressor.CompressionLevel.BEST_SPEED.name(),
+                      ZlibCompressor.CompressionLevel.DEFAULT_COMPRESSION.name(),
+                      ZlibCompressor.CompressionLevel.BEST_COMPRESSION.name());
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final HDFSParameters parameters;
+    private final HDFSWriterMetrics metrics;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final int cores = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong writerCpuNanos = new AtomicLong();
+    private volatile int level;
+
+    private long lastDecision = System.nanoTime();
+    private long lastWriterCpuNanos = 0;
+    private long lastThrottledMs = 0;
+
+    public AdaptiveCompression(HDFSParameters parameters, HDFSWriterMetrics metrics) {
+        this.parameters = parameters;
+        this.metrics = metrics;
+        this.level = getMaxIndex();
+    }
+
+    /**
+     * @return the level new files are written at
+     */
+    public String getLevel() {
+        return LEVELS.get(level);
+    }
+
+    /**
+     * @return the current thread's CPU time in nanoseconds, or 0 if it is
+     * not available
+     */
+    public long threadCpuNanos() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Adds CPU time a writer spent appending (and so compressing).
+     */
+    public void addWriterCpu(long nanos) {
+        if (nanos > 0)
+            writerCpuNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return total CPU milliseconds writers have spent appending
+     */
+    public long getWriterCpuMs() {
+        return writerCpuNanos.get() / 1000000;
+    }
+
+    /**
+     * Returns the level for a file about to be opened, reconsidering it
+     * if the decision interval has passed.
+     */
+    public synchronized String nextLevel() {
+        long now = System.nanoTime();
+        long elapsed = now - lastDecision;
+        if (elapsed < parameters.getAdaptiveCompressionIntervalMs() * 1000000L)
+            return LEVELS.get(level);
+
+        long cpu = writerCpuNanos.get();
+        double writerShare = (double)(cpu - lastWriterCpuNanos) / ((double)elapsed * cores);
+        long throttledMs = (metrics == null) ? 0 :
+            metrics.getWriterThrottledMs() + metrics.getGlobalThrottledMs();
+        boolean throttled = throttledMs > lastThrottledMs;
+
+        double load = os.getSystemLoadAverage();
+        load = (load < 0) ? writerShare : load / cores;
+
+        int previous = level;
+        if (load >= parameters.getAdaptiveLoadHigh())
+            level = Math.max(getMinIndex(), level - 1);
+        else if (load <= parameters.getAdaptiveLoadLow() || throttled)
+            level = Math.min(getMaxIndex(), level + 1);
+
+        if (level != previous)
+            LOG.info("Compression level " + LEVELS.get(previous) + " -> " + LEVELS.get(level) +
+                     String.format(" (load per core %.2f, writer CPU share %.2f%s)",
+                                   load, writerShare, throttled ? ", bandwidth limited" : ""));
+
+        lastDecision = now;
+        lastWriterCpuNanos = cpu;
+        lastThrottledMs = throttledMs;
+
+        return LEVELS.get(level);
+    }
+
+    private int getMinIndex() {
+        return indexOf(parameters.getCompressionLevelMin(), 0);
+    }
+
+    private int getMaxIndex() {
+        return Math.max(getMinIndex(), indexOf(parameters.getCompressionLevelMax(), LEVELS.size() - 1));
+    }
+
+    private int indexOf(String name, int fallback) {
+        int index = (name == null) ? -1 : LEVELS.indexOf(name.toUpperCase());
+        return (index == -1) ? fallback : index;
+    }
+
+    /**
+     * Returns a copy of <code>conf</code> that makes the default codec
+     * compress at <code>level</code>.
+     */
+    public static Configuration configure(Configuration conf, String level) {
+        Configuration fileConf = new Configuration(conf);
+        ZlibFactory.setCompressionLevel(fileConf, ZlibCompressor.CompressionLevel.valueOf(level));
+        return fileConf;
+    }
+
+    /**
+     * Reinitializes a pooled compressor of the default codec at the level
+     * of <code>conf</code> and returns it to the CodecPool.  SequenceFile
+     * borrows its compressor without a configuration, so a reused
+     * compressor would otherwise keep the level it was created with.  The
+     * pool hands back the most recently returned compressor, so call this
+     * and create the writer while holding {@link #PRIME_LOCK}, and close
+     * compressing writers while holding it too, so no compressor at
+     * another level is returned in between.
+     */
+    public static void prime(Configuration conf) {
+        DefaultCodec codec = ReflectionUtils.newInstance(DefaultCodec.class, conf);
+        Compressor compressor = CodecPool.getCompressor(codec, conf);
+        CodecPool.returnCompressor(compressor);
+    }
+}
@@ -0,0 +1,187 @@
+package org.archive.io.hdfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Raises the replication of closed files in the background.
+ *
+ * When {@link HDFSParameters#getHdfsInitialReplication()} is set, files are
+ * written through a short datanode pipeline and handed to this object once
+ * they have been closed and renamed.  A background thread calls
+ * <code>setReplication</code> with the target replication and then keeps
+ * checking the block locations until every block reports enough replicas.
+ * Files stay in the pending set until that happens, so a crawl that ends
+ * with under-replicated output can be detected with
+ * {@link #awaitPending(long)}.
+ */
+public class DeferredReplication {
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    /** Initial delay between checks of a pending file */
+    private static final long MIN_CHECK_INTERVAL_MS = 1000;
+
+    /** Upper bound of the delay between checks of a pending file */
+    private static final long MAX_CHECK_INTERVAL_MS = 60000;
+
+    private final short targetReplication;
+    private final ConcurrentHashMap<Path, FileSystem> pending = new ConcurrentHashMap<Path, FileSystem>();
+    private final ScheduledExecutorService executor;
+
+    public DeferredReplication(int targetReplication) {
+        this.targetReplication = (short)targetReplication;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HDFSWriter deferred replication");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    public short getTargetReplication() {
+        return targetReplication;
+    }
+
+    /**
+     * Schedules <code>path</code> to be raised to the target replication.
+     *
+     * @param fs file system holding the file
+     * @param path final (closed and renamed) path of the file
+     */
+    public void submit(FileSystem fs, Path path) {
+        pending.put(path, fs);
+        executor.execute(new RaiseTask(fs, path, MIN_CHECK_INTERVAL_MS));
+    }
+
+    /**
+     * @return number of files not yet fully replicated
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return snapshot of the files not yet fully replicated
+     */
+    public List<Path> getPendingFiles() {
+        return new ArrayList<Path>(pending.keySet());
+    }
+
+    /**
+     * Waits until every submitted file has reached the target replication.
+     * Files still pending when the timeout expires are logged as errors.
+     *
+     * @param timeoutMs maximum time to wait in milliseconds
+     * @return true if no files are left pending
+     */
+    public boolean awaitPending(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        synchronized (pending) {
+            while (!pending.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    pending.wait(Math.min(remaining, MIN_CHECK_INTERVAL_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        if (pending.isEmpty())
+            return true;
+
+        for (Path path : pending.keySet())
+            LOG.error("File has not reached replication " + targetReplication + ": " + path);
+
+        return false;
+    }
+
+    /**
+     * Stops the background thread.  Files still pending are left at their
+     * current replication.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void done(Path path) {
+        pending.remove(path);
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Returns true when every block of the file has at least the target
+     * number of replicas.
+     */
+    private boolean isReplicated(FileSystem fs, Path path) throws IOException {
+        FileStatus status = fs.getFileStatus(path);
+        BlockLocation [] blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+
+        for (BlockLocation block : blocks) {
+            if (block.getHosts().length < targetReplication)
+                return false;
+        }
+        return true;
+    }
+
+    private class RaiseTask implements Runnable {
+        private final FileSystem fs;
+        private final Path path;
+        private final long interval;
+        private boolean raised;
+
+        RaiseTask(FileSystem fs, Path path, long interval) {
+            this.fs = fs;
+            this.path = path;
+            this.interval = interval;
+        }
+
+        public void run() {
+            try {
+                if (!raised) {
+                    raised = fs.setReplication(path, targetReplication);
+                    if (!raised)
+                        LOG.warn("setReplication refused for " + path + ", will retry");
+                }
+
+                if (raised && isReplicated(fs, path)) {
+                    LOG.info("Raised replication of " + path + " to " + targetReplication);
+                    done(path);
+                    return;
+                }
+            } catch (FileNotFoundException e) {
+                LOG.warn("File vanished before reaching replication " + targetReplication + ": " + path);
+                done(path);
+                return;
+            } catch (IOException e) {
+                LOG.warn("Failed to raise replication of " + path + ": " + e.getMessage());
+            }
+
+            RaiseTask next = new RaiseTask(fs, path, Math.min(interval * 2, MAX_CHECK_INTERVAL_MS));
+            next.raised = raised;
+            if (!executor.isShutdown())
+                executor.schedule(next, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+}
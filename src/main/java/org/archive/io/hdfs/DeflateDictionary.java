@@ -0,0 +1,384 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+/**
+ * Deflate preset dictionary compression of record values.
+ *
+ * Crawl records are mostly small documents sharing HTTP headers and page
+ * boilerplate, which per-record compression cannot exploit since every
+ * record starts with an empty window.  A dictionary of the lines that
+ * recur across a sample of early captures gives each record that shared
+ * context.
+ *
+ * Until {@link #getDictionary()} returns a dictionary, writers feed it
+ * samples with {@link #sample(byte[], int, int)}.  Files opened afterwards
+ * store the dictionary in their SequenceFile metadata under
+ * {@link #METADATA_KEY}, are written without SequenceFile compression, and
+ * hold each value as {@link #MAGIC}, the uncompressed length and the
+ * deflated document.  {@link HDFSWriterDocument} inflates such values once
+ * given the dictionary with
+ * {@link HDFSWriterDocument#setDictionary(byte[])}.
+ */
+public class DeflateDictionary {
+
+    /** SequenceFile metadata key of the dictionary */
+    public static final String METADATA_KEY = "HDFSWriter-Dictionary";
+
+    /** First bytes of a compressed document */
+    public static final byte [] MAGIC = { 'H', 'D', 'Z', '1' };
+
+    /** Largest useful dictionary, the deflate window */
+    public static final int MAX_SIZE = 32768;
+
+    /** Bytes of each sample used for training */
+    private static final int MAX_SAMPLE_LENGTH = 65536;
+
+    /** Lines shorter or longer than this are not worth a dictionary entry */
+    private static final int MIN_LINE_LENGTH = 8;
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final int sampleCount;
+    private final int size;
+    private List<byte []> samples = new ArrayList<byte []>();
+    private volatile byte [] dictionary = null;
+
+    /**
+     * @param sampleCount number of documents to train on
+     * @param size dictionary size in bytes, at most {@link #MAX_SIZE}
+     */
+    public DeflateDictionary(int sampleCount, int size) {
+        this.sampleCount = Math.max(1, sampleCount);
+        this.size = Math.min(MAX_SIZE, Math.max(1, size));
+    }
+
+    /**
+     * @return the trained dictionary, or null while samples are collected
+     */
+    public byte [] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return true while more samples are wanted
+     */
+    public boolean isSampling() {
+        return dictionary == null;
+    }
+
+    /**
+     * Adds a document to the training sample.  Trains the dictionary once
+     * enough documents have been seen.
+     */
+    public synchronized void sample(byte [] document, int offset, int length) {
+        if (dictionary != null)
+            return;
+
+        byte [] sample = new byte [Math.min(length, MAX_SAMPLE_LENGTH)];
+        System.arraycopy(document, offset, sample, 0, sample.length);
+        samples.add(sample);
+
+        if (samples.size() >= sampleCount) {
+            dictionary = train(samples, size);
+            samples = null;
+            LOG.info("Trained " + dictionary.length + " byte compression dictionary from " +
+                     sampleCount + " documents");
+        }
+    }
+
+    /**
+     * Builds a dictionary from the lines that occur in more than one
+     * sample, preferring those that save the most.  Deflate codes nearby
+     * matches more cheaply, so the most valuable lines go at the end.
+     */
+    public static byte [] train(List<byte []> samples, int size) {
+        final Map<String, int []> counts = new HashMap<String, int []>();
+
+        for (byte [] sample : samples) {
+            Set<String> seen = new HashSet<String>();
+            int start = 0;
+            for (int i = 0; i < sample.length; i++) {
+                if (sample[i] != '\n')
+                    continue;
+
+                int length = i + 1 - start;
+                if (length >= MIN_LINE_LENGTH && length <= MAX_LINE_LENGTH) {
+                    String line = latin1(sample, start, length);
+                    if (seen.add(line)) {
+                        int [] count = counts.get(line);
+                        if (count == null)
+                            counts.put(line, new int [] { 1 });
+                        else
+                            count[0]++;
+                    }
+                }
+                start = i + 1;
+            }
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, int []> entry : counts.entrySet()) {
+            if (entry.getValue()[0] > 1)
+                lines.add(entry.getKey());
+        }
+
+        Collections.sort(lines, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    long sa = (long)(counts.get(a)[0] - 1) * a.length();
+                    long sb = (long)(counts.get(b)[0] - 1) * b.length();
+                    return (sa > sb) ? -1 : (sa < sb) ? 1 : a.compareTo(b);
+                }
+            });
+
+        List<String> chosen = new ArrayList<String>();
+        int total = 0;
+        for (String line : lines) {
+            if (total + line.length() > size)
+                continue;
+            chosen.add(line);
+            total += line.length();
+        }
+
+        byte [] dict = new byte [total];
+        int pos = total;
+        for (String line : chosen) {
+            pos -= line.length();
+            for (int i = 0; i < line.length(); i++)
+                dict[pos + i] = (byte)line.charAt(i);
+        }
+        return dict;
+    }
+
+    private static String latin1(byte [] buf, int offset, int length) {
+        try {
+            return new String(buf, offset, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the dictionary stored in a file's metadata, or null if the
+     * file was written without one
+     */
+    public static byte [] fromMetadata(SequenceFile.Metadata metadata) {
+        Text value = (metadata == null) ? null : metadata.get(new Text(METADATA_KEY));
+        if (value == null)
+            return null;
+
+        byte [] dict = new byte [value.getLength()];
+        System.arraycopy(value.getBytes(), 0, dict, 0, dict.length);
+        return dict;
+    }
+
+    /**
+     * @return metadata holding <code>dictionary</code>
+     */
+    public static SequenceFile.Metadata toMetadata(byte [] dictionary) {
+        Text value = new Text();
+        value.set(dictionary);
+        SequenceFile.Metadata metadata = new SequenceFile.Metadata();
+        metadata.set(new Text(METADATA_KEY), value);
+        return metadata;
+    }
+
+    /**
+     * @return true if the value at <code>offset</code> is a compressed
+     * document
+     */
+    public static boolean isCompressed(byte [] buf, int offset, int length) {
+        if (length < MAGIC.length + 4)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf[offset + i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compresses a document.
+     *
+     * @param deflater reusable deflater, reset by this call
+     * @param dictionary preset dictionary, or null for plain deflate
+     * @param document buffer holding the document
+     * @param offset start of the document
+     * @param length length of the document
+     * @param out buffer to compress into, starting at <code>outOffset</code>;
+     * replaced by a larger one if it is too small
+     * @param outOffset where the compressed document starts in <code>out</code>
+     * @return buffer holding the compressed document, and the offset just
+     * past it in <code>end[0]</code>
+     */
+    public static byte [] compress(Deflater deflater, byte [] dictionary,
+                                   byte [] document, int offset, int length,
+                                   byte [] out, int outOffset, int [] end) {
+        deflater.reset();
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(document, offset, length);
+        deflater.finish();
+
+        int bound = outOffset + MAGIC.length + 4 + length + (length >> 12) + (length >> 14) + 64;
+        if (out.length < bound) {
+            byte [] grown = new byte [bound];
+            System.arraycopy(out, 0, grown, 0, outOffset);
+            out = grown;
+        }
+
+        int pos = outOffset;
+        System.arraycopy(MAGIC, 0, out, pos, MAGIC.length);
+        pos += MAGIC.length;
+        out[pos++] = (byte)(length >>> 24);
+        out[pos++] = (byte)(length >>> 16);
+        out[pos++] = (byte)(length >>> 8);
+        out[pos++] = (byte)length;
+
+        while (!deflater.finished()) {
+            if (pos == out.length) {
+                byte [] grown = new byte [out.length * 2];
+                System.arraycopy(out, 0, grown, 0, pos);
+                out = grown;
+            }
+            pos += deflater.deflate(out, pos, out.length - pos);
+        }
+
+        end[0] = pos;
+        return out;
+    }
+
+    /**
+     * Decompresses a document written by {@link #compress}.
+     *
+     * @param dictionary the dictionary of the file, may be null if the
+     * document was compressed without one
+     * @param buf buffer holding the compressed document
+     * @param offset start of the compressed document, at {@link #MAGIC}
+     * @param length length of the compressed document
+     * @return the document
+     * @throws IOException if the document is corrupt or needs another
+     * dictionary
+     */
+    public static byte [] decompress(byte [] dictionary, byte [] buf, int offset, int length) throws IOException {
+        int rawLength = rawLength(buf, offset);
+        int pos = offset + MAGIC.length + 4;
+
+        byte [] document = new byte [rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buf, pos, offset + length - pos);
+            int n = 0;
+            while (n < rawLength) {
+                int inflated = inflater.inflate(document, n, rawLength - n);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null)
+                            throw new IOException("Document compressed with a dictionary, see HDFSWriterDocument.setDictionary");
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Compressed document truncated at " + n + " of " + rawLength);
+                    }
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed document: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Document was compressed with another dictionary");
+        } finally {
+            inflater.end();
+        }
+        return document;
+    }
+
+    /**
+     * Replaces a record value holding a compressed document with one
+     * holding the document, laid out like the values of files written
+     * without a dictionary.  Other values are left alone.
+     *
+     * @param dictionary the dictionary of the file, see {@link #fromMetadata}
+     * @param value a record value: length prefix and document
+     * @throws IOException if the document cannot be decompressed
+     */
+    public static void decompressValue(byte [] dictionary, Text value) throws IOException {
+        if (!isCompressed(value.getBytes(), 4, value.getLength()-4))
+            return;
+
+        byte [] document = decompress(dictionary, value.getBytes(), 4, value.getLength()-4);
+        byte [] buf = new byte [4 + document.length];
+        buf[0] = (byte)(document.length >>> 24);
+        buf[1] = (byte)(document.length >>> 16);
+        buf[2] = (byte)(document.length >>> 8);
+        buf[3] = (byte)document.length;
+        System.arraycopy(document, 0, buf, 4, document.length);
+        value.set(buf);
+    }
+
+    /**
+     * @return the uncompressed length of the compressed document at
+     * <code>offset</code>
+     */
+    public static int rawLength(byte [] buf, int offset) {
+        int pos = offset + MAGIC.length;
+        return ((buf[pos] & 0xff) << 24) | ((buf[pos+1] & 0xff) << 16) |
+            ((buf[pos+2] & 0xff) << 8) | (buf[pos+3] & 0xff);
+    }
+
+    /**
+     * Returns a stream inflating a document written by {@link #compress},
+     * for documents too large to decompress into one buffer.  The
+     * {@link #MAGIC} and length of the document have already been read
+     * from <code>in</code>, which must end where the document does.
+     * Closing the stream releases its inflater and closes <code>in</code>.
+     *
+     * @param dictionary the dictionary of the file, may be null if the
+     * document was compressed without one
+     * @param in the deflated document
+     */
+    public static InputStream inflate(final byte [] dictionary, InputStream in) {
+        return new InflaterInputStream(in, new Inflater()) {
+            @Override
+            public int read(byte [] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0 && inf.needsDictionary()) {
+                    if (dictionary == null)
+                        throw new IOException("Document compressed with a dictionary, see HDFSWriterDocument.setDictionary");
+                    try {
+                        inf.setDictionary(dictionary);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Document was compressed with another dictionary");
+                    }
+                    n = super.read(b, off, len);
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                inf.end();
+                super.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,239 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Compares dictionary compression of record values with the plain Hadoop
+ * codecs on captures read from existing HDFSWriter output.
+ *
+ * <pre>
+ *   DeflateDictionaryBenchmark &lt;sequence-file&gt; [-records N] [-samples N]
+ *       [-size bytes] [-codecs DefaultCodec,GzipCodec,BZip2Codec]
+ * </pre>
+ *
+ * The dictionary is trained on the first <code>samples</code> documents
+ * and every method is measured on the documents after them.  Each codec
+ * is run per record, as SequenceFile RECORD compression does, and over
+ * 1 MB blocks of records, as BLOCK compression does.  For every method the
+ * compressed size, the ratio and the compression and decompression rates
+ * are printed.
+ */
+public class DeflateDictionaryBenchmark {
+
+    private static final int BLOCK_SIZE = 1024*1024;
+
+    /**
+     * A compression method under test.
+     */
+    private interface Method {
+        /** @return the compressed form of documents[from, to) */
+        byte [] compress(List<byte []> documents, int from, int to) throws IOException;
+        /** @return the number of bytes decompressed */
+        long decompress(byte [] compressed) throws IOException;
+    }
+
+    private static class DictionaryMethod implements Method {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final byte [] dictionary;
+        private byte [] out = new byte [65536];
+        private final int [] end = new int [1];
+
+        DictionaryMethod(byte [] dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        public byte [] compress(List<byte []> documents, int from, int to) {
+            byte [] document = documents.get(from);
+            out = DeflateDictionary.compress(deflater, dictionary, document, 0, document.length, out, 0, end);
+            byte [] compressed = new byte [end[0]];
+            System.arraycopy(out, 0, compressed, 0, compressed.length);
+            return compressed;
+        }
+
+        public long decompress(byte [] compressed) throws IOException {
+            return DeflateDictionary.decompress(dictionary, compressed, 0, compressed.length).length;
+        }
+    }
+
+    private static class CodecMethod implements Method {
+        private final CompressionCodec codec;
+        private final byte [] buf = new byte [65536];
+
+        CodecMethod(CompressionCodec codec) {
+            this.codec = codec;
+        }
+
+        public byte [] compress(List<byte []> documents, int from, int to) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream out = codec.createOutputStream(bytes);
+            for (int i = from; i < to; i++)
+                out.write(documents.get(i));
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        public long decompress(byte [] compressed) throws IOException {
+            InputStream in = codec.createInputStream(new ByteArrayInputStream(compressed));
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) > 0)
+                total += n;
+            in.close();
+            return total;
+        }
+    }
+
+    /**
+     * Reads up to <code>max</code> documents, inflating those of files
+     * written with dictionary compression.
+     */
+    static List<byte []> readDocuments(Configuration conf, Path path, int max) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+        List<byte []> documents = new ArrayList<byte []>();
+
+        try {
+            byte [] dictionary = DeflateDictionary.fromMetadata(reader.getMetadata());
+            Text key = new Text();
+            Text value = new Text();
+
+            while (documents.size() < max && reader.next(key, value)) {
+                if (value.getLength() <= 4)
+                    continue;
+
+                byte [] document;
+                if (DeflateDictionary.isCompressed(value.getBytes(), 4, value.getLength()-4)) {
+                    document = DeflateDictionary.decompress(dictionary, value.getBytes(), 4, value.getLength()-4);
+                } else {
+                    document = new byte [value.getLength()-4];
+                    System.arraycopy(value.getBytes(), 4, document, 0, document.length);
+                }
+                documents.add(document);
+            }
+        } finally {
+            reader.close();
+        }
+        return documents;
+    }
+
+    /**
+     * Runs one method over the documents and prints its report line.
+     */
+    static void run(String name, Method method, List<byte []> documents, boolean blocks) throws IOException {
+        List<byte []> compressed = new ArrayList<byte []>();
+        long raw = 0;
+        long size = 0;
+
+        long start = System.nanoTime();
+        int from = 0;
+        while (from < documents.size()) {
+            int to = from + 1;
+            long bytes = documents.get(from).length;
+            if (blocks) {
+                while (to < documents.size() && bytes < BLOCK_SIZE)
+                    bytes += documents.get(to++).length;
+            }
+            byte [] out = method.compress(documents, from, to);
+            compressed.add(out);
+            raw += bytes;
+            size += out.length;
+            from = to;
+        }
+        long compressNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long inflated = 0;
+        for (byte [] out : compressed)
+            inflated += method.decompress(out);
+        long decompressNanos = System.nanoTime() - start;
+
+        if (inflated != raw)
+            throw new IOException(name + ": decompressed " + inflated + " bytes of " + raw);
+
+        System.out.println(String.format("%-28s %12d %7.3f %10.1f %10.1f",
+                                         name, size, (double)raw / size,
+                                         rate(raw, compressNanos), rate(raw, decompressNanos)));
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return (nanos == 0) ? 0 : (bytes / (1024.0*1024.0)) / (nanos / 1e9);
+    }
+
+    static void printUsage() {
+        System.out.println("DeflateDictionaryBenchmark <sequence-file> [-records N] [-samples N]");
+        System.out.println("    [-size bytes] [-codecs DefaultCodec,GzipCodec,BZip2Codec]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            printUsage();
+
+        int records = 10000;
+        int samples = 200;
+        int size = DeflateDictionary.MAX_SIZE;
+        String codecs = "DefaultCodec,GzipCodec,BZip2Codec";
+
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length)
+                printUsage();
+            if (args[i].equals("-records"))
+                records = Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-samples"))
+                samples = Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-size"))
+                size = Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-codecs"))
+                codecs = args[i+1];
+            else
+                printUsage();
+        }
+
+        Configuration conf = new Configuration();
+        List<byte []> documents = readDocuments(conf, new Path(args[0]), samples + records);
+        if (documents.size() <= samples) {
+            System.out.println("Need more than " + samples + " documents, found " + documents.size());
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        byte [] dictionary = DeflateDictionary.train(documents.subList(0, samples), size);
+        long trainMs = (System.nanoTime() - start) / 1000000;
+
+        List<byte []> test = documents.subList(samples, documents.size());
+        long raw = 0;
+        for (byte [] document : test)
+            raw += document.length;
+
+        System.out.println("Trained " + dictionary.length + " byte dictionary on " + samples +
+                           " documents in " + trainMs + "ms, testing on " + test.size() +
+                           " documents (" + raw + " bytes)");
+        System.out.println(String.format("%-28s %12s %7s %10s %10s",
+                                         "method", "bytes", "ratio", "comp MB/s", "decomp MB/s"));
+
+        run("RECORD deflate+dictionary", new DictionaryMethod(dictionary), test, false);
+        run("RECORD deflate", new DictionaryMethod(null), test, false);
+
+        for (String name : codecs.split(",")) {
+            String className = (name.indexOf('.') == -1) ? "org.apache.hadoop.io.compress." + name : name;
+            CompressionCodec codec = (CompressionCodec)ReflectionUtils.newInstance(conf.getClassByName(className), conf);
+            run("RECORD " + name, new CodecMethod(codec), test, false);
+            run("BLOCK " + name, new CodecMethod(codec), test, true);
+        }
+    }
+}
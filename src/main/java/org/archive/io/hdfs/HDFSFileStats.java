@@ -0,0 +1,261 @@
+package org.archive.io.hdfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.archive.modules.CrawlURI;
+import org.archive.util.ArchiveUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Running statistics about the records in one output file.
+ *
+ * A pool member resets its statistics when it opens a file and adds every
+ * record it appends.  When the file is closed a summary is written to the
+ * crawl manifest (see {@link HDFSManifest}) and, optionally, the full
+ * statistics to a small sidecar file next to it (see
+ * {@link #toSummary(long)}), so that split planners can decide whether a
+ * file is relevant without reading it.
+ */
+public class HDFSFileStats {
+
+    /** Number of MIME types listed in the summary */
+    public static final int TOP_MIME_TYPES = 20;
+
+    /** Limits on distinct values tracked per file */
+    private static final int MAX_MIME_TYPES = 1000;
+    private static final int MAX_SEEDS = 1000;
+
+    private static final String OTHER = "other";
+
+    private long records;
+    private long rawBytes;
+    private Map<Integer, long[]> statusCodes = new TreeMap<Integer, long[]>();
+    private Map<String, long[]> mimeTypes = new HashMap<String, long[]>();
+    private TreeSet<String> seeds = new TreeSet<String>();
+    private long seedsOverflow;
+    private long firstCrawlTime;
+    private long lastCrawlTime;
+    private long minUrlHash;
+    private long maxUrlHash;
+
+    public HDFSFileStats() {
+        reset();
+    }
+
+    /**
+     * Clears the statistics for a new file.
+     */
+    public void reset() {
+        records = 0;
+        rawBytes = 0;
+        statusCodes.clear();
+        mimeTypes.clear();
+        seeds.clear();
+        seedsOverflow = 0;
+        firstCrawlTime = Long.MAX_VALUE;
+        lastCrawlTime = Long.MIN_VALUE;
+        minUrlHash = -1L;
+        maxUrlHash = 0L;
+    }
+
+    /**
+     * Adds one appended record.
+     *
+     * @param uri key the record was written under
+     * @param curi the capture, may be null
+     * @param seedUrl seed the capture was reached from, may be null
+     * @param bytes uncompressed size of the record
+     */
+    public void add(String uri, CrawlURI curi, String seedUrl, long bytes) {
+        records++;
+        rawBytes += bytes;
+
+        if (curi != null) {
+            increment(statusCodes, Integer.valueOf(curi.getFetchStatus()));
+
+            String mimeType = mimeType(curi.getContentType());
+            if (mimeTypes.size() >= MAX_MIME_TYPES && !mimeTypes.containsKey(mimeType))
+                mimeType = OTHER;
+            increment(mimeTypes, mimeType);
+        }
+
+        if (seedUrl != null && seedUrl.length() > 0 && !seeds.contains(seedUrl)) {
+            if (seeds.size() < MAX_SEEDS)
+                seeds.add(seedUrl);
+            else
+                seedsOverflow++;
+        }
+
+        if (curi != null && curi.getFetchBeginTime() > 0) {
+            long time = curi.getFetchBeginTime();
+            if (time < firstCrawlTime)
+                firstCrawlTime = time;
+            if (time > lastCrawlTime)
+                lastCrawlTime = time;
+        }
+
+        long hash = urlHash(uri);
+        if (unsignedLess(hash, minUrlHash))
+            minUrlHash = hash;
+        if (unsignedLess(maxUrlHash, hash))
+            maxUrlHash = hash;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return uncompressed bytes of keys and values appended
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return earliest fetch time in milliseconds, or 0 if unknown
+     */
+    public long getFirstCrawlTime() {
+        return (firstCrawlTime == Long.MAX_VALUE) ? 0 : firstCrawlTime;
+    }
+
+    /**
+     * @return latest fetch time in milliseconds, or 0 if unknown
+     */
+    public long getLastCrawlTime() {
+        return (lastCrawlTime == Long.MIN_VALUE) ? 0 : lastCrawlTime;
+    }
+
+    public long getMinUrlHash() {
+        return minUrlHash;
+    }
+
+    public long getMaxUrlHash() {
+        return maxUrlHash;
+    }
+
+    /**
+     * Describes the file as a manifest entry.
+     *
+     * @param path final path of the file
+     * @param size length of the file in bytes
+     */
+    public JSONObject toManifestEntry(String path, long size) throws JSONException {
+        JSONObject entry = new JSONObject();
+        entry.put("path", path);
+        entry.put("size", size);
+        entry.put("records", records);
+        if (getFirstCrawlTime() > 0) {
+            entry.put("firstCrawlTime", ArchiveUtils.get14DigitDate(getFirstCrawlTime()));
+            entry.put("lastCrawlTime", ArchiveUtils.get14DigitDate(getLastCrawlTime()));
+        }
+        if (records > 0) {
+            entry.put("minUrlHash", toHex(minUrlHash));
+            entry.put("maxUrlHash", toHex(maxUrlHash));
+        }
+        return entry;
+    }
+
+    /**
+     * Describes the file in full: the manifest fields plus raw and
+     * compressed size, status code histogram, most frequent MIME types
+     * and the seeds covered.
+     *
+     * @param compressedBytes length of the file in bytes
+     */
+    public JSONObject toSummary(long compressedBytes) throws JSONException {
+        JSONObject summary = new JSONObject();
+        summary.put("records", records);
+        summary.put("rawBytes", rawBytes);
+        summary.put("compressedBytes", compressedBytes);
+        if (getFirstCrawlTime() > 0) {
+            summary.put("firstCrawlTime", ArchiveUtils.get14DigitDate(getFirstCrawlTime()));
+            summary.put("lastCrawlTime", ArchiveUtils.get14DigitDate(getLastCrawlTime()));
+        }
+        if (records > 0) {
+            summary.put("minUrlHash", toHex(minUrlHash));
+            summary.put("maxUrlHash", toHex(maxUrlHash));
+        }
+
+        JSONObject statuses = new JSONObject();
+        for (Map.Entry<Integer, long[]> status : statusCodes.entrySet())
+            statuses.put(status.getKey().toString(), status.getValue()[0]);
+        summary.put("statusCodes", statuses);
+
+        List<Map.Entry<String, long[]>> types = new ArrayList<Map.Entry<String, long[]>>(mimeTypes.entrySet());
+        Collections.sort(types, new Comparator<Map.Entry<String, long[]>>() {
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    long diff = b.getValue()[0] - a.getValue()[0];
+                    return (diff > 0) ? 1 : (diff < 0) ? -1 : a.getKey().compareTo(b.getKey());
+                }
+            });
+        JSONObject topTypes = new JSONObject();
+        for (int i = 0; i < types.size() && i < TOP_MIME_TYPES; i++)
+            topTypes.put(types.get(i).getKey(), types.get(i).getValue()[0]);
+        summary.put("mimeTypes", topTypes);
+
+        summary.put("seeds", new JSONArray(seeds));
+        if (seedsOverflow > 0)
+            summary.put("seedsOmitted", seedsOverflow);
+
+        return summary;
+    }
+
+    private static <K> void increment(Map<K, long[]> counts, K key) {
+        long [] count = counts.get(key);
+        if (count == null) {
+            count = new long [1];
+            counts.put(key, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Strips parameters from a Content-Type value.
+     */
+    private static String mimeType(String contentType) {
+        if (contentType == null || contentType.length() == 0)
+            return "unknown";
+
+        int semi = contentType.indexOf(';');
+        String type = (semi == -1) ? contentType : contentType.substring(0, semi);
+        return type.trim().toLowerCase();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a URL.  Files can be skipped by hash range
+     * without a digest per record.
+     */
+    public static long urlHash(CharSequence url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Formats a hash as 16 hex digits, so that hashes sort as strings.
+     */
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++)
+            sb.append('0');
+        return sb.append(hex).toString();
+    }
+
+    private static boolean unsignedLess(long a, long b) {
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+    }
+}
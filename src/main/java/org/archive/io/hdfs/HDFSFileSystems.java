@@ -0,0 +1,92 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.log4j.Logger;
+
+/**
+ * The HDFS clients used by the writers of one {@link HDFSWriterPool}.
+ *
+ * <code>FileSystem.get</code> hands every caller the same cached
+ * DistributedFileSystem, so all writers end up sharing one DFSClient with
+ * its lease renewer and internal locks.  When
+ * {@link HDFSParameters#getHdfsClientCount()} is greater than zero this
+ * object opens that many independent clients with
+ * <code>FileSystem.newInstance</code> and spreads writers across them
+ * round-robin.  With a count of zero the cached client is used, as before.
+ *
+ * The Hadoop client properties from
+ * {@link HDFSParameters#getHdfsClientProperties()} are applied to the
+ * configuration of every client.
+ */
+public class HDFSFileSystems {
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final Configuration conf;
+    private final FileSystem [] clients;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public HDFSFileSystems(HDFSParameters parameters) {
+        this.conf = new Configuration();
+        conf.set("fs.default.name", parameters.getHdfsFsDefaultName());
+
+        Map<String, String> properties = parameters.getHdfsClientProperties();
+        if (properties != null) {
+            for (Map.Entry<String, String> property : properties.entrySet())
+                conf.set(property.getKey(), property.getValue());
+        }
+
+        this.clients = new FileSystem [Math.max(0, parameters.getHdfsClientCount())];
+    }
+
+    /**
+     * Configuration shared by the clients.  Treat it as read-only, per-file
+     * options are passed explicitly when files are created.
+     */
+    public Configuration getConf() {
+        return conf;
+    }
+
+    /**
+     * Returns the client for the next writer, opening it on first use.
+     */
+    public FileSystem next() throws IOException {
+        if (clients.length == 0)
+            return FileSystem.get(conf);
+
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % clients.length;
+
+        synchronized (clients) {
+            if (clients[index] == null) {
+                clients[index] = FileSystem.newInstance(conf);
+                LOG.info("Opened HDFS client " + (index + 1) + " of " + clients.length +
+                         " for " + clients[index].getUri());
+            }
+            return clients[index];
+        }
+    }
+
+    /**
+     * Closes the clients opened by this object.  The shared cached client
+     * is left open since other code in the process may be using it.
+     */
+    public void close() {
+        synchronized (clients) {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] == null)
+                    continue;
+                try {
+                    clients[i].close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close HDFS client " + (i + 1), e);
+                }
+                clients[i] = null;
+            }
+        }
+    }
+}
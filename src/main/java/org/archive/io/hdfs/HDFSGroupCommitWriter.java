@@ -0,0 +1,233 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.archive.io.WriterPool;
+import org.archive.modules.CrawlURI;
+
+/**
+ * An output file shared by many threads with group commit.
+ *
+ * Threads stage their serialized record and wait.  The first thread to
+ * find no commit in progress becomes the leader: it takes every staged
+ * record, appends them to the file in one batch, hflushes once and wakes
+ * the others, whose records are then visible to readers.  Records staged
+ * while a commit runs form the next group, so under load each flush
+ * covers many records, as with group commit of a database write-ahead log.
+ *
+ * The file is written by a member borrowed from the {@link WriterPool}
+ * and held until {@link #release()}, so the pool still closes,
+ * checkpoints and counts it.  A failed append invalidates that member and
+ * the record is retried on a fresh one (see
+ * {@link HDFSParameters#getAppendRetries()}).
+ *
+ * A waiter interrupted before its record is taken withdraws the record;
+ * once a leader has taken it, the waiter waits for the result, so the
+ * document buffer is never read after {@link #write} returns.
+ */
+public class HDFSGroupCommitWriter {
+
+    /**
+     * A record waiting to be committed.
+     */
+    private static class Staged {
+        final String uri;
+        final CrawlURI curi;
+        final String seedUrl;
+        final byte [] document;
+        final int length;
+        boolean done = false;
+        IOException failure = null;
+
+        Staged(String uri, CrawlURI curi, String seedUrl, byte [] document, int length) {
+            this.uri = uri;
+            this.curi = curi;
+            this.seedUrl = seedUrl;
+            this.document = document;
+            this.length = length;
+        }
+    }
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final WriterPool pool;
+    private final HDFSParameters parameters;
+    private final HDFSWriterMetrics metrics;
+
+    private List<Staged> staging = new ArrayList<Staged>();
+    private boolean committing = false;
+    private boolean released = false;
+
+    /** Only used by the leader, or under the lock by release() */
+    private HDFSWriterPoolMember member = null;
+
+    public HDFSGroupCommitWriter(WriterPool pool, HDFSParameters parameters, HDFSWriterMetrics metrics) {
+        this.pool = pool;
+        this.parameters = parameters;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Appends a record and waits until its group has been committed.
+     *
+     * @param uri key to write the record under
+     * @param curi the capture, may be null
+     * @param seedUrl seed the capture was reached from, may be null
+     * @param document the record value, see {@link HDFSWriter#capture}
+     * @param length number of bytes of <code>document</code> to write
+     * @exception IOException if the record could not be written
+     */
+    public void write(String uri, CrawlURI curi, String seedUrl,
+                      byte [] document, int length) throws IOException {
+        Staged record = new Staged(uri, curi, seedUrl, document, length);
+        List<Staged> group = null;
+
+        synchronized (this) {
+            if (released)
+                throw new IOException("Group commit writer has been released");
+
+            staging.add(record);
+            boolean interrupted = false;
+            while (committing && !record.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    if (staging.remove(record)) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for group commit of " + uri);
+                    }
+                    // a leader has taken the record, its result is on the way
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (!record.done) {
+                committing = true;
+                group = staging;
+                staging = new ArrayList<Staged>();
+            }
+        }
+
+        if (group != null) {
+            try {
+                commit(group);
+            } finally {
+                synchronized (this) {
+                    for (Staged staged : group)
+                        staged.done = true;
+                    committing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        if (record.failure != null)
+            throw record.failure;
+    }
+
+    /**
+     * Appends a group and flushes it.  Runs in the leader only.
+     */
+    private void commit(List<Staged> group) {
+        for (Staged staged : group) {
+            try {
+                append(staged);
+            } catch (IOException e) {
+                staged.failure = e;
+                metrics.recordFailedRecord();
+            }
+        }
+
+        if (member == null)
+            return;
+
+        try {
+            member.hflush();
+        } catch (IOException e) {
+            LOG.error("Failed to flush group of " + group.size() + " records", e);
+            invalidate();
+            for (Staged staged : group) {
+                if (staged.failure == null)
+                    staged.failure = e;
+            }
+        }
+    }
+
+    /**
+     * Appends one record, moving to a fresh member with exponential
+     * backoff when the append fails.
+     */
+    private void append(Staged staged) throws IOException {
+        long backoff = parameters.getAppendRetryBackoffMs();
+
+        for (int attempt = 0; ; attempt++) {
+            if (member == null)
+                member = (HDFSWriterPoolMember)pool.borrowFile();
+
+            try {
+                member.appendRecord(staged.uri, staged.curi, staged.seedUrl,
+                                    staged.document, staged.length);
+                return;
+            } catch (IOException e) {
+                invalidate();
+                metrics.recordFailover();
+                if (attempt >= parameters.getAppendRetries())
+                    throw e;
+
+                LOG.warn("Append of " + staged.uri + " failed (" + e + "), retry " + (attempt + 1) +
+                         " of " + parameters.getAppendRetries() + " in " + backoff + "ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted retrying append of " + staged.uri);
+                }
+                backoff = Math.min(backoff * 2, parameters.getAppendRetryMaxBackoffMs());
+                metrics.recordRetry();
+            }
+        }
+    }
+
+    private void invalidate() {
+        if (member == null)
+            return;
+
+        try {
+            pool.invalidateFile(member);
+        } catch (Exception e) {
+            LOG.warn("Failed to invalidate group commit file", e);
+        }
+        member = null;
+    }
+
+    /**
+     * Waits for the commit in progress, if any, and returns the member to
+     * the pool.  Further writes fail.
+     */
+    public synchronized void release() {
+        released = true;
+        while (committing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (member != null) {
+            try {
+                pool.returnFile(member);
+            } catch (Exception e) {
+                LOG.warn("Failed to return group commit file to the pool", e);
+            }
+            member = null;
+        }
+    }
+}
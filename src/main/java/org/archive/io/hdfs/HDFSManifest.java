@@ -0,0 +1,82 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.archive.util.ArchiveUtils;
+import org.json.JSONObject;
+
+/**
+ * Append-only manifest of the files closed during a crawl.
+ *
+ * Each line is a JSON object describing one closed file (see
+ * {@link HDFSFileStats#toManifestEntry(String, long)}).  The manifest is
+ * flushed after every entry so that {@link HDFSManifestReader} can tail it
+ * and pick up new files without listing the output directories.
+ *
+ * One manifest is written per pool, named
+ * <code>&lt;crawl&gt;-&lt;timestamp&gt;.manifest</code>, in the
+ * <code>_manifests</code> directory of the output path.  The leading
+ * underscore keeps it out of FileInputFormat listings.
+ */
+public class HDFSManifest {
+
+    public static final String MANIFEST_DIR = "_manifests";
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final FileSystem fs;
+    private final Path path;
+    private FSDataOutputStream out = null;
+
+    public HDFSManifest(FileSystem fs, String outputPath, String crawlName) {
+        this.fs = fs;
+        this.path = new Path(new Path(outputPath, MANIFEST_DIR),
+                             crawlName + "-" + ArchiveUtils.get14DigitDate() + MANIFEST_SUFFIX);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return bytes of entries written so far, all of them flushed
+     */
+    public synchronized long getLength() throws IOException {
+        return (out == null) ? 0 : out.getPos();
+    }
+
+    /**
+     * Appends an entry and flushes it to the datanodes.  The manifest
+     * file is created on the first call.
+     *
+     * @param entry description of a closed file
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized void append(JSONObject entry) throws IOException {
+        if (out == null) {
+            fs.mkdirs(path.getParent());
+            out = fs.create(path, false);
+            LOG.info("Opened manifest " + path);
+        }
+
+        out.write((entry.toString() + "\n").getBytes("UTF-8"));
+        out.hflush();
+    }
+
+    public synchronized void close() {
+        if (out == null)
+            return;
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close manifest " + path, e);
+        }
+        out = null;
+    }
+}
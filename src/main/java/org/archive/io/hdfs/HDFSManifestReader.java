@@ -0,0 +1,212 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Tails the manifests written by {@link HDFSManifest}.
+ *
+ * Each call to {@link #poll()} returns the entries appended since the
+ * previous call, reading only the new bytes of each manifest.  Only the
+ * small manifest directory is listed, never the output directories, so an
+ * incremental consumer does work proportional to the number of new files.
+ * The read offsets can be saved with {@link #getOffsets()} and handed back
+ * to {@link #setOffsets(Map)} to resume after a restart.  Files written
+ * with dictionary compression need their dictionary to be read, see
+ * {@link #getDictionary(Entry)}.
+ */
+public class HDFSManifestReader {
+
+    /**
+     * One closed output file.
+     */
+    public static class Entry {
+        public String path;
+        public long size;
+        public long records;
+        public String firstCrawlTime;
+        public String lastCrawlTime;
+        public String minUrlHash;
+        public String maxUrlHash;
+
+        public static Entry fromJson(JSONObject json) throws JSONException {
+            Entry entry = new Entry();
+            entry.path = json.getString("path");
+            entry.size = json.getLong("size");
+            entry.records = json.getLong("records");
+            entry.firstCrawlTime = json.optString("firstCrawlTime", null);
+            entry.lastCrawlTime = json.optString("lastCrawlTime", null);
+            entry.minUrlHash = json.optString("minUrlHash", null);
+            entry.maxUrlHash = json.optString("maxUrlHash", null);
+            return entry;
+        }
+
+        public String toString() {
+            return path + "\t" + size + "\t" + records + "\t" + firstCrawlTime + "\t" +
+                lastCrawlTime + "\t" + minUrlHash + "\t" + maxUrlHash;
+        }
+    }
+
+    private final FileSystem fs;
+    private final Path manifestDir;
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+
+    /**
+     * @param fs file system holding the crawl output
+     * @param outputPath the writer's <code>hdfsOutputPath</code>
+     */
+    public HDFSManifestReader(FileSystem fs, String outputPath) {
+        this.fs = fs;
+        this.manifestDir = new Path(outputPath, HDFSManifest.MANIFEST_DIR);
+    }
+
+    /**
+     * @return read offset of every manifest seen so far, keyed by name
+     */
+    public Map<String, Long> getOffsets() {
+        return new HashMap<String, Long>(offsets);
+    }
+
+    /**
+     * Resumes from previously saved offsets.
+     */
+    public void setOffsets(Map<String, Long> saved) {
+        offsets.clear();
+        offsets.putAll(saved);
+    }
+
+    /**
+     * Reads the dictionary the values of an entry's file were compressed
+     * with, to be handed to {@link HDFSWriterDocument#setDictionary(byte[])}
+     * or {@link DeflateDictionary#decompressValue(byte[], org.apache.hadoop.io.Text)}.
+     *
+     * @return the dictionary, or null if the file was written without one
+     * @throws IOException if the file cannot be read
+     */
+    public byte [] getDictionary(Entry entry) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(fs.getConf(),
+                                                             SequenceFile.Reader.file(fs.makeQualified(new Path(entry.path))));
+        try {
+            return DeflateDictionary.fromMetadata(reader.getMetadata());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the entries appended since the last call.
+     *
+     * @return new entries, oldest manifest first
+     * @throws IOException if a manifest cannot be read
+     */
+    public List<Entry> poll() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        if (!fs.exists(manifestDir))
+            return entries;
+
+        FileStatus [] manifests = fs.listStatus(manifestDir);
+        Arrays.sort(manifests);
+
+        for (FileStatus manifest : manifests) {
+            String name = manifest.getPath().getName();
+            if (!name.endsWith(HDFSManifest.MANIFEST_SUFFIX))
+                continue;
+
+            Long offset = offsets.get(name);
+            long consumed = readFrom(manifest.getPath(), (offset == null) ? 0 : offset.longValue(), entries);
+            offsets.put(name, Long.valueOf(consumed));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Reads complete lines from <code>offset</code> up to the last byte
+     * the writer has flushed.  A trailing partial line is left for the
+     * next poll.
+     *
+     * @return offset just past the last complete line
+     */
+    private long readFrom(Path manifest, long offset, List<Entry> entries) throws IOException {
+        FSDataInputStream in = fs.open(manifest);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+        byte [] buf = new byte [8192];
+        long pos = offset;
+
+        try {
+            in.seek(offset);
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] != '\n')
+                        continue;
+
+                    line.write(buf, start, i - start);
+                    pos += line.size() + 1;
+                    parseLine(line.toString("UTF-8"), manifest, entries);
+                    line.reset();
+                    start = i + 1;
+                }
+                line.write(buf, start, n - start);
+            }
+        } finally {
+            in.close();
+        }
+
+        return pos;
+    }
+
+    private void parseLine(String line, Path manifest, List<Entry> entries) throws IOException {
+        if (line.trim().length() == 0)
+            return;
+
+        try {
+            entries.add(Entry.fromJson(new JSONObject(line)));
+        } catch (JSONException e) {
+            throw new IOException("Corrupt entry in " + manifest + ": " + line);
+        }
+    }
+
+    static void printUsage() {
+        System.out.println("HDFSManifestReader <output-path> [poll-interval-seconds]");
+        System.exit(1);
+    }
+
+    /**
+     * Prints manifest entries as they appear, one tab separated line per
+     * closed file.  Without a poll interval the entries present now are
+     * printed and the reader exits.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            printUsage();
+
+        Path output = new Path(args[0]);
+        FileSystem fs = output.getFileSystem(new Configuration());
+        HDFSManifestReader reader = new HDFSManifestReader(fs, output.toString());
+        long interval = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 0;
+
+        do {
+            for (Entry entry : reader.poll())
+                System.out.println(entry);
+            if (interval > 0)
+                Thread.sleep(interval);
+        } while (interval > 0);
+    }
+}
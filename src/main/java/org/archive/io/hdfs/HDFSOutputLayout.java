@@ -0,0 +1,187 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Maps the creation time of a file to the directory it is written into.
+ *
+ * The layout is a template relative to the output path, for example
+ * <code>${crawl}/${yyyy}/${MM}/${dd}/${HH}/</code>.  The supported
+ * variables are <code>${crawl}</code>, <code>${prefix}</code>,
+ * <code>${yyyy}</code>, <code>${MM}</code>, <code>${dd}</code>,
+ * <code>${HH}</code> and <code>${mm}</code>; times are in UTC.
+ * Directories are created the first time they are needed and remembered,
+ * so the namenode only sees one <code>mkdirs</code> per directory.
+ */
+public class HDFSOutputLayout {
+
+    private static final String [] VARIABLES =
+    { "crawl", "prefix", "yyyy", "MM", "dd", "HH", "mm" };
+
+    private final String basePath;
+    private final String crawl;
+    private final String prefix;
+
+    /** Template split into literal text and variable indexes */
+    private final List<Object> parts = new ArrayList<Object>();
+
+    /** Patterns of the directory names at each level of the template */
+    private final List<Pattern> levels = new ArrayList<Pattern>();
+
+    private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    private final ConcurrentHashMap<String, Boolean> createdDirs = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param basePath output path the layout is relative to
+     * @param template layout template
+     * @param crawl value of <code>${crawl}</code>
+     * @param prefix value of <code>${prefix}</code>
+     * @throws IllegalArgumentException if the template has an unknown variable
+     */
+    public HDFSOutputLayout(String basePath, String template, String crawl, String prefix) {
+        this.basePath = basePath.endsWith("/") ? basePath.substring(0, basePath.length() - 1) : basePath;
+        this.crawl = crawl;
+        this.prefix = prefix;
+
+        int pos = 0;
+        while (pos < template.length()) {
+            int start = template.indexOf("${", pos);
+            if (start == -1) {
+                parts.add(template.substring(pos));
+                break;
+            }
+            int end = template.indexOf('}', start);
+            if (end == -1)
+                throw new IllegalArgumentException("Unterminated variable in layout " + template);
+
+            if (start > pos)
+                parts.add(template.substring(pos, start));
+
+            String name = template.substring(start + 2, end);
+            int index = -1;
+            for (int i = 0; i < VARIABLES.length; i++) {
+                if (VARIABLES[i].equals(name))
+                    index = i;
+            }
+            if (index == -1)
+                throw new IllegalArgumentException("Unknown variable ${" + name + "} in layout " + template);
+
+            parts.add(Integer.valueOf(index));
+            pos = end + 1;
+        }
+
+        StringBuilder level = new StringBuilder();
+        for (Object part : parts) {
+            if (part instanceof String) {
+                String [] names = ((String)part).split("/", -1);
+                for (int i = 0; i < names.length; i++) {
+                    if (i > 0)
+                        addLevel(level);
+                    if (names[i].length() > 0)
+                        level.append(Pattern.quote(names[i]));
+                }
+                continue;
+            }
+            switch (((Integer)part).intValue()) {
+            case 0: level.append(Pattern.quote(crawl)); break;
+            case 1: level.append(Pattern.quote(prefix)); break;
+            case 2: level.append("\\d{4}"); break;
+            default: level.append("\\d{2}"); break;
+            }
+        }
+        addLevel(level);
+    }
+
+    private void addLevel(StringBuilder level) {
+        if (level.length() > 0)
+            levels.add(Pattern.compile(level.toString()));
+        level.setLength(0);
+    }
+
+    /**
+     * @return number of directory levels between the output path and the
+     * directories files are written into
+     */
+    public int getDepth() {
+        return levels.size();
+    }
+
+    /**
+     * Tells whether <code>name</code> is a directory this layout creates
+     * at <code>depth</code> below the output path, 0 being the first
+     * level, for its crawl and prefix and any time.  Lets a walk of the
+     * output path skip the directories of other crawls.
+     */
+    public boolean matches(int depth, String name) {
+        return depth < levels.size() && levels.get(depth).matcher(name).matches();
+    }
+
+    /**
+     * Returns the directory for a file created at <code>timeMillis</code>,
+     * creating it if this layout has not done so yet.
+     *
+     * @param fs file system to create the directory on
+     * @param timeMillis creation time of the file
+     * @return directory path without a trailing slash
+     * @throws IOException if the directory cannot be created
+     */
+    public String directoryFor(FileSystem fs, long timeMillis) throws IOException {
+        String dir = expand(timeMillis);
+        String key = fs.getUri() + dir;
+
+        if (!createdDirs.containsKey(key)) {
+            fs.mkdirs(new Path(dir));
+            createdDirs.put(key, Boolean.TRUE);
+        }
+
+        return dir;
+    }
+
+    /**
+     * Expands the template for <code>timeMillis</code>.
+     */
+    public synchronized String expand(long timeMillis) {
+        calendar.setTimeInMillis(timeMillis);
+
+        StringBuilder dir = new StringBuilder(basePath.length() + 32);
+        dir.append(basePath).append('/');
+
+        for (Object part : parts) {
+            if (part instanceof String) {
+                dir.append((String)part);
+                continue;
+            }
+            switch (((Integer)part).intValue()) {
+            case 0: dir.append(crawl); break;
+            case 1: dir.append(prefix); break;
+            case 2: dir.append(calendar.get(Calendar.YEAR)); break;
+            case 3: pad(dir, calendar.get(Calendar.MONTH) + 1); break;
+            case 4: pad(dir, calendar.get(Calendar.DAY_OF_MONTH)); break;
+            case 5: pad(dir, calendar.get(Calendar.HOUR_OF_DAY)); break;
+            case 6: pad(dir, calendar.get(Calendar.MINUTE)); break;
+            }
+        }
+
+        int length = dir.length();
+        while (length > 1 && dir.charAt(length - 1) == '/')
+            length--;
+        dir.setLength(length);
+
+        return dir.toString();
+    }
+
+    private static void pad(StringBuilder sb, int value) {
+        if (value < 10)
+            sb.append('0');
+        sb.append(value);
+    }
+}
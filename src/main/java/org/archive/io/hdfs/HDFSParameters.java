@@ -1,6 +1,7 @@
 package org.archive.io.hdfs;
 
 import java.util.List;
+import java.util.Map;
 
 import org.archive.io.hdfs.HDFSWriterPoolSettings;
 
@@ -36,14 +37,52 @@ public class HDFSParameters {
     public static final String NAMED_FIELD_REQUEST = "Request";
     public static final String NAMED_FIELD_RESPONSE = "Response";
 
+    /** ROLL POLICIES **/
+    public static final String ROLL_POLICY_SIZE = "SIZE";
+    public static final String ROLL_POLICY_BLOCK = "BLOCK";
+
     private String prefix = "";
     private String suffix = ".seq";
     private boolean compression	= false;
     private long maxSize = 63*1024*1024;
     private int hdfsReplication	= 3;
+    private int hdfsInitialReplication = 0;
+    private long deferredReplicationWaitMs = 5*60*1000;
     private String hdfsCompressionType = "DEFAULT";
+    private long hdfsBlockSize = 0;
+    private int hdfsBufferSize = 0;
+    private int hdfsBytesPerChecksum = 0;
+    private String rollPolicy = ROLL_POLICY_SIZE;
     private String hdfsOutputPath = "/crawl";
+    private String hdfsOutputLayout = "";
+    private String crawlName = "";
+    private boolean manifest = false;
+    private boolean statsSidecar = false;
+    private long hflushIntervalMs = 0;
+    private int checkpointThreads = 32;
+    private long checkpointTimeoutMs = 60*1000;
+    private long leaseRecoveryTimeoutMs = 5*60*1000;
+    private int closeThreads = 32;
+    private long closeTimeoutMs = 2*60*1000;
+    private int appendRetries = 3;
+    private int groupCommitFiles = 0;
+    private boolean adaptiveCompression = false;
+    private String compressionLevelMin = AdaptiveCompression.NONE;
+    private String compressionLevelMax = "BEST_COMPRESSION";
+    private long adaptiveCompressionIntervalMs = 30*1000;
+    private double adaptiveLoadHigh = 0.9;
+    private double adaptiveLoadLow = 0.5;
+    private boolean dictionaryCompression = false;
+    private int dictionarySamples = 200;
+    private int dictionarySize = DeflateDictionary.MAX_SIZE;
+    private String recordFormat = "0.3";
+    private long appendRetryBackoffMs = 500;
+    private long appendRetryMaxBackoffMs = 10*1000;
     private String hdfsFsDefaultName = "hdfs://localhost:9000";
+    private int hdfsClientCount = 0;
+    private volatile long writerBytesPerSecond = 0;
+    private volatile long globalBytesPerSecond = 0;
+    private Map<String, String> hdfsClientProperties;
     private String urlFieldName = NAMED_FIELD_URL;
     private String crawlTimeFieldName = NAMED_FIELD_CRAWL_TIME;
     private String ipFieldName = NAMED_FIELD_IP;
@@ -177,6 +216,40 @@ public class HDFSParameters {
         this.hdfsReplication = hdfsReplication;
     }
 
+    /**
+     * Replication used while a file is being written.  When greater than
+     * zero and lower than {@link #getHdfsReplication()}, files are opened
+     * with this replication and raised to the target replication in the
+     * background once they are closed.  Zero (the default) writes at the
+     * target replication directly.
+     */
+    public int getHdfsInitialReplication() {
+        return hdfsInitialReplication;
+    }
+
+    public void setHdfsInitialReplication(int hdfsInitialReplication) {
+        this.hdfsInitialReplication = hdfsInitialReplication;
+    }
+
+    /**
+     * Whether files are written at a lower replication and raised after close.
+     */
+    public boolean isDeferredReplication() {
+        return hdfsInitialReplication > 0 && hdfsInitialReplication < hdfsReplication;
+    }
+
+    /**
+     * How long the crawl waits on shutdown for deferred replication to
+     * complete before reporting the files that are still under-replicated.
+     */
+    public long getDeferredReplicationWaitMs() {
+        return deferredReplicationWaitMs;
+    }
+
+    public void setDeferredReplicationWaitMs(long deferredReplicationWaitMs) {
+        this.deferredReplicationWaitMs = deferredReplicationWaitMs;
+    }
+
     public String getHdfsCompressionType() {
         return hdfsCompressionType;
     }
@@ -185,6 +258,365 @@ public class HDFSParameters {
         this.hdfsCompressionType = hdfsCompressionType;
     }
 
+    /**
+     * Directory layout below {@link #getHdfsOutputPath()}, for example
+     * <code>${crawl}/${yyyy}/${MM}/${dd}/${HH}/</code>.  Empty (the
+     * default) writes every file directly into the output path.
+     *
+     * @see HDFSOutputLayout
+     */
+    public String getHdfsOutputLayout() {
+        return hdfsOutputLayout;
+    }
+
+    public void setHdfsOutputLayout(String hdfsOutputLayout) {
+        this.hdfsOutputLayout = hdfsOutputLayout;
+    }
+
+    /**
+     * Name substituted for <code>${crawl}</code> in the output layout,
+     * defaults to the prefix.
+     */
+    public String getCrawlName() {
+        if (crawlName == null || crawlName.isEmpty())
+            return getPrefix();
+
+        return crawlName;
+    }
+
+    public void setCrawlName(String crawlName) {
+        this.crawlName = crawlName;
+    }
+
+    /**
+     * Whether closed files are recorded in an append-only manifest under
+     * <code>hdfsOutputPath/_manifests</code>.
+     *
+     * @see HDFSManifest
+     */
+    public boolean isManifest() {
+        return manifest;
+    }
+
+    public void setManifest(boolean manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Whether the statistics of each closed file (record count, raw and
+     * compressed bytes, crawl time range, status codes, top MIME types and
+     * seeds) are written to a small JSON sidecar named
+     * <code>_&lt;file&gt;.stats</code> next to it.
+     *
+     * @see HDFSFileStats#toSummary(long)
+     */
+    public boolean isStatsSidecar() {
+        return statsSidecar;
+    }
+
+    public void setStatsSidecar(boolean statsSidecar) {
+        this.statsSidecar = statsSidecar;
+    }
+
+    /**
+     * Longest time in milliseconds that appended records may stay
+     * invisible to readers of an open file.  Writers hflush after an
+     * append once this much time has passed since the last flush, and the
+     * pool flushes idle writers on the same interval.  0, the default,
+     * flushes only when the file is closed.
+     *
+     * @see HDFSTailReader
+     */
+    public long getHflushIntervalMs() {
+        return hflushIntervalMs;
+    }
+
+    public void setHflushIntervalMs(long hflushIntervalMs) {
+        this.hflushIntervalMs = hflushIntervalMs;
+    }
+
+    /**
+     * Number of threads syncing open files in parallel during a crawl
+     * checkpoint.
+     *
+     * @see HDFSWriterCheckpoint
+     */
+    public int getCheckpointThreads() {
+        return checkpointThreads;
+    }
+
+    public void setCheckpointThreads(int checkpointThreads) {
+        this.checkpointThreads = checkpointThreads;
+    }
+
+    /**
+     * Time in milliseconds a crawl checkpoint waits for all open files to
+     * be synced before it fails.
+     */
+    public long getCheckpointTimeoutMs() {
+        return checkpointTimeoutMs;
+    }
+
+    public void setCheckpointTimeoutMs(long checkpointTimeoutMs) {
+        this.checkpointTimeoutMs = checkpointTimeoutMs;
+    }
+
+    /**
+     * Time in milliseconds recovery from a checkpoint waits for HDFS to
+     * close each file left open by the previous crawl.
+     */
+    public long getLeaseRecoveryTimeoutMs() {
+        return leaseRecoveryTimeoutMs;
+    }
+
+    public void setLeaseRecoveryTimeoutMs(long leaseRecoveryTimeoutMs) {
+        this.leaseRecoveryTimeoutMs = leaseRecoveryTimeoutMs;
+    }
+
+    /**
+     * Number of threads closing and renaming files in parallel when the
+     * writer pool is closed.
+     */
+    public int getCloseThreads() {
+        return closeThreads;
+    }
+
+    public void setCloseThreads(int closeThreads) {
+        this.closeThreads = closeThreads;
+    }
+
+    /**
+     * Time in milliseconds the writer pool waits for its files to close.
+     * Files still closing after that are reported and left
+     * <code>.open</code>.
+     */
+    public long getCloseTimeoutMs() {
+        return closeTimeoutMs;
+    }
+
+    public void setCloseTimeoutMs(long closeTimeoutMs) {
+        this.closeTimeoutMs = closeTimeoutMs;
+    }
+
+    /**
+     * Number of times a record whose append failed is retried on another
+     * writer before it is dropped.  0 disables retries.
+     */
+    public int getAppendRetries() {
+        return appendRetries;
+    }
+
+    public void setAppendRetries(int appendRetries) {
+        this.appendRetries = appendRetries;
+    }
+
+    /**
+     * Delay in milliseconds before the first retry of a failed append,
+     * doubled for every further retry up to
+     * {@link #getAppendRetryMaxBackoffMs()}.
+     */
+    public long getAppendRetryBackoffMs() {
+        return appendRetryBackoffMs;
+    }
+
+    public void setAppendRetryBackoffMs(long appendRetryBackoffMs) {
+        this.appendRetryBackoffMs = appendRetryBackoffMs;
+    }
+
+    /**
+     * Number of files shared by all ToeThreads with group commit, 0 (the
+     * default) to give each thread a writer of its own from the pool.
+     * The pool must allow at least this many active writers.
+     *
+     * @see HDFSGroupCommitWriter
+     */
+    public int getGroupCommitFiles() {
+        return groupCommitFiles;
+    }
+
+    public void setGroupCommitFiles(int groupCommitFiles) {
+        this.groupCommitFiles = groupCommitFiles;
+    }
+
+    /**
+     * Whether the compression level of each new file follows the CPU
+     * headroom of the crawler.  Only applies to the default (zlib) codec.
+     *
+     * @see AdaptiveCompression
+     */
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    public void setAdaptiveCompression(boolean adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    /**
+     * Cheapest level adaptive compression may use: NONE, BEST_SPEED,
+     * DEFAULT_COMPRESSION or BEST_COMPRESSION.
+     */
+    public String getCompressionLevelMin() {
+        return compressionLevelMin;
+    }
+
+    public void setCompressionLevelMin(String compressionLevelMin) {
+        this.compressionLevelMin = compressionLevelMin;
+    }
+
+    /**
+     * Strongest level adaptive compression may use, and the level it
+     * starts at.
+     */
+    public String getCompressionLevelMax() {
+        return compressionLevelMax;
+    }
+
+    public void setCompressionLevelMax(String compressionLevelMax) {
+        this.compressionLevelMax = compressionLevelMax;
+    }
+
+    /**
+     * Minimum time in milliseconds between two changes of the adaptive
+     * compression level.
+     */
+    public long getAdaptiveCompressionIntervalMs() {
+        return adaptiveCompressionIntervalMs;
+    }
+
+    public void setAdaptiveCompressionIntervalMs(long adaptiveCompressionIntervalMs) {
+        this.adaptiveCompressionIntervalMs = adaptiveCompressionIntervalMs;
+    }
+
+    /**
+     * System load per core above which adaptive compression steps down.
+     */
+    public double getAdaptiveLoadHigh() {
+        return adaptiveLoadHigh;
+    }
+
+    public void setAdaptiveLoadHigh(double adaptiveLoadHigh) {
+        this.adaptiveLoadHigh = adaptiveLoadHigh;
+    }
+
+    /**
+     * System load per core below which adaptive compression steps up.
+     */
+    public double getAdaptiveLoadLow() {
+        return adaptiveLoadLow;
+    }
+
+    public void setAdaptiveLoadLow(double adaptiveLoadLow) {
+        this.adaptiveLoadLow = adaptiveLoadLow;
+    }
+
+    /**
+     * Whether record values are deflated with a preset dictionary trained
+     * from the first captures.  Takes precedence over adaptive compression
+     * for files opened once the dictionary is trained.
+     *
+     * @see DeflateDictionary
+     */
+    public boolean isDictionaryCompression() {
+        return dictionaryCompression;
+    }
+
+    public void setDictionaryCompression(boolean dictionaryCompression) {
+        this.dictionaryCompression = dictionaryCompression;
+    }
+
+    /**
+     * Number of captures the compression dictionary is trained on.
+     */
+    public int getDictionarySamples() {
+        return dictionarySamples;
+    }
+
+    public void setDictionarySamples(int dictionarySamples) {
+        this.dictionarySamples = dictionarySamples;
+    }
+
+    /**
+     * Size in bytes of the compression dictionary, at most 32768.
+     */
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    public void setDictionarySize(int dictionarySize) {
+        this.dictionarySize = dictionarySize;
+    }
+
+    /**
+     * Version of the document format written, "0.3" or "0.4".  Version 0.4
+     * adds a section table locating the request, response headers and body.
+     *
+     * @see HDFSSectionTable
+     */
+    public String getRecordFormat() {
+        return recordFormat;
+    }
+
+    public void setRecordFormat(String recordFormat) {
+        this.recordFormat = recordFormat;
+    }
+
+    public long getAppendRetryMaxBackoffMs() {
+        return appendRetryMaxBackoffMs;
+    }
+
+    public void setAppendRetryMaxBackoffMs(long appendRetryMaxBackoffMs) {
+        this.appendRetryMaxBackoffMs = appendRetryMaxBackoffMs;
+    }
+
+    /**
+     * HDFS block size for new files, zero uses the file system default.
+     */
+    public long getHdfsBlockSize() {
+        return hdfsBlockSize;
+    }
+
+    public void setHdfsBlockSize(long hdfsBlockSize) {
+        this.hdfsBlockSize = hdfsBlockSize;
+    }
+
+    /**
+     * Size of the client side write buffer, zero uses
+     * <code>io.file.buffer.size</code>.
+     */
+    public int getHdfsBufferSize() {
+        return hdfsBufferSize;
+    }
+
+    public void setHdfsBufferSize(int hdfsBufferSize) {
+        this.hdfsBufferSize = hdfsBufferSize;
+    }
+
+    /**
+     * Bytes per checksum for new files, zero uses the file system default.
+     */
+    public int getHdfsBytesPerChecksum() {
+        return hdfsBytesPerChecksum;
+    }
+
+    public void setHdfsBytesPerChecksum(int hdfsBytesPerChecksum) {
+        this.hdfsBytesPerChecksum = hdfsBytesPerChecksum;
+    }
+
+    /**
+     * When files are rolled over.  {@link #ROLL_POLICY_SIZE} (the default)
+     * closes a file once it has grown past maxSize.  {@link #ROLL_POLICY_BLOCK}
+     * rounds maxSize to a whole number of HDFS blocks (at least one) and
+     * closes the file before a record would spill into a further block.
+     */
+    public String getRollPolicy() {
+        return rollPolicy;
+    }
+
+    public void setRollPolicy(String rollPolicy) {
+        this.rollPolicy = rollPolicy.toUpperCase();
+    }
+
     public String getHdfsOutputPath() {
         return hdfsOutputPath;
     }
@@ -201,6 +633,57 @@ public class HDFSParameters {
         this.hdfsFsDefaultName = hdfsFsDefaultName;
     }
 
+    /**
+     * Number of independent HDFS clients the writers are spread across.
+     * Zero (the default) shares the process wide cached client.
+     */
+    public int getHdfsClientCount() {
+        return hdfsClientCount;
+    }
+
+    public void setHdfsClientCount(int hdfsClientCount) {
+        this.hdfsClientCount = hdfsClientCount;
+    }
+
+    /**
+     * Extra Hadoop client properties, for example
+     * <code>dfs.client-write-packet-size</code> or
+     * <code>dfs.client.socket-timeout</code>.  Only take effect for
+     * clients opened because of {@link #getHdfsClientCount()}, since the
+     * cached client may already exist.
+     */
+    public Map<String, String> getHdfsClientProperties() {
+        return hdfsClientProperties;
+    }
+
+    public void setHdfsClientProperties(Map<String, String> hdfsClientProperties) {
+        this.hdfsClientProperties = hdfsClientProperties;
+    }
+
+    /**
+     * Bandwidth limit for each writer in bytes per second, zero for no
+     * limit.  May be changed while the crawl is running.
+     */
+    public long getWriterBytesPerSecond() {
+        return writerBytesPerSecond;
+    }
+
+    public void setWriterBytesPerSecond(long writerBytesPerSecond) {
+        this.writerBytesPerSecond = writerBytesPerSecond;
+    }
+
+    /**
+     * Bandwidth limit for all writers together in bytes per second, zero
+     * for no limit.  May be changed while the crawl is running.
+     */
+    public long getGlobalBytesPerSecond() {
+        return globalBytesPerSecond;
+    }
+
+    public void setGlobalBytesPerSecond(long globalBytesPerSecond) {
+        this.globalBytesPerSecond = globalBytesPerSecond;
+    }
+
     public boolean getFrequentFlushes() {
 
         return(frequentFlushes);
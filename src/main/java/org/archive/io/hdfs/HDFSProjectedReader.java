@@ -0,0 +1,479 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Reads the records of an HDFSWriter SequenceFile for jobs that only need
+ * the fields and the response headers, such as CountCharsets.
+ *
+ * In files without SequenceFile compression, which includes files written
+ * with dictionary compression, each value is read only up to the end of
+ * its response headers plus the charset sniff window of the document (see
+ * {@link HDFSWriterDocument#setCharsetSniffWindow(int)}).  The reader then
+ * seeks past the rest of the body, so large bodies are neither read nor
+ * copied.  The document is parsed with
+ * {@link HDFSWriterDocument#wrapPrefix}; its body is cut off and it cannot
+ * be written back.  Dictionary compressed values are read whole, since a
+ * prefix of them cannot be parsed.
+ *
+ * RECORD and BLOCK compressed values have to be decompressed to be
+ * parsed at all, so in those files every value is read whole through a
+ * SequenceFile.Reader.
+ *
+ * Jobs that need the body of documents too large to hold in memory can
+ * read records with {@link #next(Writable, HDFSWriterStreamParser)}
+ * instead, which leaves the body in the file to be streamed.
+ *
+ * Values must be Text or BytesWritable holding the four byte length and
+ * the document, as the HDFSWriter writes them.
+ *
+ * A reader can be limited to a split of the file, as a map task reads it:
+ * like a SequenceFile record reader it starts at the first sync marker
+ * after the start of the split and stops at the first sync marker after
+ * its end.
+ *
+ * A {@link RecordFilter} set on the reader is asked about each record as
+ * soon as its fields and response headers are parsed; the rest of a
+ * rejected record is skipped without being read, even when projection
+ * is off.  Only dictionary compressed documents and records of
+ * compressed files are read whole before they are filtered.
+ */
+public class HDFSProjectedReader {
+
+    /**
+     * Decides from the fields and response headers of a document whether
+     * its record is returned.
+     */
+    public interface RecordFilter {
+        boolean accept(HDFSWriterDocument doc);
+    }
+
+    /** Bytes of a document read before its headers are looked for */
+    public static final int DEFAULT_PREFIX_LENGTH = 8192;
+
+    /** SequenceFile record length announcing a sync marker */
+    private static final int SYNC_ESCAPE = -1;
+    private static final int SYNC_HASH_SIZE = 16;
+
+    /** Results of reading a record */
+    private static final int END = 0;
+    private static final int REJECTED = 1;
+    private static final int ACCEPTED = 2;
+
+    private final Path path;
+    private final FSDataInputStream in;
+    private final SequenceFile.Reader reader;
+    private final long fileLength;
+    private final boolean compressed;
+    private boolean projection = true;
+    private final boolean textValues;
+    private final byte [] dictionary;
+    private RecordFilter filter = null;
+
+    private int prefixLength = DEFAULT_PREFIX_LENGTH;
+
+    private byte [] keyBuf = new byte [1024];
+    private final DataInputBuffer keyIn = new DataInputBuffer();
+    private byte [] valueBuf = new byte [DEFAULT_PREFIX_LENGTH];
+    private Writable value = null;
+
+    private final long start;
+    private final long end;
+
+    private long bytesRead = 0;
+    private long bytesSkipped = 0;
+    private long recordsSkipped = 0;
+
+    /**
+     * @param fs file system holding the file
+     * @param path the SequenceFile
+     * @param conf configuration used to read it
+     */
+    public HDFSProjectedReader(FileSystem fs, Path path, Configuration conf) throws IOException {
+        this(fs, path, conf, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param fs file system holding the file
+     * @param path the SequenceFile
+     * @param conf configuration used to read it
+     * @param start start of the split to read
+     * @param length length of the split
+     */
+    public HDFSProjectedReader(FileSystem fs, Path path, Configuration conf, long start, long length)
+        throws IOException {
+        this.path = path;
+        this.fileLength = fs.getFileStatus(path).getLen();
+        this.in = fs.open(path);
+
+        SequenceFile.Reader opened = null;
+        try {
+            opened = new SequenceFile.Reader(conf,
+                                             SequenceFile.Reader.stream(in),
+                                             SequenceFile.Reader.length(fileLength));
+        } finally {
+            if (opened == null)
+                in.close();
+        }
+        this.reader = opened;
+
+        Class<?> valueClass = reader.getValueClass();
+        if (valueClass != Text.class && valueClass != BytesWritable.class) {
+            reader.close();
+            throw new IOException("Unsupported value class " + valueClass.getName() + " in " + path);
+        }
+        this.textValues = (valueClass == Text.class);
+        this.compressed = reader.isCompressed();
+        this.dictionary = DeflateDictionary.fromMetadata(reader.getMetadata());
+
+        this.end = (length >= fileLength - start) ? fileLength : start + length;
+        if (start > reader.getPosition())
+            reader.sync(start);
+        this.start = reader.getPosition();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if values are read only up to their response headers,
+     * false if projection is off or the file is compressed and values are
+     * read whole
+     */
+    public boolean isProjected() {
+        return projection && !compressed;
+    }
+
+    /**
+     * Sets whether values are read only up to their response headers,
+     * where the file allows it.  On by default.
+     */
+    public void setProjection(boolean projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * @return the position in the file of the next record, or of the block
+     * holding it in BLOCK compressed files
+     */
+    public long getPosition() throws IOException {
+        return compressed ? reader.getPosition() : in.getPos();
+    }
+
+    /**
+     * @return the fraction of the split read
+     */
+    public float getProgress() throws IOException {
+        if (end == start)
+            return 0.0f;
+        return Math.min(1.0f, (getPosition() - start) / (float)(end - start));
+    }
+
+    /**
+     * Sets the number of bytes of a document read before its headers are
+     * looked for.  More are read when the headers end later.
+     */
+    public void setPrefixLength(int prefixLength) {
+        this.prefixLength = Math.max(prefixLength, 64);
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Sets the filter records have to pass to be returned, or null for
+     * none.
+     */
+    public void setFilter(RecordFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return bytes of record values read so far
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return bytes of record values skipped without being read
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    /**
+     * @return records rejected by the filter so far
+     */
+    public long getRecordsSkipped() {
+        return recordsSkipped;
+    }
+
+    /**
+     * Reads the next record passing the filter.  The document refers to a
+     * buffer of this reader until the next call.
+     *
+     * @param key set to the key of the record
+     * @param doc set to the document of the record
+     * @return false at the end of the file
+     */
+    public boolean next(Writable key, HDFSWriterDocument doc) throws IOException {
+        doc.setDictionary(dictionary);
+
+        int result;
+        do {
+            result = compressed ? nextWhole(key, doc) : nextDocument(key, doc);
+        } while (result == REJECTED);
+        return (result == ACCEPTED);
+    }
+
+    private boolean accept(HDFSWriterDocument doc) {
+        if (filter == null || filter.accept(doc))
+            return true;
+        recordsSkipped++;
+        return false;
+    }
+
+    /**
+     * Reads the next record of an uncompressed file.
+     *
+     * @return END, or whether the filter accepted the record
+     */
+    private int nextDocument(Writable key, HDFSWriterDocument doc) throws IOException {
+        int valueLength = nextRecord(key);
+        if (valueLength < 0)
+            return END;
+        long valueStart = in.getPos();
+
+        // the value is the serialized Text or BytesWritable, then the
+        // four byte length written by the HDFSWriter, then the document
+        int available = read(0, Math.min(valueLength, 5 + 4 + prefixLength));
+        int lengthSize = textValues ? WritableUtils.decodeVIntSize(valueBuf[0]) : 4;
+        int bytesLength = textValues ? WritableComparator.readVInt(valueBuf, 0) :
+            WritableComparator.readInt(valueBuf, 0);
+        int docOffset = lengthSize + 4;
+        int docLength = bytesLength - 4;
+        if (docLength < 0 || docOffset + docLength > valueLength)
+            throw new IOException("Bad record value at " + valueStart + " in " + path);
+
+        boolean accepted;
+        if ((!projection && filter == null) ||
+            DeflateDictionary.isCompressed(valueBuf, docOffset, available - docOffset)) {
+            available = read(available, docOffset + docLength);
+            doc.wrap(valueBuf, docOffset, docLength);
+            accepted = accept(doc);
+        } else {
+            // parse the fields and response headers from a prefix, which is
+            // all the filter looks at
+            while (!doc.wrapPrefix(valueBuf, docOffset, available - docOffset, docLength)) {
+                available = read(available, (int)Math.min((long)docOffset + docLength,
+                                                          docOffset + 2L * (available - docOffset)));
+            }
+            accepted = accept(doc);
+
+            if (accepted && doc.isTruncated()) {
+                if (!projection) {
+                    available = read(available, docOffset + docLength);
+                    doc.wrap(valueBuf, docOffset, docLength);
+                } else {
+                    // read enough of the body for the charset to be sniffed
+                    int needed = doc.getResponseBodyOffset() + doc.getCharsetSniffWindow();
+                    if (available < needed) {
+                        available = read(available, (int)Math.min((long)docOffset + docLength, needed));
+                        doc.wrapPrefix(valueBuf, docOffset, available - docOffset, docLength);
+                    }
+                }
+            }
+        }
+
+        bytesSkipped += valueLength - available;
+        in.seek(valueStart + valueLength);
+        return accepted ? ACCEPTED : REJECTED;
+    }
+
+    /**
+     * Reads the next record with a streaming parser, for documents too
+     * large to be held in memory.  The parser holds the fields and headers
+     * of the document, and its {@link HDFSWriterStreamParser#getBody()}
+     * reads the response body from the file until the next call, which
+     * skips whatever of it was not read.  Values of compressed files are
+     * still read whole.  These records are not counted in
+     * {@link #getBytesRead()} and {@link #getBytesSkipped()}, and the
+     * filter is not applied to them.
+     *
+     * @param key set to the key of the record
+     * @param parser parses the document of the record
+     * @return false at the end of the file
+     */
+    public boolean next(Writable key, HDFSWriterStreamParser parser) throws IOException {
+        parser.setDictionary(dictionary);
+
+        if (compressed) {
+            if (!nextValue(key))
+                return false;
+            byte [] bytes = textValues ? ((Text)value).getBytes() : ((BytesWritable)value).getBytes();
+            int length = textValues ? ((Text)value).getLength() : ((BytesWritable)value).getLength();
+            if (length < 4)
+                throw new IOException("document truncated");
+            parser.parse(new ByteArrayInputStream(bytes, 4, length - 4), length - 4);
+            return true;
+        }
+
+        // leaves the file at the end of the current value
+        parser.skipBody();
+
+        int valueLength = nextRecord(key);
+        if (valueLength < 0)
+            return false;
+        long valueStart = in.getPos();
+
+        int bytesLength = textValues ? WritableUtils.readVInt(in) : in.readInt();
+        in.readInt();
+        int docLength = bytesLength - 4;
+        if (docLength < 0 || in.getPos() - valueStart + docLength != valueLength)
+            throw new IOException("Bad record value at " + valueStart + " in " + path);
+
+        parser.parse(in, docLength);
+        return true;
+    }
+
+    /**
+     * Reads the length and key of the next record of an uncompressed
+     * file.
+     *
+     * @return the length of the value, which starts at the current
+     * position, or -1 at the end of the split
+     */
+    private int nextRecord(Writable key) throws IOException {
+        long position = in.getPos();
+        if (position >= fileLength)
+            return -1;
+
+        // a sync marker; its hash is skipped rather than checked
+        int recordLength = in.readInt();
+        boolean syncSeen = (recordLength == SYNC_ESCAPE);
+        if (syncSeen) {
+            in.seek(in.getPos() + SYNC_HASH_SIZE);
+            if (in.getPos() >= fileLength)
+                return -1;
+            recordLength = in.readInt();
+        }
+
+        // the next split starts with this record
+        if (position >= end && syncSeen)
+            return -1;
+
+        int keyLength = in.readInt();
+        if (keyBuf.length < keyLength)
+            keyBuf = new byte [keyLength];
+        in.readFully(keyBuf, 0, keyLength);
+        keyIn.reset(keyBuf, keyLength);
+        key.readFields(keyIn);
+
+        return recordLength - keyLength;
+    }
+
+    /**
+     * Reads value bytes <code>[from, to)</code> into valueBuf, keeping the
+     * bytes before them.
+     *
+     * @return <code>to</code>
+     */
+    private int read(int from, int to) throws IOException {
+        if (valueBuf.length < to) {
+            byte [] grown = new byte [Math.max(to, (int)Math.min(Integer.MAX_VALUE, valueBuf.length * 2L))];
+            System.arraycopy(valueBuf, 0, grown, 0, from);
+            valueBuf = grown;
+        }
+        in.readFully(valueBuf, from, to - from);
+        bytesRead += to - from;
+        return to;
+    }
+
+    private int nextWhole(Writable key, HDFSWriterDocument doc) throws IOException {
+        if (!nextValue(key))
+            return END;
+
+        if (textValues) {
+            bytesRead += ((Text)value).getLength();
+            doc.wrap((Text)value);
+        } else {
+            bytesRead += ((BytesWritable)value).getLength();
+            doc.wrap((BytesWritable)value);
+        }
+        return accept(doc) ? ACCEPTED : REJECTED;
+    }
+
+    /**
+     * Reads the next record of a compressed file into key and value.
+     *
+     * @return false at the end of the split
+     */
+    private boolean nextValue(Writable key) throws IOException {
+        if (value == null)
+            value = textValues ? new Text() : new BytesWritable();
+
+        long position = reader.getPosition();
+        if (!reader.next(key, value))
+            return false;
+        return !(position >= end && reader.syncSeen());
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    static void printUsage() {
+        System.out.println("HDFSProjectedReader <sequence-file> [prefix-length]");
+        System.exit(1);
+    }
+
+    /**
+     * Prints the URL, status code, content type and charset of each
+     * record, then the value bytes read and skipped.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            printUsage();
+
+        Path path = new Path(args[0]);
+        Configuration conf = new Configuration();
+        HDFSProjectedReader reader = new HDFSProjectedReader(path.getFileSystem(conf), path, conf);
+        if (args.length > 1)
+            reader.setPrefixLength(Integer.parseInt(args[1]));
+
+        Text key = new Text();
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+        long records = 0;
+        long start = System.currentTimeMillis();
+
+        try {
+            while (reader.next(key, doc)) {
+                System.out.println(key + "\t" + doc.getResponseCode() + "\t" +
+                                   doc.getContentType() + "\t" + doc.getCharset());
+                records++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        System.out.println("# " + records + " records in " + (System.currentTimeMillis() - start) + "ms, " +
+                           reader.getBytesRead() + " value bytes read, " + reader.getBytesSkipped() + " skipped" +
+                           (reader.isProjected() ? "" : " (compressed file, values read whole)"));
+    }
+}
@@ -0,0 +1,327 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.archive.io.hdfs.util.ByteScan;
+
+/**
+ * Binary section table of the HDFSWriter/0.4 document format.
+ *
+ * A 0.4 document is the header line, this table, then the same fields,
+ * request and response as a 0.3 document.  The table gives the offset and
+ * length of each section, relative to the start of the document, along
+ * with the HTTP status code and a content type ID, so a reader can find
+ * the body without scanning the fields, the request or the response
+ * headers.  All values are big-endian:
+ *
+ * <pre>
+ *   short  table size in bytes, {@link #SIZE}
+ *   int    fields offset        int  fields length
+ *   int    request offset       int  request length
+ *   int    header offset        int  header length
+ *   int    body offset          int  body length
+ *   int    status code
+ *   short  content type ID
+ * </pre>
+ *
+ * Readers skip any bytes beyond the fields they know, so later versions
+ * can extend the table.  A header length of -1 means the writer could not
+ * find the end of the response headers within {@link #MAX_HEAD} bytes; the
+ * body section then holds the whole response and readers have to scan it.
+ */
+public class HDFSSectionTable {
+
+    /** Size of the table written by this version */
+    public static final int SIZE = 40;
+
+    /** Most response bytes searched for the end of the headers */
+    public static final int MAX_HEAD = 65536;
+
+    /**
+     * Content types with an ID, which is the index into this array.  New
+     * types may only be appended.  ID 0 means the Content-Type header is
+     * missing or not listed here.
+     */
+    private static final String [] CONTENT_TYPES = {
+        null,
+        "text/html",
+        "text/plain",
+        "text/css",
+        "text/xml",
+        "text/javascript",
+        "application/javascript",
+        "application/x-javascript",
+        "application/json",
+        "application/xml",
+        "application/xhtml+xml",
+        "application/rss+xml",
+        "application/atom+xml",
+        "application/pdf",
+        "application/octet-stream",
+        "application/x-shockwave-flash",
+        "image/jpeg",
+        "image/png",
+        "image/gif",
+        "image/svg+xml",
+        "image/x-icon",
+        "image/vnd.microsoft.icon",
+        "video/mp4",
+        "audio/mpeg"
+    };
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private int fieldsOffset;
+    private int fieldsLength;
+    private int requestOffset;
+    private int requestLength;
+    private int headerOffset;
+    private int headerLength;
+    private int bodyOffset;
+    private int bodyLength;
+    private int statusCode;
+    private int contentTypeId;
+
+    private final ByteScan.State bss = new ByteScan.State();
+
+    public int getFieldsOffset() { return fieldsOffset; }
+    public int getFieldsLength() { return fieldsLength; }
+    public int getRequestOffset() { return requestOffset; }
+    public int getRequestLength() { return requestLength; }
+    public int getHeaderOffset() { return headerOffset; }
+    public int getHeaderLength() { return headerLength; }
+    public int getBodyOffset() { return bodyOffset; }
+    public int getBodyLength() { return bodyLength; }
+    public int getStatusCode() { return statusCode; }
+    public int getContentTypeId() { return contentTypeId; }
+
+    /**
+     * @return the content type with ID <code>id</code>, or null
+     */
+    public static String getContentType(int id) {
+        return (id > 0 && id < CONTENT_TYPES.length) ? CONTENT_TYPES[id] : null;
+    }
+
+    /**
+     * @return the ID of the lower cased content type, 0 if it has none
+     */
+    public static int getContentTypeId(String contentType) {
+        if (contentType == null)
+            return 0;
+        for (int id = 1; id < CONTENT_TYPES.length; id++) {
+            if (CONTENT_TYPES[id].equals(contentType))
+                return id;
+        }
+        return 0;
+    }
+
+    /**
+     * Lays out the sections of a document in the order they are written,
+     * after a header line of <code>headerLineLength</code> bytes and the
+     * table.  Call {@link #scanResponse} first for HTTP responses.
+     */
+    public void layout(int headerLineLength, int fieldsLength, long requestLength, long responseLength)
+        throws IOException {
+
+        long total = headerLineLength + SIZE + fieldsLength + requestLength + responseLength;
+        if (total > Integer.MAX_VALUE)
+            throw new IOException("document of " + total + " bytes is too large");
+
+        this.fieldsOffset = headerLineLength + SIZE;
+        this.fieldsLength = fieldsLength;
+        this.requestOffset = fieldsOffset + fieldsLength;
+        this.requestLength = (int)requestLength;
+        this.headerOffset = requestOffset + this.requestLength;
+
+        if (headerLength < 0) {
+            bodyOffset = headerOffset;
+            bodyLength = (int)responseLength;
+        } else {
+            headerLength = (int)Math.min(headerLength, responseLength);
+            bodyOffset = headerOffset + headerLength;
+            bodyLength = (int)responseLength - headerLength;
+        }
+    }
+
+    /**
+     * Finds the end of the headers, the status code and the content type
+     * of the HTTP response starting at <code>buf[offset]</code>, the way
+     * HDFSWriterDocument parses them.
+     *
+     * @param buf buffer holding the start of the response
+     * @param offset offset of the response
+     * @param length number of response bytes in <code>buf</code>
+     * @param complete whether <code>buf</code> holds the whole response;
+     * if not and the headers do not end within it, the header length is
+     * recorded as unknown
+     */
+    public void scanResponse(byte [] buf, int offset, int length, boolean complete) {
+        int end = offset + length;
+
+        headerLength = 0;
+        statusCode = 0;
+        contentTypeId = 0;
+
+        bss.init(buf, offset, end);
+        if (!ByteScan.SkipToWhitespace(bss) || !ByteScan.SkipWhitespace(bss)) {
+            if (!complete)
+                headerLength = -1;
+            return;
+        }
+
+        ByteScan.ParseInt(bss);
+        statusCode = bss.ival;
+
+        int p = bss.offset;
+        while (p < end && buf[p] != '\n')
+            p++;
+        p++;
+
+        boolean contentTypeSeen = false;
+        while (p < end) {
+
+            if (buf[p] == '\n') {
+                headerLength = p + 1 - offset;
+                return;
+            } else if (buf[p] == '\r' && p+1 < end && buf[p+1] == '\n') {
+                headerLength = p + 2 - offset;
+                return;
+            }
+
+            int lineStart = p;
+            while (p < end && buf[p] != '\n')
+                p++;
+            int lineEnd = p;
+            p++;
+
+            // only the first Content-Type header counts, as when reading
+            if (contentTypeSeen || buf[lineStart] == ' ' || buf[lineStart] == '\t')
+                continue;
+            int colon = lineStart;
+            while (colon < lineEnd && buf[colon] != ':')
+                colon++;
+            int nameEnd = colon;
+            while (nameEnd > lineStart && (buf[nameEnd-1] == ' ' || buf[nameEnd-1] == '\t'))
+                nameEnd--;
+            if (colon < lineEnd && ByteScan.EqualsIgnoreCase(buf, lineStart, nameEnd, CONTENT_TYPE)) {
+                contentTypeSeen = true;
+                contentTypeId = getContentTypeId(parseMimeType(buf, colon + 1, lineEnd));
+            }
+        }
+
+        headerLength = complete ? Math.min(p, end) - offset : -1;
+    }
+
+    /**
+     * Returns the lower cased MIME type at the start of a Content-Type
+     * value, or null.
+     */
+    private static String parseMimeType(byte [] buf, int p, int end) {
+        while (p < end && Character.isWhitespace(buf[p]))
+            p++;
+        if (p < end && buf[p] == '"')
+            p++;
+        while (p < end && Character.isWhitespace(buf[p]))
+            p++;
+
+        int base = p;
+        while (p < end &&
+               (Character.isLetterOrDigit(buf[p]) || buf[p] == '/' || buf[p] == '-' ||
+                buf[p] == '+' || buf[p] == '.'))
+            p++;
+
+        String mimeType = new String(buf, base, p - base).toLowerCase();
+        return (mimeType.indexOf('/') == -1) ? null : mimeType;
+    }
+
+    /**
+     * Writes the table.
+     */
+    public void write(OutputStream out) throws IOException {
+        byte [] table = new byte [SIZE];
+        write(table, 0);
+        out.write(table);
+    }
+
+    /**
+     * Writes the table into <code>buf</code> at <code>offset</code>.
+     */
+    public void write(byte [] buf, int offset) {
+        int p = putShort(buf, offset, SIZE);
+        p = putInt(buf, p, fieldsOffset);
+        p = putInt(buf, p, fieldsLength);
+        p = putInt(buf, p, requestOffset);
+        p = putInt(buf, p, requestLength);
+        p = putInt(buf, p, headerOffset);
+        p = putInt(buf, p, headerLength);
+        p = putInt(buf, p, bodyOffset);
+        p = putInt(buf, p, bodyLength);
+        p = putInt(buf, p, statusCode);
+        putShort(buf, p, contentTypeId);
+    }
+
+    /**
+     * Reads the table at <code>buf[offset]</code> of the document at
+     * <code>buf[start, end)</code>.
+     *
+     * @return the size of the table
+     * @throws IOException if the table is truncated or a section lies
+     * outside the document
+     */
+    public int read(byte [] buf, int offset, int start, int end) throws IOException {
+        if (end - offset < 2)
+            throw new IOException("section table truncated");
+        int size = getShort(buf, offset);
+        if (size < SIZE || end - offset < size)
+            throw new IOException("section table truncated");
+
+        int p = offset + 2;
+        fieldsOffset = getInt(buf, p);
+        fieldsLength = getInt(buf, p + 4);
+        requestOffset = getInt(buf, p + 8);
+        requestLength = getInt(buf, p + 12);
+        headerOffset = getInt(buf, p + 16);
+        headerLength = getInt(buf, p + 20);
+        bodyOffset = getInt(buf, p + 24);
+        bodyLength = getInt(buf, p + 28);
+        statusCode = getInt(buf, p + 32);
+        contentTypeId = getShort(buf, p + 36);
+
+        int length = end - start;
+        if (!inside(fieldsOffset, fieldsLength, length) ||
+            !inside(requestOffset, requestLength, length) ||
+            !inside(headerOffset, Math.max(headerLength, 0), length) ||
+            !inside(bodyOffset, bodyLength, length))
+            throw new IOException("bad section table");
+
+        return size;
+    }
+
+    private static boolean inside(int offset, int length, int documentLength) {
+        return offset >= 0 && length >= 0 && (long)offset + length <= documentLength;
+    }
+
+    private static int putShort(byte [] buf, int p, int value) {
+        buf[p] = (byte)(value >>> 8);
+        buf[p+1] = (byte)value;
+        return p + 2;
+    }
+
+    private static int putInt(byte [] buf, int p, int value) {
+        buf[p] = (byte)(value >>> 24);
+        buf[p+1] = (byte)(value >>> 16);
+        buf[p+2] = (byte)(value >>> 8);
+        buf[p+3] = (byte)value;
+        return p + 4;
+    }
+
+    private static int getShort(byte [] buf, int p) {
+        return ((buf[p] & 0xff) << 8) | (buf[p+1] & 0xff);
+    }
+
+    private static int getInt(byte [] buf, int p) {
+        return ((buf[p] & 0xff) << 24) | ((buf[p+1] & 0xff) << 16) |
+            ((buf[p+2] & 0xff) << 8) | (buf[p+3] & 0xff);
+    }
+}
@@ -0,0 +1,268 @@
+package org.archive.io.hdfs;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+import org.archive.io.ArchiveFileConstants;
+
+/**
+ * Follows a SequenceFile while it is still being written.
+ *
+ * Each call to {@link #poll(RecordHandler)} reopens the file, reads the
+ * records that have become visible since the previous call and stops at
+ * the last complete record the writer has hflushed (see
+ * {@link HDFSParameters#getHflushIntervalMs()}).  When the writer closes
+ * the file and renames it from <code>.open</code> to its final name the
+ * reader follows the rename, reads the remaining records and reports
+ * {@link #isFinished()}.  Values compressed with the dictionary of the
+ * file (see {@link DeflateDictionary}) reach the handler decompressed.
+ *
+ * The read position is a block start and the number of records already
+ * consumed from it, so that BLOCK compressed files, whose records can only
+ * be reached through the start of their block, resume correctly.  Save it
+ * with {@link #getOffset()} and {@link #getSkip()} and hand it back to
+ * {@link #seek(long, int)} to resume after a restart.
+ */
+public class HDFSTailReader {
+
+    /**
+     * Receives the records read by {@link HDFSTailReader#poll(RecordHandler)}.
+     */
+    public interface RecordHandler {
+        void handle(Text key, Text value) throws IOException;
+    }
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final FileSystem fs;
+    private final Configuration conf;
+    private Path path;
+    private long offset = 0;
+    private int skip = 0;
+    private boolean closed = false;
+    private boolean finished = false;
+
+    /**
+     * @param fs file system holding the file
+     * @param path the file, either its <code>.open</code> or its final name
+     */
+    public HDFSTailReader(FileSystem fs, Path path) {
+        this.fs = fs;
+        this.conf = fs.getConf();
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return start of the block holding the next record, 0 before the
+     * header has been read
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return records of the block at {@link #getOffset()} already read
+     */
+    public int getSkip() {
+        return skip;
+    }
+
+    /**
+     * Resumes from a previously saved position.
+     */
+    public void seek(long offset, int skip) {
+        this.offset = offset;
+        this.skip = skip;
+    }
+
+    /**
+     * @return true once the file has been closed by the writer and every
+     * record has been read
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Reads the records flushed since the last call.
+     *
+     * @param handler receives each new record in file order
+     * @return number of records read
+     * @throws IOException if the file is gone or cannot be read
+     */
+    public int poll(RecordHandler handler) throws IOException {
+        if (finished)
+            return 0;
+
+        FSDataInputStream in = open();
+        long visible;
+        try {
+            visible = visibleLength(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        SequenceFile.Reader reader = null;
+        int count = 0;
+
+        try {
+            reader = new SequenceFile.Reader(conf,
+                                             SequenceFile.Reader.stream(in),
+                                             SequenceFile.Reader.length(visible));
+            byte [] dictionary = DeflateDictionary.fromMetadata(reader.getMetadata());
+            if (offset > 0)
+                reader.seek(offset);
+
+            Text key = new Text();
+            Text value = new Text();
+
+            for (int i = 0; i < skip; i++) {
+                if (!reader.next(key, value))
+                    throw new IOException("Missing record " + i + " of block at " + offset + " in " + path);
+            }
+
+            long blockStart = offset;
+            long position = reader.getPosition();
+
+            while (true) {
+                try {
+                    if (!reader.next(key, value))
+                        break;
+                } catch (EOFException e) {
+                    // The last record has only been partly flushed
+                    break;
+                }
+
+                // A record that moves the position loaded a new block (or,
+                // without BLOCK compression, is its own block)
+                long next = reader.getPosition();
+                if (next != position) {
+                    blockStart = position;
+                    skip = 0;
+                    position = next;
+                }
+                offset = blockStart;
+                skip++;
+
+                if (dictionary != null)
+                    DeflateDictionary.decompressValue(dictionary, value);
+                handler.handle(key, value);
+                count++;
+            }
+        } catch (EOFException e) {
+            // Header not flushed yet
+        } finally {
+            if (reader != null)
+                reader.close();
+            else
+                in.close();
+        }
+
+        if (closed)
+            finished = true;
+
+        return count;
+    }
+
+    /**
+     * Opens the file, following the rename of the <code>.open</code> file
+     * to its final name when the writer closes it.
+     */
+    private FSDataInputStream open() throws IOException {
+        String name = path.getName();
+        if (!name.endsWith(ArchiveFileConstants.OCCUPIED_SUFFIX)) {
+            // given the final name, the file is closed already
+            closed = true;
+        } else if (!closed) {
+            try {
+                return fs.open(path);
+            } catch (FileNotFoundException e) {
+                path = new Path(path.getParent(),
+                                name.substring(0, name.length() - ArchiveFileConstants.OCCUPIED_SUFFIX.length()));
+                LOG.info("Following closed file " + path);
+            }
+        }
+
+        FSDataInputStream in = fs.open(path);
+        closed = true;
+        return in;
+    }
+
+    /**
+     * Returns the length readable through <code>in</code>, which for a
+     * file being written includes the flushed part of its last block.
+     * The length is asked of the open stream, so a rename of the file in
+     * the meantime does not matter.  HdfsDataInputStream, from hadoop-hdfs
+     * which is not a dependency of this project, is reached by
+     * reflection; streams of other file systems are read to their end.
+     */
+    private static long visibleLength(FSDataInputStream in) throws IOException {
+        Method getVisibleLength;
+        try {
+            getVisibleLength = in.getClass().getMethod("getVisibleLength");
+        } catch (NoSuchMethodException e) {
+            return Long.MAX_VALUE;
+        }
+
+        try {
+            return (Long)getVisibleLength.invoke(in);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    static void printUsage() {
+        System.out.println("HDFSTailReader <path> [poll-interval-seconds] [offset skip]");
+        System.exit(1);
+    }
+
+    /**
+     * Prints the key and value length of each record as it becomes
+     * visible, until the file is closed, then the position to resume from.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            printUsage();
+
+        Path path = new Path(args[0]);
+        FileSystem fs = path.getFileSystem(new Configuration());
+        HDFSTailReader reader = new HDFSTailReader(fs, path);
+        long interval = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 1000;
+        if (args.length > 3)
+            reader.seek(Long.parseLong(args[2]), Integer.parseInt(args[3]));
+
+        RecordHandler printer = new RecordHandler() {
+                public void handle(Text key, Text value) {
+                    System.out.println(key + "\t" + value.getLength());
+                }
+            };
+
+        while (true) {
+            reader.poll(printer);
+            if (reader.isFinished())
+                break;
+            Thread.sleep(interval);
+        }
+
+        System.out.println("# " + reader.getOffset() + " " + reader.getSkip());
+    }
+}
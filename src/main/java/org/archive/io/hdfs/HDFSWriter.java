@@ -20,15 +20,42 @@ public class HDFSWriter extends HDFSWriterPoolMember {
     @SuppressWarnings("unused")
     private final Logger LOG = Logger.getLogger(this.getClass().getName());
 
-    public String HDFSWRITER_ID = "HDFSWriter/0.3";
+    /** Header line of the documents written by this version */
+    public static final String VERSION_ID = "HDFSWriter/0.3";
+
+    /** Header line of documents with a section table, see {@link HDFSSectionTable} */
+    public static final String VERSION_ID_04 = "HDFSWriter/0.4";
+
+    public String HDFSWRITER_ID = VERSION_ID;
 
     @SuppressWarnings("unused")
     private HDFSParameters parameters;
 
     public HDFSWriter(final AtomicInteger serialNo,
                       final HDFSParameters parameters) throws IOException {
-        super(serialNo, parameters);
+        this(serialNo, parameters, null);
+    }
+
+    public HDFSWriter(final AtomicInteger serialNo,
+                      final HDFSParameters parameters,
+                      final HDFSFileSystems fileSystems) throws IOException {
+        super(serialNo, parameters, fileSystems);
         this.parameters = parameters;
+        this.HDFSWRITER_ID = versionId(parameters.getRecordFormat());
+    }
+
+    /**
+     * Returns the header line of the record format version
+     * <code>format</code>, "0.3" or "0.4".
+     *
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    public static String versionId(String format) {
+        if (format == null || format.equals("0.3"))
+            return(VERSION_ID);
+        if (format.equals("0.4"))
+            return(VERSION_ID_04);
+        throw new IllegalArgumentException("Unsupported record format " + format);
     }
 
     private int mCaptureStreamCapacity = 262144;
@@ -47,67 +74,158 @@ public class HDFSWriter extends HDFSWriterPoolMember {
                       byte [] fieldBytes,
                       RecordingOutputStream ros,
                       RecordingInputStream ris) throws IOException {
+        write(curi, null, fieldBytes, ros, ris);
+    }
+
+    /**
+     * Write
+     *
+     * @param uri URI of crawled document
+     * @param seedUrl seed the document was reached from, for the file statistics
+     * @param fieldBytes block of fields to write to output after header line
+     * @param ros recording output stream that captured the GET request (for http*)
+     * @param ris recording input stream that captured the response
+     */
+    public void write(final CrawlURI curi,
+                      final String seedUrl,
+                      byte [] fieldBytes,
+                      RecordingOutputStream ros,
+                      RecordingInputStream ris) throws IOException {
     	String uri = curi.toString();
-    	ReplayInputStream replayStream = null;
 
     	preWriteRecordTasks();
 
     	try {
-            try {
+            int recordLength = 256 + fieldBytes.length + (int)ros.getSize() + (int)ris.getSize();
 
-                int recordLength = 256 + fieldBytes.length + (int)ros.getSize() + (int)ris.getSize();
+            if (mCaptureStreamCapacity < recordLength) {
+                mCaptureStreamCapacity = recordLength + 8192;
+                mCaptureStream = new ByteArrayOutputStream(mCaptureStreamCapacity);
+            } else {
+                mCaptureStream.reset();
+            }
 
-                if (mCaptureStreamCapacity < recordLength) {
-                    mCaptureStreamCapacity = recordLength + 8192;
-                    mCaptureStream = new ByteArrayOutputStream(mCaptureStreamCapacity);
-                } else {
-                    mCaptureStream.reset();
-                }
+            long remaining = capture(HDFSWRITER_ID, uri, fieldBytes, ros, ris, mCaptureStream);
+            write(mCaptureStream.toByteArray());
 
-                byte [] CRLF_BYTES = CRLF.getBytes();
+            // Should be zero at this stage.  If not, something is
+            // wrong.
+            if (remaining != 0) {
+                String message = "Gap between expected and actual: " +
+                    remaining + "\n" + DevUtils.extraInfo() + "writing arc ";
 
-                // write header line
-                mCaptureStream.write(HDFSWRITER_ID.getBytes());
-                mCaptureStream.write(CRLF_BYTES);
+                DevUtils.warnHandle(new Throwable(message), message);
 
-                // write fields
-                mCaptureStream.write(fieldBytes);
+                throw new IOException(message);
+            }
+    	} finally {
+            postWriteRecordTasks(uri, curi, seedUrl);
+    	}
+    }
 
-                // write request
-                char [] uriChars = uri.toCharArray();
-                if ((uriChars[0] == 'h' || uriChars[0] == 'H') &&
-                    (uriChars[1] == 't' || uriChars[1] == 'T') &&
-                    (uriChars[2] == 't' || uriChars[2] == 'T') &&
-                    (uriChars[3] == 'p' || uriChars[3] == 'P')) {
-                    replayStream = ros.getReplayInputStream();
-                    replayStream.readFullyTo(mCaptureStream);
-                    replayStream.close();
-                }
+    /**
+     * Serializes a capture as the document stored in a record value:
+     * header line, fields, request (for http*) and response.  With the
+     * {@link #VERSION_ID_04} header line a section table follows the
+     * header line.
+     *
+     * @param id header line identifying the format
+     * @param uri URI of crawled document
+     * @param fieldBytes block of fields to write to output after header line
+     * @param ros recording output stream that captured the GET request (for http*)
+     * @param ris recording input stream that captured the response
+     * @param out stream receiving the document
+     * @return bytes of the response left unread, 0 unless the recording is
+     * inconsistent
+     */
+    public static long capture(String id,
+                               String uri,
+                               byte [] fieldBytes,
+                               RecordingOutputStream ros,
+                               RecordingInputStream ris,
+                               ByteArrayOutputStream out) throws IOException {
+        ReplayInputStream replayStream = null;
+
+        try {
+            byte [] CRLF_BYTES = CRLF.getBytes();
+            byte [] idBytes = id.getBytes();
+
+            char [] uriChars = uri.toCharArray();
+            boolean isHttp = uriChars.length >= 4 &&
+                (uriChars[0] == 'h' || uriChars[0] == 'H') &&
+                (uriChars[1] == 't' || uriChars[1] == 'T') &&
+                (uriChars[2] == 't' || uriChars[2] == 'T') &&
+                (uriChars[3] == 'p' || uriChars[3] == 'P');
+
+            // write header line
+            out.write(idBytes);
+            out.write(CRLF_BYTES);
+
+            // write section table
+            long requestEnd = -1;
+            if (id.equals(VERSION_ID_04)) {
+                HDFSSectionTable table = new HDFSSectionTable();
+                long requestSize = isHttp ? ros.getSize() : 0;
+                if (isHttp)
+                    scanResponseHead(ris, table);
+                table.layout(idBytes.length + CRLF_BYTES.length, fieldBytes.length, requestSize, ris.getSize());
+                table.write(out);
+                requestEnd = out.size() + fieldBytes.length + requestSize;
+            }
 
-                // write response
-                replayStream = ris.getReplayInputStream();
-                replayStream.readFullyTo(mCaptureStream);
-                write(mCaptureStream.toByteArray());
+            // write fields
+            out.write(fieldBytes);
 
-                long remaining = replayStream.remaining();
+            // write request
+            if (isHttp) {
+                replayStream = ros.getReplayInputStream();
+                replayStream.readFullyTo(out);
+                replayStream.close();
+            }
+
+            if (requestEnd >= 0 && out.size() != requestEnd)
+                throw new IOException("Request of " + uri + " replayed " + (out.size() - (requestEnd - ros.getSize())) +
+                                      " bytes of " + ros.getSize());
 
-                // Should be zero at this stage.  If not, something is
-                // wrong.
-                if (remaining != 0) {
-                    String message = "Gap between expected and actual: " +
-                        remaining + "\n" + DevUtils.extraInfo() + "writing arc ";
+            // write response
+            replayStream = ris.getReplayInputStream();
+            replayStream.readFullyTo(out);
 
-                    DevUtils.warnHandle(new Throwable(message), message);
+            return replayStream.remaining();
+        } finally {
+            if (replayStream != null)
+                replayStream.close();
+        }
+    }
 
-                    throw new IOException(message);
+    /**
+     * Reads the start of the recorded response, up to
+     * {@link HDFSSectionTable#MAX_HEAD} bytes, until the end of its
+     * headers is found, and records them in <code>table</code>.
+     */
+    private static void scanResponseHead(RecordingInputStream ris, HDFSSectionTable table) throws IOException {
+        long size = ris.getSize();
+        byte [] head = new byte [(int)Math.min(size, 8192)];
+        int length = 0;
+        ReplayInputStream replayStream = ris.getReplayInputStream();
+
+        try {
+            while (true) {
+                int n = replayStream.read(head, length, head.length - length);
+                if (n > 0)
+                    length += n;
+                boolean complete = (n < 0 || length == size);
+                if (complete || length == head.length) {
+                    table.scanResponse(head, 0, length, complete);
+                    if (complete || table.getHeaderLength() >= 0 || head.length >= HDFSSectionTable.MAX_HEAD)
+                        return;
+                    byte [] grown = new byte [(int)Math.min(Math.min(size, HDFSSectionTable.MAX_HEAD), head.length * 2L)];
+                    System.arraycopy(head, 0, grown, 0, length);
+                    head = grown;
                 }
-            } finally {
-                if (replayStream != null)
-                    replayStream.close();
             }
-
-    	} finally {
-            postWriteRecordTasks(uri);
-    	}
+        } finally {
+            replayStream.close();
+        }
     }
 }
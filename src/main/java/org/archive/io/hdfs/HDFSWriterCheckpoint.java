@@ -0,0 +1,531 @@
+package org.archive.io.hdfs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.archive.io.ArchiveFileConstants;
+import org.archive.io.hdfs.util.BoundedInputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Crawl checkpoints of the files open in an {@link HDFSWriterPool}.
+ *
+ * {@link #flush(Collection, HDFSManifest, String)} syncs every pool
+ * member in parallel and records the path, durable length and statistics
+ * of each open file, together with the length of the crawl manifest and
+ * the name node time of the checkpoint.  {@link #recover(JSONObject)}
+ * brings the output back in line with that checkpoint when a crawl is
+ * resumed from it:
+ *
+ * <ul>
+ * <li>a recorded file at its checkpoint length is closed by renaming it
+ * to its final name;</li>
+ * <li>a recorded file that grew after the checkpoint is moved aside with
+ * a <code>.post-checkpoint</code> suffix and its first checkpoint-length
+ * bytes are copied back under the final name (Hadoop 2.3 has no
+ * truncate);</li>
+ * <li>files of this crawl created after the checkpoint are moved aside
+ * with the same suffix;</li>
+ * <li>statistics sidecars are moved aside with their files, and those of
+ * restored files are rewritten from the statistics the checkpoint
+ * recorded;</li>
+ * <li>the manifest is cut back to its checkpoint length, entries of the
+ * restored files are replaced by entries for them as restored, and
+ * manifests of this crawl started after the checkpoint are moved
+ * aside.</li>
+ * </ul>
+ *
+ * Files left open by the crashed crawl are closed first by recovering
+ * their HDFS leases, so that their lengths are final.
+ *
+ * Records moved aside belong to URIs the resumed frontier will fetch
+ * again, so they can be deleted once the crawl has been resumed.
+ * Recovery can be re-run if it is interrupted.
+ */
+public class HDFSWriterCheckpoint {
+
+    /** Keys of the checkpoint JSON */
+    public static final String PATH = "path";
+    public static final String LENGTH = "length";
+    public static final String FILES = "hdfsFiles";
+    public static final String TIME = "hdfsTime";
+    public static final String MANIFEST = "hdfsManifest";
+    public static final String MANIFEST_ENTRY = "manifestEntry";
+    public static final String SUMMARY = "summary";
+
+    public static final String CHECKPOINT_DIR = "_checkpoints";
+    public static final String POST_CHECKPOINT_SUFFIX = ".post-checkpoint";
+
+    private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+    private final FileSystem fs;
+    private final HDFSParameters parameters;
+
+    public HDFSWriterCheckpoint(FileSystem fs, HDFSParameters parameters) {
+        this.fs = fs;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Syncs the open file of every member, using up to
+     * {@link HDFSParameters#getCheckpointThreads()} threads and giving up
+     * after {@link HDFSParameters#getCheckpointTimeoutMs()}.
+     *
+     * @param members every member of the pool, idle or borrowed
+     * @param manifest manifest of the pool, or null if there is none
+     * @param name name of the checkpoint
+     * @return the checkpoint, to be saved with the crawl checkpoint
+     * @throws IOException if a file could not be synced in time
+     */
+    public JSONObject flush(Collection<HDFSWriterPoolMember> members, HDFSManifest manifest, String name)
+        throws IOException {
+        long start = System.currentTimeMillis();
+        List<Callable<JSONObject>> tasks = new ArrayList<Callable<JSONObject>>(members.size());
+        for (final HDFSWriterPoolMember member : members) {
+            tasks.add(new Callable<JSONObject>() {
+                    public JSONObject call() throws IOException {
+                        return member.checkpoint();
+                    }
+                });
+        }
+
+        JSONArray files = new JSONArray();
+        if (!tasks.isEmpty()) {
+            int threads = Math.max(1, Math.min(tasks.size(), parameters.getCheckpointThreads()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "HDFSWriter checkpoint");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+            try {
+                List<Future<JSONObject>> results =
+                    executor.invokeAll(tasks, parameters.getCheckpointTimeoutMs(), TimeUnit.MILLISECONDS);
+
+                int failed = 0;
+                for (Future<JSONObject> result : results) {
+                    try {
+                        JSONObject file = result.get();
+                        if (file != null)
+                            files.put(file);
+                    } catch (CancellationException e) {
+                        failed++;
+                    } catch (ExecutionException e) {
+                        LOG.error("Failed to sync writer for checkpoint " + name, e.getCause());
+                        failed++;
+                    }
+                }
+
+                if (failed > 0)
+                    throw new IOException("Checkpoint " + name + ": " + failed + " of " +
+                                          tasks.size() + " writers could not be synced within " +
+                                          parameters.getCheckpointTimeoutMs() + "ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during checkpoint " + name);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put(FILES, files);
+
+            // Measured after the files are synced: a file closed meanwhile
+            // has an entry within this length, which recovery drops since
+            // the file is restored to its checkpoint length
+            if (manifest != null) {
+                JSONObject recorded = new JSONObject();
+                recorded.put(PATH, manifest.getPath().toString());
+                recorded.put(LENGTH, manifest.getLength());
+                json.put(MANIFEST, recorded);
+            }
+
+            json.put(TIME, markTime(name));
+
+            LOG.info("Checkpoint " + name + ": synced " + files.length() + " open files in " +
+                     (System.currentTimeMillis() - start) + "ms");
+            return json;
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes an empty marker for the checkpoint and returns its
+     * modification time, so the checkpoint time is on the name node clock
+     * like the times recovery compares it with.
+     */
+    private long markTime(String name) throws IOException {
+        Path marker = new Path(new Path(parameters.getHdfsOutputPath(), CHECKPOINT_DIR),
+                               parameters.getCrawlName() + "-" + name);
+        fs.mkdirs(marker.getParent());
+        fs.create(marker, true).close();
+        return fs.getFileStatus(marker).getModificationTime();
+    }
+
+    /**
+     * Rolls back the output to a checkpoint written by
+     * {@link #flush(Collection, HDFSManifest, String)}.  Call before any writer of the
+     * resumed crawl opens a file.
+     *
+     * @param checkpoint the saved checkpoint
+     * @throws IOException if a file could not be restored
+     */
+    public void recover(JSONObject checkpoint) throws IOException {
+        Set<String> recorded = new HashSet<String>();
+        List<JSONObject> entries = new ArrayList<JSONObject>();
+
+        try {
+            JSONArray files = checkpoint.getJSONArray(FILES);
+            for (int i = 0; i < files.length(); i++) {
+                JSONObject file = files.getJSONObject(i);
+                Path open = new Path(file.getString(PATH));
+                Path closed = closedPath(open);
+
+                recorded.add(open.toUri().getPath());
+                recorded.add(closed.toUri().getPath());
+                if (restore(open, closed, file.getLong(LENGTH))) {
+                    restoreSidecar(closed, file.optJSONObject(SUMMARY));
+                    JSONObject entry = file.optJSONObject(MANIFEST_ENTRY);
+                    if (entry != null)
+                        entries.add(entry);
+                }
+            }
+
+            long time = checkpoint.getLong(TIME);
+            Path output = new Path(parameters.getHdfsOutputPath());
+            if (fs.exists(output))
+                moveAsideNewer(output, 0, outputLayout(), time, recorded);
+
+            JSONObject manifest = checkpoint.optJSONObject(MANIFEST);
+            if (manifest != null)
+                restoreManifest(new Path(manifest.getString(PATH)), manifest.getLong(LENGTH),
+                                time, recorded, entries);
+        } catch (JSONException e) {
+            throw new IOException("Corrupt HDFS writer checkpoint", e);
+        }
+    }
+
+    /**
+     * Brings one recorded file back to its checkpoint length and closes it.
+     *
+     * @return false if the file is missing
+     */
+    private boolean restore(Path open, Path closed, long length) throws IOException {
+        Path aside = new Path(closed.getParent(), closed.getName() + POST_CHECKPOINT_SUFFIX);
+
+        // A previous, interrupted recovery already moved the file aside
+        if (!fs.exists(aside)) {
+            Path current = fs.exists(open) ? open : (fs.exists(closed) ? closed : null);
+            if (current == null) {
+                LOG.error("File " + open + " recorded by the checkpoint is missing");
+                return false;
+            }
+
+            recoverLease(current);
+            long actual = visibleLength(current);
+            if (actual <= length) {
+                if (actual < length)
+                    LOG.error("File " + current + " is " + actual + " bytes, shorter than the " +
+                              length + " recorded by the checkpoint");
+                if (current == open && !fs.rename(open, closed))
+                    throw new IOException("Failed to rename " + open + " to " + closed);
+                LOG.info("Recovered " + closed + " at " + actual + " bytes");
+                return true;
+            }
+
+            if (!fs.rename(current, aside))
+                throw new IOException("Failed to move " + current + " aside to " + aside);
+        }
+
+        // Copy under the .open name so that an interrupted copy is redone
+        recoverLease(aside);
+        FSDataInputStream in = fs.open(aside);
+        try {
+            FSDataOutputStream out = fs.create(open, true);
+            try {
+                byte [] buf = new byte [65536];
+                long remaining = length;
+                while (remaining > 0) {
+                    int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+                    if (n < 0)
+                        throw new IOException("Unexpected end of " + aside + " at " + (length - remaining));
+                    out.write(buf, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (fs.exists(closed))
+            fs.delete(closed, false);
+        if (!fs.rename(open, closed))
+            throw new IOException("Failed to rename " + open + " to " + closed);
+
+        LOG.info("Recovered " + closed + " at " + length + " bytes, later records moved to " + aside);
+        return true;
+    }
+
+    /**
+     * Replaces the statistics sidecar of a restored file, which describes
+     * the file as it was closed after the checkpoint, if at all, with the
+     * statistics the checkpoint recorded.  Without those the sidecar is
+     * moved aside.
+     */
+    private void restoreSidecar(Path closed, JSONObject summary) throws IOException {
+        Path sidecar = HDFSWriterPoolMember.getStatsSidecarPath(closed);
+        if (summary == null || !parameters.isStatsSidecar()) {
+            moveAside(sidecar);
+            return;
+        }
+
+        FSDataOutputStream out = fs.create(sidecar, true);
+        try {
+            out.write(summary.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Cuts the manifest back to its checkpoint length, dropping the
+     * entries of the files the checkpoint recorded open, which were written
+     * if those files were closed after it, and appends <code>entries</code>,
+     * those files as restored.  Manifests of this crawl started after the
+     * checkpoint are moved aside.  Like a data file, the manifest is moved
+     * aside and rewritten from that copy, so an interrupted rewrite is
+     * redone.
+     */
+    private void restoreManifest(Path manifest, long length, long time,
+                                 Set<String> recorded, List<JSONObject> entries) throws IOException {
+        Path aside = new Path(manifest.getParent(), manifest.getName() + POST_CHECKPOINT_SUFFIX);
+        if (!fs.exists(aside) && fs.exists(manifest)) {
+            recoverLease(manifest);
+            if (!fs.rename(manifest, aside))
+                throw new IOException("Failed to move " + manifest + " aside to " + aside);
+        }
+
+        if (fs.exists(aside) || !entries.isEmpty()) {
+            int kept = 0;
+            FSDataOutputStream out = fs.create(manifest, true);
+            try {
+                if (fs.exists(aside)) {
+                    BufferedReader in = new BufferedReader(
+                        new InputStreamReader(new BoundedInputStream(fs.open(aside), length), "UTF-8"));
+                    try {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.trim().length() == 0)
+                                continue;
+                            String path = HDFSManifestReader.Entry.fromJson(new JSONObject(line)).path;
+                            if (recorded.contains(new Path(path).toUri().getPath()))
+                                continue;
+                            out.write((line + "\n").getBytes("UTF-8"));
+                            kept++;
+                        }
+                    } catch (JSONException e) {
+                        throw new IOException("Corrupt entry in " + aside, e);
+                    } finally {
+                        in.close();
+                    }
+                }
+
+                for (JSONObject entry : entries)
+                    out.write((entry.toString() + "\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            LOG.info("Recovered manifest " + manifest + " with " + kept + " entries and " +
+                     entries.size() + " for restored files");
+        }
+
+        FileStatus [] manifests = fs.exists(manifest.getParent()) ?
+            fs.listStatus(manifest.getParent()) : new FileStatus [0];
+        for (FileStatus status : manifests) {
+            String name = status.getPath().getName();
+            if (status.getModificationTime() > time &&
+                name.startsWith(parameters.getCrawlName() + "-") &&
+                name.endsWith(HDFSManifest.MANIFEST_SUFFIX) &&
+                !name.equals(manifest.getName())) {
+                recoverLease(status.getPath());
+                moveAside(status.getPath());
+            }
+        }
+    }
+
+    /**
+     * Moves a file aside with the <code>.post-checkpoint</code> suffix,
+     * replacing an earlier copy, if it exists.
+     */
+    private void moveAside(Path path) throws IOException {
+        if (!fs.exists(path))
+            return;
+
+        Path aside = new Path(path.getParent(), path.getName() + POST_CHECKPOINT_SUFFIX);
+        if (fs.exists(aside))
+            fs.delete(aside, false);
+        if (!fs.rename(path, aside))
+            throw new IOException("Failed to move " + path + " aside to " + aside);
+        LOG.info("Moved " + path + ", written after the checkpoint, to " + aside);
+    }
+
+    /**
+     * Moves aside the files of this crawl modified after the checkpoint
+     * that it did not record, i.e. those opened after it.  Only the
+     * directories of this crawl's output layout are walked, since other
+     * crawls may write below the same output path; file names only carry
+     * the prefix.
+     *
+     * @param dir directory at <code>depth</code> levels below the output path
+     * @param layout output layout of this crawl, or null if files are
+     * written directly into the output path
+     */
+    private void moveAsideNewer(Path dir, int depth, HDFSOutputLayout layout,
+                                long time, Set<String> recorded) throws IOException {
+        String prefix = parameters.getPrefix();
+        int fileDepth = (layout == null) ? 0 : layout.getDepth();
+
+        for (FileStatus status : fs.listStatus(dir)) {
+            Path path = status.getPath();
+            String name = path.getName();
+            if (name.startsWith("_") || name.startsWith("."))
+                continue;
+
+            if (status.isDirectory()) {
+                if (layout != null && layout.matches(depth, name))
+                    moveAsideNewer(path, depth + 1, layout, time, recorded);
+                continue;
+            }
+
+            if (depth != fileDepth ||
+                status.getModificationTime() <= time ||
+                !name.startsWith(prefix) ||
+                name.endsWith(POST_CHECKPOINT_SUFFIX) ||
+                recorded.contains(path.toUri().getPath()))
+                continue;
+
+            if (name.endsWith(ArchiveFileConstants.OCCUPIED_SUFFIX))
+                recoverLease(path);
+            Path aside = new Path(path.getParent(), name + POST_CHECKPOINT_SUFFIX);
+            if (!fs.rename(path, aside))
+                throw new IOException("Failed to move " + path + " aside to " + aside);
+            LOG.info("Moved " + path + ", created after the checkpoint, to " + aside);
+
+            moveAside(HDFSWriterPoolMember.getStatsSidecarPath(closedPath(path)));
+        }
+    }
+
+    /**
+     * Closes a file whose writer crashed, by recovering the lease the
+     * writer still holds on it, and waits at most
+     * {@link HDFSParameters#getLeaseRecoveryTimeoutMs()} for it to be
+     * closed.  Until then the name node reports a length short of the
+     * data on the datanodes, and renaming or copying the file leaves it
+     * under construction until the hard lease limit expires.
+     *
+     * Leases only exist on a DistributedFileSystem, which is reached by
+     * reflection since hadoop-hdfs is not a compile time dependency.
+     */
+    private void recoverLease(Path path) throws IOException {
+        Method recoverLease;
+        Method isFileClosed;
+        try {
+            recoverLease = fs.getClass().getMethod("recoverLease", Path.class);
+            isFileClosed = fs.getClass().getMethod("isFileClosed", Path.class);
+        } catch (NoSuchMethodException e) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            boolean closed = (Boolean)recoverLease.invoke(fs, path);
+            while (!closed) {
+                if (System.currentTimeMillis() - start >= parameters.getLeaseRecoveryTimeoutMs())
+                    throw new IOException("Lease recovery of " + path + " did not finish within " +
+                                          parameters.getLeaseRecoveryTimeoutMs() + "ms");
+                Thread.sleep(1000);
+                closed = (Boolean)isFileClosed.invoke(fs, path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during lease recovery of " + path);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        if (elapsed > 1000)
+            LOG.info("Recovered the lease of " + path + " in " + elapsed + "ms");
+    }
+
+    /**
+     * Length readable from a file, including the flushed part of the last
+     * block of a file that was never closed.
+     */
+    private long visibleLength(Path path) throws IOException {
+        long length = fs.getFileStatus(path).getLen();
+        FSDataInputStream in = fs.open(path);
+        try {
+            return Math.max(length, in.available());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the output layout of this crawl, or null if files are
+     * written directly into the output path
+     */
+    private HDFSOutputLayout outputLayout() {
+        String layout = parameters.getHdfsOutputLayout();
+        if (layout == null || layout.length() == 0)
+            return null;
+
+        return new HDFSOutputLayout(parameters.getHdfsOutputPath(), layout,
+                                    parameters.getCrawlName(), parameters.getPrefix());
+    }
+
+    private static Path closedPath(Path open) {
+        String name = open.getName();
+        if (!name.endsWith(ArchiveFileConstants.OCCUPIED_SUFFIX))
+            return open;
+
+        return new Path(open.getParent(),
+                        name.substring(0, name.length() - ArchiveFileConstants.OCCUPIED_SUFFIX.length()));
+    }
+}
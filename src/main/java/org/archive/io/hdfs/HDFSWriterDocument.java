@@ -31,18 +31,30 @@ import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.StringTokenizer;
+import java.util.TimeZone;
 import java.util.Map.Entry;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.log4j.Logger;
 import org.archive.io.hdfs.util.ByteScan;
+import org.archive.io.hdfs.util.ByteSeq;
+import org.archive.io.hdfs.util.CharsetDecoders;
+import org.archive.io.hdfs.util.CharsetSniffer;
 
 
 /**
@@ -58,8 +70,17 @@ public class HDFSWriterDocument implements Writable {
     private byte [] header =
     { 'H','D','F','S','W','r','i','t','e','r','/','0','.','3','\r','\n' };
 
-    private char [] contentTypeChars =
-    { 'c','o','n','t','e','n','t','-','t','y','p','e' };
+    /** Position of the minor version digit in the header line */
+    private static final int VERSION_DIGIT = 13;
+
+    /** Minor version of the document parsed, 3 or 4 */
+    private int version = 3;
+
+    /** Section table of a 0.4 document */
+    private HDFSSectionTable sections = new HDFSSectionTable();
+
+    /** False while the response headers of a 0.4 document are unparsed */
+    private boolean responseParsed = true;
 
     /*private char [] httpLower = { 'h','t','t','p' };
       private char [] httpUpper = { 'H','T','T','P' };*/
@@ -69,6 +90,17 @@ public class HDFSWriterDocument implements Writable {
     protected byte [] buf = null;
     protected int pos;
     protected int length;
+
+    /** Document bounds within buf, which is the caller's buffer after wrap() */
+    protected int start;
+    protected int end;
+
+    /** Length of the whole document when only a prefix of it was parsed */
+    private int documentLength;
+    private boolean truncated = false;
+
+    /** Buffer owned by this document, reused by load() and readFields() */
+    private byte [] ownBuf = null;
     private byte [] requestBase;
     private int requestOffset;
     private int requestLength;
@@ -81,6 +113,37 @@ public class HDFSWriterDocument implements Writable {
     private String contentType;
     private HashMap<String, String> fieldMap;
 
+    /**
+     * Offsets of the ANVL fields found by the last load, four per field:
+     * label start and end, value start and end.  Strings and the field
+     * map are only created when asked for.
+     */
+    private int [] fields = new int [64];
+    private int fieldCount = 0;
+    private int urlField = -1;
+    private boolean urlParsed = false;
+
+    /**
+     * Offsets of the HTTP response headers, four per header: name start
+     * and end, value start and end, all within responseBase.
+     */
+    private int [] headers = new int [64];
+    private int headerCount = 0;
+
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String LOCATION = "Location";
+
+    private static final String [] HTTP_DATE_FORMATS = {
+        "EEE, dd MMM yyyy HH:mm:ss zzz",     // RFC 1123
+        "EEEE, dd-MMM-yy HH:mm:ss zzz",      // RFC 850
+        "EEE MMM d HH:mm:ss yyyy"            // asctime
+    };
+    private SimpleDateFormat [] httpDateFormats = null;
+
     private boolean isHttp = false;
     private boolean isModified = false;
 
@@ -88,25 +151,41 @@ public class HDFSWriterDocument implements Writable {
     private String scheme = null;
 
     private ByteScan.State bss = new ByteScan.State();
+    private CharsetSniffer sniffer = new CharsetSniffer();
+    private CharsetSniffer.Source charsetSource = CharsetSniffer.Source.NONE;
     private ByteScan.State tmpBss = new ByteScan.State();
 
     private String extension = null;
 
+    private byte [] dictionary = null;
+
     /**
-     * Returns the byte array holding the document
+     * Returns the byte array holding the document, which starts at
+     * {@link #getOffset()} and is {@link #getLength()} bytes long
      */
     public byte [] getBytes() {
         reconstructDocument();
         return buf;
     }
 
+    public int getOffset() { reconstructDocument(); return start; }
+    public int getLength() { reconstructDocument(); return length; }
+
     public byte [] getRequestBytes() { return (requestBase != null) ? requestBase : buf; }
     public int getRequestOffset() { return requestOffset; }
     public int getRequestLength() { return requestLength; }
 
     public String getRequestString() throws UnsupportedEncodingException {
         return StringUtils.chomp(
-                                 new String(getRequestBytes(), getRequestOffset(), getRequestLength(), getValidCharset()));
+                                 new String(getRequestBytes(), getRequestOffset(), getRequestLength(), getDecodingCharset()));
+    }
+
+    /**
+     * Decodes the request in the response charset into <code>out</code>,
+     * see {@link CharsetDecoders#decode}
+     */
+    public CharBuffer decodeRequest(CharBuffer out) {
+        return CharsetDecoders.decode(getDecodingCharset(), getRequestBytes(), getRequestOffset(), getRequestLength(), out);
     }
 
     public byte [] getResponseBytes() { return (responseBase != null) ? responseBase : buf; }
@@ -116,30 +195,214 @@ public class HDFSWriterDocument implements Writable {
 
     public String getResponseString() throws UnsupportedEncodingException {
         return StringUtils.chomp(
-                                 new String(getResponseBytes(), getResponseOffset(), getResponseLength(), getValidCharset()));
+                                 new String(getResponseBytes(), getResponseOffset(), getResponseLength(), getDecodingCharset()));
     }
 
+    /**
+     * Decodes the response, headers included, into <code>out</code>, see
+     * {@link CharsetDecoders#decode}
+     */
+    public CharBuffer decodeResponse(CharBuffer out) {
+        return CharsetDecoders.decode(getDecodingCharset(), getResponseBytes(), getResponseOffset(), getResponseLength(), out);
+    }
+
+    /**
+     * Decodes the response body into <code>out</code>, see
+     * {@link CharsetDecoders#decode}
+     */
+    public CharBuffer decodeResponseBody(CharBuffer out) {
+        return CharsetDecoders.decode(getDecodingCharset(), getResponseBytes(), getResponseBodyOffset(), getResponseBodyLength(), out);
+    }
+
+    /**
+     * Returns a Reader over the response body that decodes it a chunk at
+     * a time, for bodies too large to decode at once
+     */
+    public Reader getResponseBodyReader() {
+        return CharsetDecoders.reader(getDecodingCharset(), getResponseBytes(), getResponseBodyOffset(), getResponseBodyLength());
+    }
+
+    public int getResponseBodyLength() { return responseOffset + responseLength - responseBodyOffset; }
+
     public int getResponseCode() { return responseCode; }
 
-    public String getCharset() { return charset; }
+    public String getCharset() { parseResponseIfNeeded(); return charset; }
 
-    //private static byte [] testBytes = { 'f','o','o' };
+    /**
+     * Returns the charset of the response as a Charset, or null if it is
+     * unknown or not supported by this JVM
+     */
+    public Charset getJavaCharset() { return CharsetSniffer.forName(getCharset()); }
+
+    /**
+     * Returns where the charset of the response was found
+     */
+    public CharsetSniffer.Source getCharsetSource() {
+        return (getCharset() == null) ? CharsetSniffer.Source.NONE : charsetSource;
+    }
 
+    /**
+     * Sets how many bytes at the start of a body are searched for a
+     * charset declaration when the Content-Type header has none
+     */
+    public void setCharsetSniffWindow(int window) { sniffer.setWindow(window); }
+
+    public int getCharsetSniffWindow() { return sniffer.getWindow(); }
+
+    /**
+     * Returns the name of the charset the response is decoded with: its
+     * own if this JVM supports it, ISO-8859-1 otherwise
+     */
     public String getValidCharset() {
-        if (charset == null)
-            return "ISO-8859-1";
-        try {
-            //String tmp = new String(testBytes, charset);
-            return charset;
+        return getDecodingCharset().name();
+    }
+
+    /**
+     * Returns the charset the response is decoded with, see
+     * {@link #getValidCharset()}
+     */
+    public Charset getDecodingCharset() {
+        return CharsetDecoders.forName(getCharset());
+    }
+
+    public String getContentType() {
+        if (contentType == null)
+            parseResponseIfNeeded();
+        return contentType;
+    }
+
+    /**
+     * Returns the minor version of the document format, 3 or 4
+     */
+    public int getVersion() { return version; }
+
+    /**
+     * Returns the value of a response header as a slice of the response,
+     * matching the name without regard to ASCII case.
+     *
+     * @param name header name
+     * @param seq set to the value of the first header named <code>name</code>
+     * @return false if the response has no such header
+     */
+    public boolean getHeader(String name, ByteSeq seq) {
+        int i = findHeader(name);
+        if (i < 0)
+            return false;
+        seq.init(responseBase, headers[i+2], headers[i+3]);
+        return true;
+    }
+
+    /**
+     * Returns the value of a response header, matching the name without
+     * regard to ASCII case.
+     *
+     * @param name header name
+     * @return value of the first header named <code>name</code>, or null
+     */
+    public ByteSeq getHeader(String name) {
+        ByteSeq seq = new ByteSeq();
+        return getHeader(name, seq) ? seq : null;
+    }
+
+    /**
+     * Returns a response header value as a String, or null.
+     */
+    public String getHeaderString(String name) {
+        int i = findHeader(name);
+        return (i < 0) ? null : new String(responseBase, headers[i+2], headers[i+3]-headers[i+2]);
+    }
+
+    /**
+     * Returns the Content-Length header, or -1 if it is missing or invalid.
+     */
+    public long getContentLength() {
+        int i = findHeader(CONTENT_LENGTH);
+        if (i < 0 || headers[i+2] == headers[i+3])
+            return -1;
+
+        long value = 0;
+        for (int j = headers[i+2]; j < headers[i+3]; j++) {
+            byte b = responseBase[j];
+            if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10)
+                return -1;
+            value = value*10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns the lower cased Content-Encoding header, for example
+     * "gzip", or null.
+     */
+    public String getContentEncoding() {
+        String value = getHeaderString(CONTENT_ENCODING);
+        return (value == null) ? null : value.toLowerCase();
+    }
+
+    /**
+     * Returns the lower cased Transfer-Encoding header, for example
+     * "chunked", or null.
+     */
+    public String getTransferEncoding() {
+        String value = getHeaderString(TRANSFER_ENCODING);
+        return (value == null) ? null : value.toLowerCase();
+    }
+
+    /**
+     * Returns the Last-Modified header in milliseconds since the epoch,
+     * or -1 if it is missing or not a valid HTTP date.
+     */
+    public long getLastModified() {
+        String value = getHeaderString(LAST_MODIFIED);
+        if (value == null)
+            return -1;
+
+        if (httpDateFormats == null) {
+            httpDateFormats = new SimpleDateFormat [HTTP_DATE_FORMATS.length];
+            for (int i = 0; i < HTTP_DATE_FORMATS.length; i++) {
+                httpDateFormats[i] = new SimpleDateFormat(HTTP_DATE_FORMATS[i], Locale.US);
+                httpDateFormats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+            }
         }
-        catch (Exception e) {
+
+        for (SimpleDateFormat format : httpDateFormats) {
+            try {
+                return format.parse(value).getTime();
+            } catch (ParseException e) {
+                // try the next format
+            }
         }
-        return "ISO-8859-1";
+        return -1;
     }
 
-    public String getContentType() { return contentType; }
+    /**
+     * Returns the Location header, unresolved, or null.
+     */
+    public String getLocation() {
+        return getHeaderString(LOCATION);
+    }
 
-    public String getURLScheme() { return scheme; }
+    public String getURLScheme() {
+        parseURL();
+        return scheme;
+    }
+
+    /**
+     * Creates the URL and scheme Strings of a loaded document on first use.
+     */
+    private void parseURL() {
+        if (urlParsed)
+            return;
+        urlParsed = true;
+        if (urlField < 0)
+            return;
+
+        int i = urlField * 4;
+        url = new String(buf, fields[i+2], fields[i+3]-fields[i+2]);
+        int colon = url.indexOf(':');
+        if (colon > 0)
+            scheme = url.substring(0, colon).toLowerCase();
+    }
 
 
     /**
@@ -148,6 +411,7 @@ public class HDFSWriterDocument implements Writable {
     public String getURLFileExtension() {
         if (extension != null)
             return extension;
+        parseURL();
         if (url == null)
             return null;
         try {
@@ -176,10 +440,9 @@ public class HDFSWriterDocument implements Writable {
      * @param value field value
      */
     public void setField(String label, String value) {
-        if (fieldMap == null)
-            fieldMap = new HashMap<String,String>();
-        fieldMap.put(label, value);
+        getFieldMap().put(label, value);
         if (label.equals("URL")) {
+            urlParsed = true;
             url = value;
             int colon = url.indexOf(':');
             if (colon > 0) {
@@ -197,15 +460,84 @@ public class HDFSWriterDocument implements Writable {
      * @return value for <code>label</code>
      */
     public String getField(String label) {
-        return fieldMap.get(label);
+        if (fieldMap != null)
+            return fieldMap.get(label);
+
+        int i = findField(label);
+        return (i < 0) ? null : new String(buf, fields[i+2], fields[i+3]-fields[i+2]);
+    }
+
+    /**
+     * Returns the value of a field as a slice of the document, without
+     * creating any String.
+     *
+     * @param label field label
+     * @param seq set to the value if the field is present
+     * @return false if the document has no (non empty) value for <code>label</code>
+     */
+    public boolean getFieldBytes(String label, ByteSeq seq) {
+        if (fieldMap != null) {
+            String value = fieldMap.get(label);
+            if (value == null)
+                return false;
+            seq.init(value.getBytes());
+            return true;
+        }
+
+        int i = findField(label);
+        if (i < 0)
+            return false;
+        seq.init(buf, fields[i+2], fields[i+3]);
+        return true;
     }
 
     /**
-     * Returns a hash map of field mappings
+     * Returns the value of a field as a slice of the document
+     *
+     * @param label field label
+     * @return value for <code>label</code>, or null
+     */
+    public ByteSeq getFieldBytes(String label) {
+        ByteSeq seq = new ByteSeq();
+        return getFieldBytes(label, seq) ? seq : null;
+    }
+
+    /**
+     * Returns the index into fields of the last field labelled
+     * <code>label</code>, as the field map keeps the last value.
+     */
+    private int findField(String label) {
+        int labelLength = label.length();
+
+        for (int i = (fieldCount-1) * 4; i >= 0; i -= 4) {
+            int base = fields[i];
+            if (fields[i+1] - base != labelLength)
+                continue;
+
+            int j = 0;
+            while (j < labelLength && buf[base+j] == label.charAt(j))
+                j++;
+            if (j == labelLength)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a hash map of field mappings, created on first use
      *
      * @return HashMap of field mappings
      */
-    public HashMap<String, String> getFieldMap() { return fieldMap; }
+    public HashMap<String, String> getFieldMap() {
+        if (fieldMap == null) {
+            fieldMap = new HashMap<String,String>();
+            for (int i = 0; i < fieldCount * 4; i += 4) {
+                fieldMap.put(new String(buf, fields[i], fields[i+1]-fields[i]),
+                             new String(buf, fields[i+2], fields[i+3]-fields[i+2]));
+            }
+        }
+        return fieldMap;
+    }
 
     /**
      * Set the HTTP request
@@ -232,10 +564,24 @@ public class HDFSWriterDocument implements Writable {
         responseBase = httpResponse;
         responseOffset = responseBodyOffset = offset;
         responseLength = length;
+        responseParsed = true;
         parseResponse();
         isModified = true;
     }
 
+    /**
+     * Sets the dictionary values of the file being read were compressed
+     * with, see {@link DeflateDictionary#fromMetadata}.  Documents without
+     * dictionary compression are read as before.
+     *
+     * @param dictionary the dictionary, or null
+     */
+    public void setDictionary(byte [] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public byte [] getDictionary() { return dictionary; }
+
     public void load(byte [] docBytes) throws IOException {
         load(docBytes, 4, docBytes.length-4);
     }
@@ -248,25 +594,142 @@ public class HDFSWriterDocument implements Writable {
      * @param length length of document
      */
     public void load(byte [] docBytes, int offset, int length) throws IOException {
-        int base;
-
-        isHttp = false;
-        isModified = false;
 
-        url = null;
-        scheme = null;
-        extension = null;
+        if (DeflateDictionary.isCompressed(docBytes, offset, length)) {
+            docBytes = DeflateDictionary.decompress(dictionary, docBytes, offset, length);
+            parse(docBytes, 0, docBytes.length);
+            return;
+        }
 
         // allocate new buffer if necessary
-        if (buf == null || buf.length < length ||
-            buf.length > HIGH_WATER_BUFFER_LENGTH) {
-            buf = new byte [length];
+        if (ownBuf == null || ownBuf.length < length ||
+            ownBuf.length > HIGH_WATER_BUFFER_LENGTH) {
+            ownBuf = new byte [length];
+        }
+
+        System.arraycopy(docBytes, offset, ownBuf, 0, length);
+        parse(ownBuf, 0, length);
+    }
+
+    /**
+     * Parses the given document in place, without copying it.  The
+     * document refers to <code>docBytes</code> until the next call to
+     * load, wrap or readFields, so the caller must not modify it in the
+     * meantime.  Reusing one instance across records, as a mapper reusing
+     * its input value does, parses each record without allocating a
+     * buffer for it.
+     *
+     * @param docBytes byte array holding the document
+     * @param offset offset into <code>docBytes</code> where document begins
+     * @param length length of document
+     */
+    public void wrap(byte [] docBytes, int offset, int length) throws IOException {
+
+        if (DeflateDictionary.isCompressed(docBytes, offset, length)) {
+            docBytes = DeflateDictionary.decompress(dictionary, docBytes, offset, length);
+            offset = 0;
+            length = docBytes.length;
         }
 
-        System.arraycopy(docBytes, offset, buf, 0, length);
+        parse(docBytes, offset, length);
+    }
+
+    /**
+     * Parses in place the first <code>length</code> bytes of a document
+     * of <code>documentLength</code> bytes, for readers that only need
+     * the fields and the response headers (see
+     * {@link HDFSProjectedReader}).  The response body is cut off where
+     * the prefix ends and {@link #isTruncated()} is true until the next
+     * load, wrap or readFields.  Prefixes of dictionary compressed
+     * documents cannot be parsed.
+     *
+     * @param docBytes byte array holding the prefix
+     * @param offset offset into <code>docBytes</code> where document begins
+     * @param length length of the prefix
+     * @param documentLength length of the whole document
+     * @return false if the prefix ends before the response headers do,
+     * in which case a longer prefix is needed
+     */
+    public boolean wrapPrefix(byte [] docBytes, int offset, int length, int documentLength) throws IOException {
+
+        if (length >= documentLength) {
+            wrap(docBytes, offset, documentLength);
+            return(true);
+        }
+
+        if (DeflateDictionary.isCompressed(docBytes, offset, length))
+            throw new IOException("cannot parse a prefix of a compressed document");
+
+        // the section table of a 0.4 document has to be complete
+        if (length < header.length + HDFSSectionTable.SIZE)
+            return(false);
+
+        parse(docBytes, offset, length, documentLength);
+        return(responseOffset < end && responseBodyOffset < end);
+    }
+
+    /**
+     * Returns true if only a prefix of the document was parsed, see
+     * {@link #wrapPrefix}
+     */
+    public boolean isTruncated() { return truncated; }
+
+    /**
+     * Returns the length of the whole document, which is more than
+     * {@link #getLength()} if it is truncated
+     */
+    public int getDocumentLength() { return truncated ? documentLength : getLength(); }
+
+    /**
+     * Parses in place a record value as written by the HDFSWriter, a
+     * four byte length followed by the document.
+     *
+     * @param value record value
+     */
+    public void wrap(Text value) throws IOException {
+        if (value.getLength() < 4)
+            throw new IOException("document truncated");
+        wrap(value.getBytes(), 4, value.getLength()-4);
+    }
+
+    /**
+     * Parses in place a record value held in a BytesWritable, a four byte
+     * length followed by the document.
+     *
+     * @param value record value
+     */
+    public void wrap(BytesWritable value) throws IOException {
+        if (value.getLength() < 4)
+            throw new IOException("document truncated");
+        wrap(value.getBytes(), 4, value.getLength()-4);
+    }
+
+    /**
+     * Parses the document at <code>docBytes[offset, offset+length)</code>,
+     * which becomes the buffer of this document.
+     */
+    private void parse(byte [] docBytes, int offset, int length) throws IOException {
+        parse(docBytes, offset, length, length);
+    }
+
+    /**
+     * Parses the first <code>length</code> bytes of a document of
+     * <code>documentLength</code> bytes.
+     */
+    private void parse(byte [] docBytes, int offset, int length, int documentLength) throws IOException {
+        int base;
+
+        isHttp = false;
+        isModified = false;
+
+        buf = docBytes;
+        this.start = offset;
+        this.end = offset + length;
         this.length = length;
+        this.documentLength = documentLength;
+        this.truncated = documentLength > length;
 
-        this.pos = 0;
+        this.pos = offset;
         this.responseCode = 0;
         this.charset = null;
         this.contentType = null;
@@ -283,22 +746,33 @@ public class HDFSWriterDocument implements Writable {
         this.url = null;
         this.scheme = null;
         this.extension = null;
+        this.urlParsed = false;
+        this.urlField = -1;
+        this.headerCount = 0;
+        this.responseParsed = true;
 
         if (this.length < header.length)
             throw new IOException("document truncated");
 
-        for (pos=0; pos<header.length; pos++) {
-            if (buf[pos] != header[pos])
-                throw new IOException("bad document header at position " + pos + "(" + (new String(buf, 0, header.length+4)) + ")");
+        for (int i=0; i<header.length; i++, pos++) {
+            if (buf[pos] != header[i] && !(i == VERSION_DIGIT && buf[pos] == '4'))
+                throw new IOException("bad document header at position " + i + "(" + (new String(buf, start, Math.min(length, header.length+4))) + ")");
+        }
+        version = buf[start + VERSION_DIGIT] - '0';
+
+        if (version == 4) {
+            sections.read(buf, pos, start, start + documentLength);
+            pos = start + sections.getFieldsOffset();
         }
 
         /**
          * Load ANVLRecord
          */
 
-        fieldMap = new HashMap<String,String>();
+        fieldMap = null;
+        fieldCount = 0;
 
-        while (pos < this.length-1) {
+        while (pos < end-1) {
 
             // check for ANVL termination
             if (buf[pos] == '\n') {
@@ -312,15 +786,16 @@ public class HDFSWriterDocument implements Writable {
             base = pos;
 
             // find colon
-            while (pos < this.length && buf[pos] != ':' && buf[pos] != '\n')
+            while (pos < end && buf[pos] != ':' && buf[pos] != '\n')
                 pos++;
 
-            if (buf[pos] == '\n') {
+            if (pos == end || buf[pos] == '\n') {
                 pos++;
                 break;
             } else {
                 boolean isUrl = false;
-                String label = new String(buf, base, pos-base);
+                int labelBase = base;
+                int labelEnd = pos;
                 if (pos-base >= 3 &&
                     buf[base]=='U' && buf[base+1]=='R' && buf[base+2]=='L')
                     isUrl = true;
@@ -328,45 +803,60 @@ public class HDFSWriterDocument implements Writable {
                 pos++;
 
                 // skip whitespace
-                while (pos < this.length && (buf[pos] == ' ' || buf[pos]=='\t'))
+                while (pos < end && (buf[pos] == ' ' || buf[pos]=='\t'))
                     pos++;
 
                 base = pos;
 
                 // find LF
-                while (pos < this.length && buf[pos] != '\n')
+                while (pos < end && buf[pos] != '\n')
                     pos++;
 
                 int endpos = (buf[pos-1] == '\r') ? pos-1 : pos;
 
-                String value = new String(buf, base, endpos-base);
-
                 // check for http
                 if (isUrl) {
-                    url = value;
-                    int colon = url.indexOf(':');
-                    if (colon > 0) {
-                        scheme = url.substring(0, colon).toLowerCase();
-                        isHttp = scheme.equals("http") ? true : false;
-                    }
+                    urlField = fieldCount;
+                    isHttp = isHttpURL(base, endpos);
                 }
 
-                if (value.length() > 0)
-                    fieldMap.put(label, value);
+                if (endpos > base) {
+                    if (fields.length < (fieldCount+1) * 4) {
+                        int [] grown = new int [fields.length * 2];
+                        System.arraycopy(fields, 0, grown, 0, fields.length);
+                        fields = grown;
+                    }
+                    int i = fieldCount * 4;
+                    fields[i] = labelBase;
+                    fields[i+1] = labelEnd;
+                    fields[i+2] = base;
+                    fields[i+3] = endpos;
+                    fieldCount++;
+                } else if (isUrl) {
+                    urlField = -1;
+                    urlParsed = true;
+                    url = "";
+                }
 
                 pos++;
             }
         }
 
         requestBase = buf;
+        responseBase = buf;
+
+        if (version == 4) {
+            applySections();
+            return;
+        }
 
         /**
          *  Read HTTP Request
          */
         if (isHttp) {
-            for (requestOffset = pos; pos < this.length; pos++) {
+            for (requestOffset = pos; pos < end; pos++) {
                 if (buf[pos] == '\n') {
-                    if (pos < this.length-2) {
+                    if (pos < end-2) {
                         if (buf[pos+1] == '\n') {
                             requestLength = (pos+2)-requestOffset;
                             pos += 2;
@@ -379,14 +869,14 @@ public class HDFSWriterDocument implements Writable {
                         }
                     }
                     else {
-                        requestLength = this.length-requestOffset;
-                        pos = this.length;
+                        requestLength = end-requestOffset;
+                        pos = end;
                         break;
                     }
                 }
             }
-            if (pos == this.length)
-                requestLength = this.length-requestOffset;
+            if (pos == end)
+                requestLength = end-requestOffset;
         }
         else {
             requestOffset = 0;
@@ -398,209 +888,174 @@ public class HDFSWriterDocument implements Writable {
          */
         responseBase = buf;
         responseOffset = responseBodyOffset = pos;
-        responseLength = this.length - responseOffset;
+        responseLength = end - responseOffset;
 
         if (isHttp)
             parseResponse();
     }
 
     /**
-     * Parses the HTTP response section, determining the body offset and
-     * setting the charset field
+     * Sets the request and response bounds of a 0.4 document from its
+     * section table.  The response headers are parsed when first needed.
      */
-    private void parseResponse() {
-        //int base;
-        boolean parsingContentType = false;
+    private void applySections() {
+        requestOffset = start + sections.getRequestOffset();
+        requestLength = clamp(requestOffset, sections.getRequestLength());
 
-        bss.init(responseBase, responseOffset, responseOffset + responseLength);
+        responseOffset = start + sections.getHeaderOffset();
+        responseBodyOffset = start + sections.getBodyOffset();
+        responseLength = clamp(responseOffset, responseBodyOffset + sections.getBodyLength() - responseOffset);
+        responseCode = sections.getStatusCode();
+        contentType = HDFSSectionTable.getContentType(sections.getContentTypeId());
 
-        if (!ByteScan.SkipToWhitespace(bss))
-            return;
-
-        if (!ByteScan.SkipWhitespace(bss))
-            return;
-
-        ByteScan.ParseInt(bss);
-        responseCode = bss.ival;
+        if (sections.getHeaderLength() < 0)
+            parseResponse();
+        else if (sections.getHeaderLength() > 0)
+            responseParsed = false;
+    }
 
-        while (!bss.eob()) {
+    /**
+     * Limits a section to the bytes parsed, which are fewer than its
+     * length when only a prefix of the document was parsed
+     */
+    private int clamp(int offset, int length) {
+        return Math.max(0, Math.min(length, end - offset));
+    }
 
-            if (bss.buf[bss.offset] == '\n') {
-                if (parsingContentType) {
-                    tmpBss.init(bss.buf, bss.mark, bss.offset);
-                    parseContentType(tmpBss);
-                    parsingContentType = false;
-                }
-                if (bss.offset < bss.end-2) {
-                    if (bss.buf[bss.offset+1] == '\n') {
-                        responseBodyOffset = bss.offset + 2;
-                        bss.offset += 2;
-                        break;
-                    }
-                    else if (bss.buf[bss.offset+1] == '\r' &&
-                             bss.buf[bss.offset+2] == '\n') {
-                        responseBodyOffset = bss.offset + 3;
-                        bss.offset += 3;
-                        break;
-                    }
-                }
-                else {
-                    responseBodyOffset = bss.end;
-                    bss.offset = bss.end;
-                    break;
-                }
-                bss.offset++;
-                bss.mark();
-            }
-            else if (bss.buf[bss.offset] == ':') {
-                tmpBss.init(bss.buf, bss.mark, bss.offset);
-                if (ByteScan.Equals(tmpBss, contentTypeChars))
-                    parsingContentType = true;
-                bss.offset++;
-                bss.mark();
-            }
-            else
-                bss.offset++;
+    /**
+     * Parses the response headers of a 0.4 document if it has not been
+     * done yet
+     */
+    private void parseResponseIfNeeded() {
+        if (!responseParsed) {
+            responseParsed = true;
+            parseResponse();
         }
-
-        responseBodyOffset = bss.offset;
-
-        if (contentType == null || contentType.startsWith("text"))
-            findAndParseContentType(bss);
     }
 
-    private char [] metaChars      = { 'm','e','t','a' };
-    private char [] xmlChars       = { '?','x','m','l' };
-    private char [] httpEquivChars = { 'h','t','t','p','-','e','q','u','i','v' };
-    private char [] contentChars   = { 'c','o','n','t','e','n','t' };
-    private char [] encodingChars  = { 'e','n','c','o','d','i','n','g' };
-    private char [] closeHeadChars = { '/','h','e','a','d' };
-    private char [] xmlEndChars    = { '?','>' };
+    private char [] httpChars = { 'h','t','t','p' };
 
     /**
-     * Looks for <META http-equiv="Content-Type" ... or
-     * <?xml ... encoding=" and extracts content-type and/or
-     * charset info
+     * Returns true if the URL at buf[offset, end) has the http scheme.
      */
-    private void findAndParseContentType(ByteScan.State bss) {
-
-        if (!ByteScan.FindSkip(bss, '<'))
-            return;
-
-        /**
-         * XML
-         */
-        if (ByteScan.StartsWithSkip(bss, xmlChars)) {
-
-            // set byte scan region to that inside <?xml ... ?>
-            bss.mark();
-            if (!ByteScan.Find(bss, xmlEndChars))
-                return;
-
-            bss.end = bss.offset;
-            bss.flip();
+    private boolean isHttpURL(int offset, int end) {
+        tmpBss.init(buf, offset, end);
+        return ByteScan.StartsWith(tmpBss, httpChars) &&
+            offset + httpChars.length < end && buf[offset + httpChars.length] == ':';
+    }
 
-            // find encoding
-            if (!ByteScan.FindSkip(bss, encodingChars))
-                return;
+    /**
+     * Parses the HTTP response section, determining the body offset and
+     * setting the charset field
+     */
+    private void parseResponse() {
+        byte [] base = responseBase;
+        int end = responseOffset + responseLength;
 
-            // find starting doublequote
-            if (!ByteScan.FindSkip(bss, '"'))
-                return;
+        headerCount = 0;
+        bss.init(base, responseOffset, end);
 
-            bss.mark();
+        if (!ByteScan.SkipToWhitespace(bss))
+            return;
 
-            if (!ByteScan.Find(bss, '"'))
-                return;
+        if (!ByteScan.SkipWhitespace(bss))
+            return;
 
-            charset = bss.toString().toUpperCase();
+        ByteScan.ParseInt(bss);
+        responseCode = bss.ival;
 
-            return;
-        }
+        // skip the rest of the status line
+        int p = bss.offset;
+        while (p < end && base[p] != '\n')
+            p++;
+        p++;
 
         /**
-         * HTML
+         * Index the header lines up to the blank line ending the head
          */
-        bss.offset--;
-        while (ByteScan.FindSkip(bss, '<')) {
-
-            if (ByteScan.StartsWithSkip(bss, metaChars)) {
-
-                // make sure next comes whitespace
-                bss.mark();
-                if (!ByteScan.SkipWhitespace(bss))
-                    return;
-                if (bss.offset == bss.mark)
-                    continue;
-
-                if (!ByteScan.StartsWithSkip(bss, httpEquivChars))
-                    continue;
-
+        while (p < end) {
 
-                if (!ByteScan.SkipWhitespace(bss))
-                    return;
-
-                // skip '=' character
-                if (bss.buf[bss.offset++] != '=')
-                    continue;
-
-                if (!ByteScan.SkipWhitespace(bss))
-                    return;
-
-                // skip '"' character
-                if (bss.buf[bss.offset++] != '"')
-                    continue;
-
-                bss.mark();
-
-                if (!ByteScan.FindSkip(bss, '"'))
-                    return;
-
-                bss.flip();
-
-                if (!ByteScan.StartsWith(bss, contentTypeChars))
-                    continue;
-
-                bss.flip();
-
-                if (!ByteScan.SkipWhitespace(bss))
-                    return;
-
-                if (!ByteScan.StartsWithSkip(bss, contentChars))
-                    return;
-
-                if (!ByteScan.SkipWhitespace(bss))
-                    return;
+            if (base[p] == '\n') {
+                p++;
+                break;
+            } else if (base[p] == '\r' && p+1 < end && base[p+1] == '\n') {
+                p += 2;
+                break;
+            }
 
-                // skip '=' character
-                if (bss.buf[bss.offset++] != '=')
-                    continue;
+            int lineStart = p;
+            while (p < end && base[p] != '\n')
+                p++;
+            int lineEnd = (base[p-1] == '\r') ? p-1 : p;
+            p++;
+
+            // a folded line continues the previous value
+            if (base[lineStart] == ' ' || base[lineStart] == '\t') {
+                if (headerCount > 0)
+                    headers[headerCount*4 - 1] = trimEnd(base, lineStart, lineEnd);
+                continue;
+            }
 
-                if (!ByteScan.SkipWhitespace(bss))
-                    return;
+            int colon = lineStart;
+            while (colon < lineEnd && base[colon] != ':')
+                colon++;
+            if (colon == lineEnd)
+                continue;
 
-                // skip '=' character
-                if (bss.buf[bss.offset++] != '"')
-                    continue;
+            int valueStart = colon + 1;
+            while (valueStart < lineEnd && (base[valueStart] == ' ' || base[valueStart] == '\t'))
+                valueStart++;
 
-                bss.mark();
+            if (headers.length < (headerCount+1) * 4) {
+                int [] grown = new int [headers.length * 2];
+                System.arraycopy(headers, 0, grown, 0, headers.length);
+                headers = grown;
+            }
+            int i = headerCount * 4;
+            headers[i] = lineStart;
+            headers[i+1] = trimEnd(base, lineStart, colon);
+            headers[i+2] = valueStart;
+            headers[i+3] = trimEnd(base, valueStart, lineEnd);
+            headerCount++;
+        }
 
-                if (!ByteScan.Find(bss, '"'))
-                    return;
+        responseBodyOffset = Math.min(p, end);
 
-                tmpBss.init(bss.buf, bss.mark, bss.offset);
+        int i = findHeader(CONTENT_TYPE);
+        if (i >= 0) {
+            tmpBss.init(base, headers[i+2], headers[i+3]);
+            parseContentType(tmpBss);
+        }
 
-                parseContentType(tmpBss);
-                if (contentType == null)
-                    contentType = "text/html";
-                break;
-            }
-            else if (ByteScan.Equals(bss, closeHeadChars)) {
-                break;
+        charsetSource = CharsetSniffer.Source.HEADER;
+        if (contentType == null || contentType.startsWith("text") || contentType.indexOf("xml") >= 0) {
+            if (sniffer.sniff(base, responseBodyOffset, end, charset)) {
+                charset = sniffer.getName();
+                charsetSource = sniffer.getSource();
+                if (contentType == null && sniffer.getSource() == CharsetSniffer.Source.META)
+                    contentType = (sniffer.getContentType() != null) ? sniffer.getContentType() : "text/html";
             }
         }
     }
 
+    private static int trimEnd(byte [] buf, int offset, int end) {
+        while (end > offset && (buf[end-1] == ' ' || buf[end-1] == '\t'))
+            end--;
+        return end;
+    }
+
+    /**
+     * Returns the index into headers of the first response header named
+     * <code>name</code>, ignoring ASCII case, or -1.
+     */
+    private int findHeader(String name) {
+        parseResponseIfNeeded();
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (ByteScan.EqualsIgnoreCase(responseBase, headers[i], headers[i+1], name))
+                return i;
+        }
+        return -1;
+    }
 
     /**
      * Parses the Content-Type HTTP header
@@ -664,14 +1119,7 @@ public class HDFSWriterDocument implements Writable {
             len++;
         if (len < csetChars.length)
             charset = new String(csetChars, 0, len);
-        if (!charset.startsWith("ISO-") &&
-            ((charset.endsWith("8859-1") || charset.endsWith("8859_1")))) {
-            charset = "ISO-8859-1";
-        }
-        else if (charset.endsWith("UTF8")) {
-            charset = "UTF-8";
-        }
-        return charset;
+        return CharsetSniffer.normalize(charset);
     }
 
 
@@ -682,7 +1130,7 @@ public class HDFSWriterDocument implements Writable {
         if (isModified) {
             StringBuilder anvlBlock = new StringBuilder();
 
-            for (Iterator<Entry<String, String>> iter = fieldMap.entrySet().iterator(); iter.hasNext();) {
+            for (Iterator<Entry<String, String>> iter = getFieldMap().entrySet().iterator(); iter.hasNext();) {
                 Entry<String, String> entry = (Entry<String, String>)iter.next();
                 String key = (String)entry.getKey();
                 String value = (String)entry.getValue();
@@ -692,13 +1140,29 @@ public class HDFSWriterDocument implements Writable {
             anvlBlock.append("\r\n");
 
             byte [] anvlHeaderBytes = anvlBlock.toString().getBytes();
-            byte [] newbuf = new byte [ header.length + anvlHeaderBytes.length + requestLength + responseLength ];
+            int tableLength = (version == 4) ? HDFSSectionTable.SIZE : 0;
+            byte [] newbuf = new byte [ header.length + tableLength + anvlHeaderBytes.length + requestLength + responseLength ];
             int pos = 0;
 
             // write header
             System.arraycopy(header, 0, newbuf, pos, header.length);
+            newbuf[VERSION_DIGIT] = (byte)('0' + version);
             pos += header.length;
 
+            // write section table
+            if (version == 4) {
+                int headerLength = responseBodyOffset - responseOffset;
+                sections.scanResponse(responseBase, responseOffset, headerLength, true);
+                try {
+                    sections.layout(header.length, anvlHeaderBytes.length, requestLength, responseLength);
+                } catch (IOException e) {
+                    // cannot happen, the parts are in memory
+                    throw new IllegalStateException(e);
+                }
+                sections.write(newbuf, pos);
+                pos += tableLength;
+            }
+
             // write ANVL fields
             System.arraycopy(anvlHeaderBytes, 0, newbuf, pos, anvlHeaderBytes.length);
             pos += anvlHeaderBytes.length;
@@ -712,6 +1176,8 @@ public class HDFSWriterDocument implements Writable {
             // write response
             System.arraycopy(responseBase, responseOffset, newbuf, pos, responseLength);
             buf = newbuf;
+            start = 0;
+            end = length = newbuf.length;
             isModified = false;
         }
     }
@@ -722,21 +1188,31 @@ public class HDFSWriterDocument implements Writable {
      * @param out output object to serialize to
      */
     public void write(DataOutput out) throws IOException {
+        if (isTruncated())
+            throw new IOException("cannot write a truncated document");
         reconstructDocument();
-        out.writeInt(buf.length);
-        out.write(buf);
+        out.writeInt(length);
+        out.write(buf, start, length);
     }
 
     /**
-     * Reads the fields of this object from <code>in</code>.
+     * Reads the fields of this object from <code>in</code>.  The whole
+     * document is read into one buffer; {@link HDFSWriterStreamParser}
+     * parses large documents without holding their bodies.
      *
      * @param in input object to de-serialize from
      */
     public void readFields(DataInput in) throws IOException {
         int length = in.readInt();
-        byte [] docBytes = new byte [ length ];
-        in.readFully(docBytes);
-        load(docBytes, 0, length);
+
+        // allocate new buffer if necessary
+        if (ownBuf == null || ownBuf.length < length ||
+            ownBuf.length > HIGH_WATER_BUFFER_LENGTH) {
+            ownBuf = new byte [length];
+        }
+
+        in.readFully(ownBuf, 0, length);
+        wrap(ownBuf, 0, length);
     }
 
     static void printUsage() {
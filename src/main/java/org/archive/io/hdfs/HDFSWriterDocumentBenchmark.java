@@ -0,0 +1,182 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.archive.io.hdfs.util.ByteSeq;
+
+/**
+ * Measures the cost of reading HDFSWriter documents the way a
+ * metadata-only job such as CountCharsets does: the URL field and the
+ * charset of every record, nothing else.
+ *
+ * <pre>
+ *   HDFSWriterDocumentBenchmark &lt;sequence-file&gt; [-records N] [-passes N]
+ * </pre>
+ *
+ * The records are read into memory first, so only parsing is timed.  Each
+ * mode is run <code>passes</code> times and the best pass is reported as
+ * records per second, along with the bytes allocated per record where the
+ * JVM reports thread allocation.  The modes are
+ *
+ * <ul>
+ * <li><code>readFields</code>: a new document per record, read through a
+ * DataInputStream, with the field map built (the original CountCharsets
+ * mapper);</li>
+ * <li><code>fieldMap</code>: one reused document wrapping each value, with
+ * the field map built;</li>
+ * <li><code>fieldBytes</code>: one reused document wrapping each value,
+ * reading the URL as a slice of the record.</li>
+ * </ul>
+ */
+public class HDFSWriterDocumentBenchmark {
+
+    /**
+     * One way of reading a record.
+     */
+    private static abstract class Mode {
+        final String name;
+
+        Mode(String name) {
+            this.name = name;
+        }
+
+        /** @return a value derived from the record, so the work is not optimized away */
+        abstract int read(Text value) throws IOException;
+    }
+
+    private static final String URL = HDFSParameters.NAMED_FIELD_URL;
+
+    private static List<Mode> modes() {
+        List<Mode> modes = new ArrayList<Mode>();
+
+        modes.add(new Mode("readFields") {
+                int read(Text value) throws IOException {
+                    HDFSWriterDocument doc = new HDFSWriterDocument();
+                    doc.readFields(new DataInputStream(new ByteArrayInputStream(value.getBytes())));
+                    String url = doc.getFieldMap().get(URL);
+                    String charset = doc.getCharset();
+                    return ((url == null) ? 0 : url.length()) + ((charset == null) ? 0 : 1);
+                }
+            });
+
+        modes.add(new Mode("fieldMap") {
+                final HDFSWriterDocument doc = new HDFSWriterDocument();
+
+                int read(Text value) throws IOException {
+                    doc.wrap(value);
+                    String url = doc.getFieldMap().get(URL);
+                    String charset = doc.getCharset();
+                    return ((url == null) ? 0 : url.length()) + ((charset == null) ? 0 : 1);
+                }
+            });
+
+        modes.add(new Mode("fieldBytes") {
+                final HDFSWriterDocument doc = new HDFSWriterDocument();
+                final ByteSeq url = new ByteSeq();
+
+                int read(Text value) throws IOException {
+                    doc.wrap(value);
+                    int n = doc.getFieldBytes(URL, url) ? url.end - url.offset : 0;
+                    return n + ((doc.getCharset() == null) ? 0 : 1);
+                }
+            });
+
+        return modes;
+    }
+
+    static List<Text> readValues(Configuration conf, Path path, int max) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+        List<Text> values = new ArrayList<Text>();
+
+        try {
+            Text key = new Text();
+            Text value = new Text();
+            while (values.size() < max && reader.next(key, value)) {
+                values.add(value);
+                value = new Text();
+            }
+        } finally {
+            reader.close();
+        }
+        return values;
+    }
+
+    /**
+     * @return bytes allocated by the current thread, or -1 if the JVM does
+     * not report them
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)threads;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static void printUsage() {
+        System.out.println("HDFSWriterDocumentBenchmark <sequence-file> [-records N] [-passes N]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            printUsage();
+
+        int records = 100000;
+        int passes = 5;
+
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length)
+                printUsage();
+            if (args[i].equals("-records"))
+                records = Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-passes"))
+                passes = Integer.parseInt(args[i+1]);
+            else
+                printUsage();
+        }
+
+        List<Text> values = readValues(new Configuration(), new Path(args[0]), records);
+        if (values.isEmpty()) {
+            System.out.println("No records in " + args[0]);
+            System.exit(1);
+        }
+
+        System.out.println(String.format("%-12s %14s %14s", "mode", "records/s", "bytes/record"));
+
+        long check = 0;
+        for (Mode mode : modes()) {
+            long bestNanos = Long.MAX_VALUE;
+            long allocated = -1;
+
+            for (int pass = 0; pass < passes; pass++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for (Text value : values)
+                    check += mode.read(value);
+                long nanos = System.nanoTime() - start;
+                if (bytes >= 0)
+                    allocated = allocatedBytes() - bytes;
+                bestNanos = Math.min(bestNanos, nanos);
+            }
+
+            System.out.println(String.format("%-12s %14.0f %14s", mode.name,
+                                             values.size() / (bestNanos / 1e9),
+                                             (allocated < 0) ? "n/a" : Long.toString(allocated / values.size())));
+        }
+        System.out.println("# " + values.size() + " records, checksum " + check);
+    }
+}
@@ -7,22 +7,77 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.archive.io.WriterPoolMember;
+import org.archive.io.hdfs.util.TokenBucket;
 
 public class HDFSWriterFactory extends BasePoolableObjectFactory {
 
     private final Logger LOG = Logger.getLogger(this.getClass().getName());
     private AtomicInteger serialNo;
     private HDFSParameters parameters;
+    private DeferredReplication deferredReplication;
+    private HDFSFileSystems fileSystems;
+    private TokenBucket globalThrottle;
+    private HDFSWriterMetrics metrics;
+    private HDFSOutputLayout outputLayout;
+    private HDFSManifest manifest;
+    private AdaptiveCompression adaptiveCompression;
+    private DeflateDictionary dictionary;
 
     public HDFSWriterFactory(AtomicInteger serialNo, HDFSParameters parameters) {
 
+        this(serialNo, parameters, null, null, null, null);
+    }
+
+    public HDFSWriterFactory(AtomicInteger serialNo,
+                             HDFSParameters parameters,
+                             HDFSFileSystems fileSystems,
+                             DeferredReplication deferredReplication,
+                             TokenBucket globalThrottle,
+                             HDFSWriterMetrics metrics) {
+
         this.serialNo = serialNo;
         this.parameters = parameters;
+        this.fileSystems = fileSystems;
+        this.deferredReplication = deferredReplication;
+        this.globalThrottle = globalThrottle;
+        this.metrics = metrics;
+    }
+
+    public void setOutputLayout(HDFSOutputLayout outputLayout) {
+
+        this.outputLayout = outputLayout;
+    }
+
+    public void setManifest(HDFSManifest manifest) {
+
+        this.manifest = manifest;
+    }
+
+    public void setAdaptiveCompression(AdaptiveCompression adaptiveCompression) {
+
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    public void setDictionary(DeflateDictionary dictionary) {
+
+        this.dictionary = dictionary;
     }
 
     @Override
     public WriterPoolMember makeObject() throws Exception {
-        return(new HDFSWriter(serialNo, parameters));
+        HDFSWriter writer = new HDFSWriter(serialNo, parameters, fileSystems);
+
+        if (deferredReplication != null)
+            writer.setDeferredReplication(deferredReplication,
+                                          parameters.getHdfsInitialReplication());
+
+        writer.setPoolResources(globalThrottle, metrics);
+        writer.setOutputLayout(outputLayout);
+        writer.setAdaptiveCompression(adaptiveCompression);
+        writer.setDictionary(dictionary);
+        writer.setManifest(manifest);
+
+        return(writer);
     }
 
     public void destroyObject(WriterPoolMember obj) throws Exception {
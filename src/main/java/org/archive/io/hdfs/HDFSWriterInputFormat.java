@@ -0,0 +1,173 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.archive.io.ArchiveFileConstants;
+
+/**
+ * Reads HDFSWriter SequenceFiles with the <code>mapreduce</code> API,
+ * handing each map task its records as (URI, document) pairs.
+ *
+ * Each task reuses one {@link HDFSWriterDocument}, which is parsed in place
+ * over the buffer the record was read into (see
+ * {@link HDFSWriterRecordReader}).  Jobs can ask for
+ *
+ * <ul>
+ * <li>projection ({@link #setProjection}): only the fields and the
+ * response headers of each record are read, see
+ * {@link HDFSProjectedReader};</li>
+ * <li>status codes ({@link #setStatusCodes}) and MIME type prefixes
+ * ({@link #setMimeTypePrefixes}): records that do not match are skipped
+ * before the mapper sees them.  For HDFSWriter/0.4 documents both are
+ * taken from the section table, without parsing the response headers.</li>
+ * </ul>
+ *
+ * Input directories are listed recursively unless
+ * <code>mapreduce.input.fileinputformat.input.dir.recursive</code> is set
+ * to false.  Files still being written, which end in <code>.open</code>,
+ * and files a checkpoint recovery moved aside, which end in
+ * <code>.post-checkpoint</code>, are left out.
+ */
+public class HDFSWriterInputFormat extends FileInputFormat<Text, HDFSWriterDocument> {
+
+    public static final String PROJECTION = "hdfswriter.input.projection";
+    public static final String PREFIX_LENGTH = "hdfswriter.input.prefix.length";
+    public static final String STATUS_CODES = "hdfswriter.input.status.codes";
+    public static final String MIME_TYPE_PREFIXES = "hdfswriter.input.mime.prefixes";
+
+    /**
+     * Sets whether only the fields and response headers of records are
+     * read.  Off by default.
+     */
+    public static void setProjection(Job job, boolean projection) {
+        job.getConfiguration().setBoolean(PROJECTION, projection);
+    }
+
+    /**
+     * Limits the records read to those with one of the given HTTP status
+     * codes.  Each is a code such as "200" or a class such as "2xx".
+     */
+    public static void setStatusCodes(Job job, String... codes) {
+        job.getConfiguration().setStrings(STATUS_CODES, codes);
+    }
+
+    /**
+     * Limits the records read to those whose lower cased content type
+     * starts with one of the given prefixes, for example "text/".
+     */
+    public static void setMimeTypePrefixes(Job job, String... prefixes) {
+        job.getConfiguration().setStrings(MIME_TYPE_PREFIXES, prefixes);
+    }
+
+    @Override
+    public RecordReader<Text, HDFSWriterDocument> createRecordReader(InputSplit split,
+                                                                     TaskAttemptContext context) {
+        return new HDFSWriterRecordReader();
+    }
+
+    @Override
+    protected long getFormatMinSplitSize() {
+        return SequenceFile.SYNC_INTERVAL;
+    }
+
+    /**
+     * Lists the input directories recursively unless the job says
+     * otherwise, leaving out files still being written and files moved
+     * aside by a checkpoint recovery.
+     */
+    @Override
+    protected List<FileStatus> listStatus(JobContext job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (conf.get(INPUT_DIR_RECURSIVE) == null)
+            conf.setBoolean(INPUT_DIR_RECURSIVE, true);
+
+        List<FileStatus> files = new ArrayList<FileStatus>();
+        for (FileStatus file : super.listStatus(job)) {
+            String name = file.getPath().getName();
+            if (!name.endsWith(ArchiveFileConstants.OCCUPIED_SUFFIX) &&
+                !name.endsWith(HDFSWriterCheckpoint.POST_CHECKPOINT_SUFFIX))
+                files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Record filter built from the job configuration.
+     */
+    static class Filter implements HDFSProjectedReader.RecordFilter {
+        private final int [] codes;
+        private final int [] classes;
+        private final String [] mimeTypePrefixes;
+
+        Filter(Configuration conf) {
+            String [] statusCodes = conf.getTrimmedStrings(STATUS_CODES);
+            List<Integer> codeList = new ArrayList<Integer>();
+            List<Integer> classList = new ArrayList<Integer>();
+            for (String code : statusCodes) {
+                if (code.length() == 3 && code.substring(1).equalsIgnoreCase("xx"))
+                    classList.add(Integer.parseInt(code.substring(0, 1)));
+                else
+                    codeList.add(Integer.parseInt(code));
+            }
+            this.codes = toArray(codeList);
+            this.classes = toArray(classList);
+
+            String [] prefixes = conf.getTrimmedStrings(MIME_TYPE_PREFIXES);
+            for (int i = 0; i < prefixes.length; i++)
+                prefixes[i] = prefixes[i].toLowerCase();
+            this.mimeTypePrefixes = prefixes;
+        }
+
+        private static int [] toArray(List<Integer> list) {
+            int [] array = new int [list.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = list.get(i);
+            return array;
+        }
+
+        boolean isEmpty() {
+            return codes.length == 0 && classes.length == 0 && mimeTypePrefixes.length == 0;
+        }
+
+        /**
+         * Tests the status code first, since finding the content type of a
+         * 0.3 document means parsing its response headers.
+         */
+        public boolean accept(HDFSWriterDocument doc) {
+            if (codes.length > 0 || classes.length > 0) {
+                int code = doc.getResponseCode();
+                boolean match = false;
+                for (int i = 0; !match && i < codes.length; i++)
+                    match = (codes[i] == code);
+                for (int i = 0; !match && i < classes.length; i++)
+                    match = (classes[i] == code / 100);
+                if (!match)
+                    return false;
+            }
+
+            if (mimeTypePrefixes.length > 0) {
+                String contentType = doc.getContentType();
+                if (contentType == null)
+                    return false;
+                for (String prefix : mimeTypePrefixes) {
+                    if (contentType.startsWith(prefix))
+                        return true;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.archive.io.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by the members of one {@link HDFSWriterPool}.
+ *
+ * Exposed through {@link org.archive.modules.writer.HDFSWriterProcessor}
+ * so they can be read from the Heritrix scripting console or bean browser
+ * while a crawl is running.
+ */
+public class HDFSWriterMetrics {
+
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong appendedBytes = new AtomicLong();
+    private final AtomicLong writerThrottledNanos = new AtomicLong();
+    private final AtomicLong globalThrottledNanos = new AtomicLong();
+    private final AtomicLong appendRetries = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong failedRecords = new AtomicLong();
+
+    public void recordAppend(long bytes) {
+        appendedRecords.incrementAndGet();
+        appendedBytes.addAndGet(bytes);
+    }
+
+    public void recordThrottle(long writerNanos, long globalNanos) {
+        if (writerNanos > 0)
+            writerThrottledNanos.addAndGet(writerNanos);
+        if (globalNanos > 0)
+            globalThrottledNanos.addAndGet(globalNanos);
+    }
+
+    public void recordRetry() {
+        appendRetries.incrementAndGet();
+    }
+
+    public void recordFailover() {
+        failovers.incrementAndGet();
+    }
+
+    public void recordFailedRecord() {
+        failedRecords.incrementAndGet();
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    public long getAppendedBytes() {
+        return appendedBytes.get();
+    }
+
+    /**
+     * @return milliseconds writers spent waiting on their own bandwidth limit
+     */
+    public long getWriterThrottledMs() {
+        return writerThrottledNanos.get() / 1000000;
+    }
+
+    /**
+     * @return milliseconds writers spent waiting on the global bandwidth limit
+     */
+    public long getGlobalThrottledMs() {
+        return globalThrottledNanos.get() / 1000000;
+    }
+
+    /**
+     * @return appends retried on another writer after a failure
+     */
+    public long getAppendRetries() {
+        return appendRetries.get();
+    }
+
+    /**
+     * @return writers whose file was invalidated by a failed append
+     */
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * @return records that could not be written
+     */
+    public long getFailedRecords() {
+        return failedRecords.get();
+    }
+}
@@ -1,13 +1,30 @@
 package org.archive.io.hdfs;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
+import org.json.JSONObject;
 
 import org.archive.io.hdfs.HDFSWriterPoolSettings;
 import org.archive.io.hdfs.HDFSWriterPoolMember;
 import org.archive.io.hdfs.HDFSWriterFactory;
 import org.archive.io.WriterPool;
 import org.archive.io.WriterPoolMember;
+import org.archive.io.hdfs.util.TokenBucket;
 
 /**
  * Provides an object that provides a pool of HDFSWriter instances.
@@ -20,6 +37,37 @@ public class HDFSWriterPool extends WriterPool {
     /** Factory for creating more HDFSWriter instances */
     private HDFSWriterFactory writerFactory;
 
+    /** Raises replication of closed files, null unless enabled */
+    private DeferredReplication deferredReplication;
+
+    /** HDFS clients the writers are spread across */
+    private HDFSFileSystems fileSystems;
+
+    /** Bandwidth limit shared by all writers */
+    private TokenBucket globalThrottle;
+
+    /** Counters shared by all writers */
+    private HDFSWriterMetrics metrics = new HDFSWriterMetrics();
+
+    /** Manifest of closed files, null unless enabled */
+    private HDFSManifest manifest;
+
+    /** Every member created, idle or borrowed, until it is discarded */
+    private Set<HDFSWriterPoolMember> members =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<HDFSWriterPoolMember, Boolean>()));
+
+    /** Flushes the files of idle writers, null unless an hflush interval is set */
+    private ScheduledExecutorService idleFlusher;
+
+    /** Chooses the compression level of new files, null unless enabled */
+    private AdaptiveCompression adaptiveCompression;
+
+    /** Compression dictionary trained from the first captures, null unless enabled */
+    private DeflateDictionary dictionary;
+
+    /** Files shared with group commit, empty unless enabled */
+    private HDFSGroupCommitWriter [] groupCommitWriters;
+
     /** Logger instance */
     private final Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -46,7 +94,74 @@ public class HDFSWriterPool extends WriterPool {
               poolMaximumWait);
 
         this.parameters = parameters;
-        this.writerFactory = new HDFSWriterFactory(serialNo, parameters);
+
+        this.groupCommitWriters = new HDFSGroupCommitWriter [Math.max(0, parameters.getGroupCommitFiles())];
+        for (int i = 0; i < groupCommitWriters.length; i++) {
+
+            groupCommitWriters[i] = new HDFSGroupCommitWriter(this, parameters, metrics);
+        }
+
+        if (parameters.isDeferredReplication())
+            this.deferredReplication = new DeferredReplication(parameters.getHdfsReplication());
+
+        this.fileSystems = new HDFSFileSystems(parameters);
+        this.globalThrottle = new TokenBucket(parameters.getGlobalBytesPerSecond());
+        this.writerFactory = new HDFSWriterFactory(serialNo, parameters, fileSystems,
+                                                   deferredReplication, globalThrottle, metrics);
+
+        if (parameters.isAdaptiveCompression()) {
+
+            adaptiveCompression = new AdaptiveCompression(parameters, metrics);
+            writerFactory.setAdaptiveCompression(adaptiveCompression);
+        }
+
+        if (parameters.isDictionaryCompression()) {
+
+            dictionary = new DeflateDictionary(parameters.getDictionarySamples(),
+                                               parameters.getDictionarySize());
+            writerFactory.setDictionary(dictionary);
+        }
+
+        String layout = parameters.getHdfsOutputLayout();
+        if (layout != null && layout.length() > 0) {
+
+            writerFactory.setOutputLayout(new HDFSOutputLayout(parameters.getHdfsOutputPath(),
+                                                               layout,
+                                                               parameters.getCrawlName(),
+                                                               parameters.getPrefix()));
+        }
+
+        if (parameters.isManifest()) {
+
+            try {
+
+                manifest = new HDFSManifest(fileSystems.next(),
+                                            parameters.getHdfsOutputPath(),
+                                            parameters.getCrawlName());
+                writerFactory.setManifest(manifest);
+            } catch(IOException exception) {
+
+                logger.warn("Couldn't open HDFS client for the manifest, closed files will not be recorded: -");
+                logger.warn(exception);
+            }
+        }
+
+        long hflushIntervalMs = parameters.getHflushIntervalMs();
+        if (hflushIntervalMs > 0) {
+
+            idleFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "HDFSWriter idle hflush");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            idleFlusher.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        flushIdle();
+                    }
+                }, hflushIntervalMs, hflushIntervalMs, TimeUnit.MILLISECONDS);
+        }
 
         // super(
         //       new AtomicInteger(),
@@ -56,6 +171,268 @@ public class HDFSWriterPool extends WriterPool {
         //       poolMaximumWait);
     }
 
+    /**
+     * Returns the deferred replication tracker, or null if files are
+     * written at their target replication.
+     */
+    public DeferredReplication getDeferredReplication() {
+
+        return(deferredReplication);
+    }
+
+    /**
+     * Waits for deferred replication of every closed file, logging the
+     * files still under-replicated after
+     * {@link HDFSParameters#getDeferredReplicationWaitMs()}.
+     *
+     * @return true if all closed files have reached their target replication
+     */
+    public boolean awaitReplication() {
+
+        if (deferredReplication == null) {
+
+            return(true);
+        }
+
+        logger.info("Waiting for replication of " + deferredReplication.getPendingCount() + " files");
+
+        return(deferredReplication.awaitPending(parameters.getDeferredReplicationWaitMs()));
+    }
+
+    /**
+     * Returns the group commit file for the calling thread, or null if
+     * group commit is disabled.
+     */
+    public HDFSGroupCommitWriter getGroupCommitWriter() {
+
+        if (groupCommitWriters.length == 0) {
+
+            return(null);
+        }
+
+        int index = (int)(Thread.currentThread().getId() % groupCommitWriters.length);
+
+        return(groupCommitWriters[index]);
+    }
+
+    /**
+     * Returns the adaptive compression controller, or null if files are
+     * compressed at the configured level.
+     */
+    public AdaptiveCompression getAdaptiveCompression() {
+
+        return(adaptiveCompression);
+    }
+
+    /**
+     * Returns the compression dictionary, or null if dictionary
+     * compression is disabled.
+     */
+    public DeflateDictionary getDictionary() {
+
+        return(dictionary);
+    }
+
+    /**
+     * Returns the counters shared by the writers of this pool.
+     */
+    public HDFSWriterMetrics getMetrics() {
+
+        return(metrics);
+    }
+
+    /**
+     * Flushes the files whose records have waited longer than
+     * {@link HDFSParameters#getHflushIntervalMs()}.  Writers flush after
+     * an append, so this only catches those that have stopped appending.
+     */
+    private void flushIdle() {
+
+        List<HDFSWriterPoolMember> snapshot;
+        synchronized (members) {
+
+            snapshot = new ArrayList<HDFSWriterPoolMember>(members);
+        }
+
+        for (HDFSWriterPoolMember member : snapshot) {
+
+            try {
+
+                member.hflushIfDue();
+            } catch(Exception exception) {
+
+                // the writer's next append fails over to another file
+                logger.warn("Couldn't flush idle HDFS writer: -");
+                logger.warn(exception);
+            }
+        }
+    }
+
+    /**
+     * Closes the files of all writers in parallel, waiting at most
+     * {@link HDFSParameters#getCloseTimeoutMs()}, then closes the pool.
+     * Files that miss the deadline are logged and left <code>.open</code>,
+     * readable up to their last flush and recoverable like the files of
+     * a crashed crawl.  Writers still borrowed by ToeThreads fail any
+     * further append with an IOException, see
+     * {@link HDFSWriterPoolMember#startClosing()}.
+     */
+    @Override
+    public void close() {
+
+        for (HDFSGroupCommitWriter groupCommitWriter : groupCommitWriters) {
+
+            groupCommitWriter.release();
+        }
+
+        List<HDFSWriterPoolMember> open = new ArrayList<HDFSWriterPoolMember>();
+        synchronized (members) {
+
+            for (HDFSWriterPoolMember member : members) {
+
+                // borrowed members fail their appends from here on
+                member.startClosing();
+                if (member.getOpenPath() != null) {
+
+                    open.add(member);
+                }
+            }
+        }
+
+        if (!open.isEmpty()) {
+
+            closeMembers(open);
+        }
+
+        super.close();
+    }
+
+    private void closeMembers(List<HDFSWriterPoolMember> open) {
+
+        long start = System.currentTimeMillis();
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(open.size());
+        final String [] paths = new String [open.size()];
+
+        for (int i = 0; i < open.size(); i++) {
+
+            final HDFSWriterPoolMember member = open.get(i);
+            paths[i] = member.getOpenPath();
+            tasks.add(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        long begin = System.currentTimeMillis();
+                        member.close();
+                        return(Long.valueOf(System.currentTimeMillis() - begin));
+                    }
+                });
+        }
+
+        int threads = Math.max(1, Math.min(open.size(), parameters.getCloseThreads()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HDFSWriter close");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        int missed = 0;
+        try {
+
+            List<Future<Long>> results = executor.invokeAll(tasks, parameters.getCloseTimeoutMs(),
+                                                            TimeUnit.MILLISECONDS);
+
+            for (int i = 0; i < results.size(); i++) {
+
+                try {
+
+                    logger.info("Closed " + paths[i] + " in " + results.get(i).get() + "ms");
+                } catch(CancellationException exception) {
+
+                    open.get(i).abandon();
+                    logger.error("Close of " + paths[i] + " missed the " + parameters.getCloseTimeoutMs() +
+                                 "ms deadline, left open for recovery");
+                    missed++;
+                } catch(ExecutionException exception) {
+
+                    logger.error("Failed to close " + paths[i], exception.getCause());
+                }
+            }
+        } catch(InterruptedException exception) {
+
+            Thread.currentThread().interrupt();
+            for (HDFSWriterPoolMember member : open) {
+
+                member.abandon();
+            }
+            logger.error("Interrupted while closing " + open.size() + " files, left open for recovery");
+            missed = open.size();
+        } finally {
+
+            // invokeAll has already interrupted closes that missed the deadline
+            executor.shutdown();
+        }
+
+        logger.info("Closed " + (open.size() - missed) + " of " + open.size() + " files in " +
+                    (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Syncs the open files of all writers in parallel for a crawl
+     * checkpoint.
+     *
+     * @param name name of the checkpoint
+     * @return path and durable length of every open file
+     * @throws IOException if the files could not be synced in time
+     * @see HDFSWriterCheckpoint#flush(java.util.Collection, HDFSManifest, String)
+     */
+    public JSONObject checkpoint(String name) throws IOException {
+
+        List<HDFSWriterPoolMember> snapshot;
+        synchronized (members) {
+
+            snapshot = new ArrayList<HDFSWriterPoolMember>(members);
+        }
+
+        return(new HDFSWriterCheckpoint(fileSystems.next(), parameters).flush(snapshot, manifest, name));
+    }
+
+    /**
+     * Rolls the output back to a crawl checkpoint.  Call before the pool
+     * hands out any writer.
+     *
+     * @param checkpoint value returned by {@link #checkpoint(String)}
+     * @throws IOException if the files could not be restored
+     * @see HDFSWriterCheckpoint#recover(JSONObject)
+     */
+    public void recover(JSONObject checkpoint) throws IOException {
+
+        new HDFSWriterCheckpoint(fileSystems.next(), parameters).recover(checkpoint);
+    }
+
+    /**
+     * Closes the HDFS clients opened for this pool.  Call once the pool
+     * has been closed and deferred replication has completed.
+     */
+    public void closeFileSystems() {
+
+        if (idleFlusher != null) {
+
+            idleFlusher.shutdownNow();
+        }
+
+        if (deferredReplication != null) {
+
+            deferredReplication.shutdown();
+        }
+
+        if (manifest != null) {
+
+            manifest.close();
+        }
+
+        fileSystems.close();
+    }
+
     /**
      * Returns another writer for the pool.
      *
@@ -68,6 +445,7 @@ public class HDFSWriterPool extends WriterPool {
         try {
 
             member = writerFactory.makeObject();
+            members.add((HDFSWriterPoolMember)member);
         } catch(Exception exception) {
 
             logger.warn("Couldn't create new HDFS writer: -");
@@ -5,23 +5,35 @@ import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.EnumSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options.ChecksumOpt;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.DataChecksum;
 import org.archive.crawler.event.CrawlStateEvent;
 import org.archive.crawler.framework.CrawlController;
 import org.archive.io.ArchiveFileConstants;
 import org.archive.io.WriterPool;
 import org.archive.io.WriterPoolMember;
+import org.archive.modules.CrawlURI;
 import org.archive.io.hdfs.HDFSWriterPoolSettings;
+import org.archive.io.hdfs.util.TokenBucket;
 import org.archive.util.ArchiveUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 
@@ -53,6 +65,14 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
      */
     private SequenceFile.Writer sfWriter = null;
 
+    /**
+     * Stream underneath <code>sfWriter</code>.  It is opened by
+     * {@link #createFile()} so that per-file block size, buffer size,
+     * replication and checksum options can be applied, and must be closed
+     * after the writer.
+     */
+    private FSDataOutputStream fsOut = null;
+
     /**
      * HDFS FileSystem object
      */
@@ -66,6 +86,111 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
     private String hdfsCompressionType = "DEFAULT";
     private Configuration hdfsConf = null;
     private int hdfsReplication = 3;
+    private int hdfsInitialReplication = 3;
+    private long hdfsBlockSize = 0;
+    private int hdfsBufferSize = 0;
+    private int hdfsBytesPerChecksum = 0;
+    private boolean blockAlignedRoll = false;
+
+    /**
+     * Length at which the current file is rolled over.  Equal to maxSize
+     * unless block aligned rolling is enabled.
+     */
+    private long rollLength = -1;
+    private SequenceFile.CompressionType compType = null;
+    private long recordsInFile = 0;
+
+    /**
+     * Raises the replication of closed files when writes happen at a lower
+     * replication, null otherwise.
+     */
+    private DeferredReplication deferredReplication = null;
+
+    /**
+     * Settings read on every append so that bandwidth limits can be
+     * changed while the crawl is running.  Null when this member was
+     * not created from an HDFSParameters object.
+     */
+    private HDFSParameters parameters = null;
+
+    /**
+     * Bandwidth limit of this writer and of the whole pool.
+     */
+    private TokenBucket writerThrottle = new TokenBucket(0);
+    private TokenBucket globalThrottle = null;
+    private long throttledNanos = 0;
+
+    /**
+     * Counters shared by the pool, may be null.
+     */
+    private HDFSWriterMetrics metrics = null;
+
+    /**
+     * Directory layout shared by the pool, null to write every file
+     * directly into <code>hdfsOutputPath</code>.
+     */
+    private HDFSOutputLayout outputLayout = null;
+
+    /**
+     * Manifest of closed files shared by the pool, may be null.
+     */
+    private HDFSManifest manifest = null;
+
+    /**
+     * Statistics of the current file.
+     */
+    private HDFSFileStats fileStats = new HDFSFileStats();
+
+    /**
+     * Whether the statistics of each closed file are written to a sidecar.
+     */
+    private boolean statsSidecar = false;
+
+    public static final String STATS_SIDECAR_SUFFIX = ".stats";
+
+    /**
+     * Longest time appended records may stay invisible to readers of the
+     * open file, 0 to flush only on close.
+     */
+    private long hflushIntervalMs = 0;
+    private long lastHflush = 0;
+    private boolean unflushed = false;
+
+    /**
+     * Record whose append failed, left in accumBuffer so that it can be
+     * retried on another member.  Null after a successful append.
+     */
+    private String failedUri = null;
+    private CrawlURI failedCuri = null;
+    private String failedSeedUrl = null;
+
+    /**
+     * Chooses the compression level of each file, null for the fixed
+     * level of the configuration.
+     */
+    private AdaptiveCompression adaptiveCompression = null;
+
+    /**
+     * Dictionary shared by the pool, null unless values are compressed
+     * with one.  fileDictionary is the dictionary of the current file,
+     * null while it is still being trained.
+     */
+    private DeflateDictionary dictionary = null;
+    private byte [] fileDictionary = null;
+    private Deflater deflater = null;
+    private byte [] compressBuffer = new byte [ 65536 ];
+    private int [] compressEnd = new int [1];
+
+    /**
+     * Set when the pool gave up waiting for this member to close.
+     */
+    private volatile boolean abandoned = false;
+
+    /**
+     * Set when the pool starts closing, after which no file is opened
+     * and no record appended.
+     */
+    private volatile boolean closing = false;
 
     /**
      * Accumulator to hold record contents
@@ -89,6 +214,23 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
     public HDFSWriterPoolMember(final AtomicInteger serialNo,
                                 HDFSParameters parameters) throws IOException {
 
+        this(serialNo, parameters, null);
+    }
+
+    /**
+     * Creates a member writing through one of the clients in
+     * <code>fileSystems</code>.
+     *
+     * @param serialNo used to create unique filename sequences
+     * @param parameters writer settings
+     * @param fileSystems clients shared by the pool, or null to use the
+     *     cached FileSystem for <code>hdfsFsDefaultName</code>
+     * @exception IOException
+     */
+    public HDFSWriterPoolMember(final AtomicInteger serialNo,
+                                HDFSParameters parameters,
+                                HDFSFileSystems fileSystems) throws IOException {
+
         this(serialNo,
              parameters.getPrefix(),
              parameters.isCompression(),
@@ -98,7 +240,16 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
              parameters.getHdfsOutputPath(),
              parameters.getHdfsFsDefaultName(),
              parameters.getSuffix(),
-             parameters.getWriterPoolSettings());
+             parameters.getWriterPoolSettings(),
+             fileSystems);
+
+        this.parameters = parameters;
+        this.statsSidecar = parameters.isStatsSidecar();
+        this.hflushIntervalMs = parameters.getHflushIntervalMs();
+        this.hdfsBlockSize = parameters.getHdfsBlockSize();
+        this.hdfsBufferSize = parameters.getHdfsBufferSize();
+        this.hdfsBytesPerChecksum = parameters.getHdfsBytesPerChecksum();
+        this.blockAlignedRoll = HDFSParameters.ROLL_POLICY_BLOCK.equals(parameters.getRollPolicy());
     }
 
     /**
@@ -130,6 +281,23 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
                                 HDFSWriterPoolSettings settings)
         throws IOException {
 
+        this(serialNo, prefix, cmprs, maxSize, hdfsReplication, hdfsCompressionType,
+             hdfsOutputPath, hdfsFsDefaultName, suffix, settings, null);
+    }
+
+    protected HDFSWriterPoolMember(final AtomicInteger serialNo,
+                                   final String prefix,
+                                   final boolean cmprs,
+                                   final long maxSize,
+                                   final int hdfsReplication,
+                                   final String hdfsCompressionType,
+                                   final String hdfsOutputPath,
+                                   final String hdfsFsDefaultName,
+                                   final String suffix,
+                                   HDFSWriterPoolSettings settings,
+                                   HDFSFileSystems fileSystems)
+        throws IOException {
+
         //super(serialNo, null, prefix, cmprs, maxSize, null);
         super(serialNo, settings, suffix);
 
@@ -138,6 +306,7 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
         this.maxSize = maxSize;
         this.compressed = cmprs;
         this.hdfsReplication = hdfsReplication;
+        this.hdfsInitialReplication = hdfsReplication;
 
         if (hdfsOutputPath.endsWith("/"))
             this.hdfsOutputPath =
@@ -148,10 +317,15 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
         this.hdfsFsDefaultName = hdfsFsDefaultName;
         this.hdfsCompressionType = hdfsCompressionType;
 
-        this.hdfsConf = new Configuration();
-        hdfsConf.set("fs.default.name", this.hdfsFsDefaultName);
+        if (fileSystems != null) {
+            this.hdfsConf = fileSystems.getConf();
+            this.fs = fileSystems.next();
+        } else {
+            this.hdfsConf = new Configuration();
+            hdfsConf.set("fs.default.name", this.hdfsFsDefaultName);
 
-        this.fs = FileSystem.get(hdfsConf);
+            this.fs = FileSystem.get(hdfsConf);
+        }
 
         // make sure the output directory exists
         Path outputDir = new Path(this.hdfsOutputPath);
@@ -172,10 +346,43 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
     @Override
     public void checkSize() throws IOException {
         if (sfWriter == null ||
-            (this.maxSize != -1 && (this.sfWriter.getLength() > this.maxSize)))
+            (this.rollLength != -1 && (this.sfWriter.getLength() > this.rollLength)))
             createFile();
     }
 
+    /**
+     * Like {@link #checkSize()}, but when block aligned rolling is enabled
+     * also rolls the file if appending a record of about
+     * <code>upcomingBytes</code> would cross the block boundary.
+     *
+     * @param upcomingBytes approximate size of the next record
+     * @exception IOException
+     */
+    public void checkSize(long upcomingBytes) throws IOException {
+        if (sfWriter != null && blockAlignedRoll && recordsInFile > 0 &&
+            sfWriter.getLength() + estimateAppendLength(upcomingBytes) > rollLength) {
+            createFile();
+            return;
+        }
+
+        checkSize();
+    }
+
+    /**
+     * Estimates how many bytes a record will add to the file, allowing for
+     * the SequenceFile record header, sync markers (20 bytes every 2000)
+     * and for data buffered by BLOCK compression that is not yet reflected
+     * in the file length.
+     */
+    private long estimateAppendLength(long recordBytes) {
+        long estimate = recordBytes + 1024 + recordBytes / 100;
+
+        if (compType == SequenceFile.CompressionType.BLOCK)
+            estimate += hdfsConf.getInt("io.seqfile.compress.blocksize", 1000000);
+
+        return estimate;
+    }
+
     /**
      * Create a new file.
      *
@@ -187,7 +394,10 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
      * @return Name of file created.
      * @throws IOException
      */
-    protected String createFile() throws IOException {
+    protected synchronized String createFile() throws IOException {
+
+        if (closing)
+            throw new IOException("Writer pool is closing, not opening a new file");
 
         generateNewBasename();
         //TimestampSerialno tsn = getTimestampSerialNo();
@@ -198,12 +408,12 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
         close();
 
         //this.createTimestamp = tsn.getTimestamp();
-        fstr  = hdfsOutputPath + "/" + name;
+        String dir = (outputLayout == null) ? hdfsOutputPath :
+            outputLayout.directoryFor(fs, System.currentTimeMillis());
+        fstr  = dir + "/" + name;
         this.fpath = new Path(fstr);
 
         // Determine SequenceFile compression type
-        SequenceFile.CompressionType compType;
-
         if (hdfsCompressionType.equals("DEFAULT")) {
 
             String zname = hdfsConf.get("io.seqfile.compression.type");
@@ -215,19 +425,64 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
             compType = SequenceFile.CompressionType.valueOf(hdfsCompressionType);
         }
 
-        int origRep = hdfsConf.getInt("dfs.replication", -1);
-        hdfsConf.setInt("dfs.replication", hdfsReplication);
+        int writeReplication = hdfsReplication;
+        if (deferredReplication != null)
+            writeReplication = hdfsInitialReplication;
 
-        sfWriter = SequenceFile.createWriter(this.fs,
-                                             hdfsConf,
-                                             this.fpath,
-                                             Text.class,
-                                             Text.class,
-                                             compType);
+        long blockSize = (hdfsBlockSize > 0) ? hdfsBlockSize : fs.getDefaultBlockSize(this.fpath);
+        int bufferSize = (hdfsBufferSize > 0) ? hdfsBufferSize :
+            hdfsConf.getInt("io.file.buffer.size", 4096);
 
-        hdfsConf.setInt("dfs.replication", origRep);
+        if (blockAlignedRoll) {
+            long blocks = Math.max(1, Math.round((double)maxSize / blockSize));
+            this.rollLength = blocks * blockSize;
+        } else {
+            this.rollLength = maxSize;
+        }
 
-        LOGGER.info("Opened " + this.fpath.toString());
+        ChecksumOpt checksumOpt = null;
+        if (hdfsBytesPerChecksum > 0)
+            checksumOpt = new ChecksumOpt(DataChecksum.Type.valueOf(hdfsConf.get("dfs.checksum.type", "CRC32C")),
+                                          hdfsBytesPerChecksum);
+
+        // The stream is opened here rather than by SequenceFile so the
+        // replication, block size, buffer size and checksum options are
+        // given per file instead of through the shared configuration.
+        this.fsOut = fs.create(this.fpath,
+                               FsPermission.getFileDefault().applyUMask(FsPermission.getUMask(hdfsConf)),
+                               EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE),
+                               bufferSize,
+                               (short)writeReplication,
+                               blockSize,
+                               null,
+                               checksumOpt);
+
+        fileDictionary = (dictionary == null) ? null : dictionary.getDictionary();
+        if (fileDictionary != null) {
+            createDictionaryWriter();
+        } else if (adaptiveCompression == null) {
+            sfWriter = SequenceFile.createWriter(hdfsConf,
+                                                 SequenceFile.Writer.stream(fsOut),
+                                                 SequenceFile.Writer.keyClass(Text.class),
+                                                 SequenceFile.Writer.valueClass(Text.class),
+                                                 SequenceFile.Writer.compression(compType));
+        } else {
+            createAdaptiveWriter();
+        }
+        recordsInFile = 0;
+        fileStats.reset();
+        lastHflush = System.currentTimeMillis();
+        unflushed = false;
+
+        LOGGER.info("Opened " + this.fpath.toString() + " (replication " + writeReplication +
+                    ", block size " + blockSize + ", roll length " + rollLength + ")");
+
+        // the pool may have started closing while the file was opened and
+        // missed it, see startClosing()
+        if (closing) {
+            closeFile();
+            throw new IOException("Writer pool is closing, closed new file " + fpath);
+        }
 
         return this.fpath.toString();
     }
@@ -306,21 +561,295 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
      * @exception IOException
      */
     protected void postWriteRecordTasks(String uri) throws IOException {
+        postWriteRecordTasks(uri, null, null);
+    }
+
+    /**
+     * Post file write tasks.  Appends the accumulated record and adds it
+     * to the statistics of the current file.
+     *
+     * @param uri key to write the record under
+     * @param curi the capture being written, may be null
+     * @param seedUrl seed the capture was reached from, may be null
+     * @exception IOException
+     */
+    protected void postWriteRecordTasks(String uri, CrawlURI curi, String seedUrl) throws IOException {
 
         Text key = new Text(uri);
         Text value = new Text();
 
         iser.write(accumOffset-4, accumBuffer, 0);
-        value.set(accumBuffer, 0, accumOffset);
-        sfWriter.append(key, value);
-        accumOffset = 4;
+        if (fileDictionary != null) {
+            compressBuffer = DeflateDictionary.compress(deflater, fileDictionary,
+                                                        accumBuffer, 4, accumOffset-4,
+                                                        compressBuffer, 4, compressEnd);
+            iser.write(compressEnd[0]-4, compressBuffer, 0);
+            value.set(compressBuffer, 0, compressEnd[0]);
+        } else {
+            value.set(accumBuffer, 0, accumOffset);
+            if (dictionary != null && dictionary.isSampling())
+                dictionary.sample(accumBuffer, 4, accumOffset-4);
+        }
+        throttle(key.getLength() + value.getLength());
+
+        // Appends are serialized with checkpoint(), so that a checkpoint
+        // never records a length in the middle of a record, and with the
+        // flushes of idle files by the pool
+        synchronized (this) {
+            long cpu = (adaptiveCompression == null) ? 0 : adaptiveCompression.threadCpuNanos();
+            try {
+                // the pool closed the file since checkSize() opened it
+                if (sfWriter == null)
+                    throw new IOException("Writer pool is closing, " + fstr + " was closed before " + uri +
+                                          " could be appended");
+                sfWriter.append(key, value);
+            } catch (IOException e) {
+                // keep the record in accumBuffer for retryFailedAppend()
+                failedUri = uri;
+                failedCuri = curi;
+                failedSeedUrl = seedUrl;
+                throw e;
+            }
+            failedUri = null;
+            failedCuri = null;
+            failedSeedUrl = null;
+            unflushed = true;
+            if (adaptiveCompression != null)
+                adaptiveCompression.addWriterCpu(adaptiveCompression.threadCpuNanos() - cpu);
+            recordsInFile++;
+            if (metrics != null)
+                metrics.recordAppend(key.getLength() + value.getLength());
+            fileStats.add(uri, curi, seedUrl, key.getLength() + value.getLength());
+            accumOffset = 4;
+            hflushIfDue();
+        }
 
         if (accumBuffer.length > 1048576)
             accumBuffer = new byte [ 262144 ];
+        if (compressBuffer.length > 1048576)
+            compressBuffer = new byte [ 65536 ];
 
         super.postWriteRecordTasks();
     }
 
+    /**
+     * Creates an uncompressed SequenceFile writer holding the dictionary
+     * in its metadata, for values deflated with it.
+     */
+    private void createDictionaryWriter() throws IOException {
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        compType = SequenceFile.CompressionType.NONE;
+        sfWriter = SequenceFile.createWriter(hdfsConf,
+                                             SequenceFile.Writer.stream(fsOut),
+                                             SequenceFile.Writer.keyClass(Text.class),
+                                             SequenceFile.Writer.valueClass(Text.class),
+                                             SequenceFile.Writer.compression(compType),
+                                             SequenceFile.Writer.metadata(DeflateDictionary.toMetadata(fileDictionary)));
+        LOGGER.info("Compressing " + fstr + " values with a " + fileDictionary.length + " byte dictionary");
+    }
+
+    /**
+     * Creates the SequenceFile writer at the level chosen by
+     * {@link AdaptiveCompression} for the new file.
+     */
+    private void createAdaptiveWriter() throws IOException {
+        String level = adaptiveCompression.nextLevel();
+
+        if (AdaptiveCompression.NONE.equals(level)) {
+            compType = SequenceFile.CompressionType.NONE;
+            sfWriter = SequenceFile.createWriter(hdfsConf,
+                                                 SequenceFile.Writer.stream(fsOut),
+                                                 SequenceFile.Writer.keyClass(Text.class),
+                                                 SequenceFile.Writer.valueClass(Text.class),
+                                                 SequenceFile.Writer.compression(compType));
+            return;
+        }
+
+        if (compType == SequenceFile.CompressionType.NONE)
+            compType = SequenceFile.CompressionType.BLOCK;
+
+        Configuration fileConf = AdaptiveCompression.configure(hdfsConf, level);
+        synchronized (AdaptiveCompression.PRIME_LOCK) {
+            AdaptiveCompression.prime(fileConf);
+            sfWriter = SequenceFile.createWriter(fileConf,
+                                                 SequenceFile.Writer.stream(fsOut),
+                                                 SequenceFile.Writer.keyClass(Text.class),
+                                                 SequenceFile.Writer.valueClass(Text.class),
+                                                 SequenceFile.Writer.compression(compType));
+        }
+        LOGGER.info("Compressing " + fstr + " " + compType + " at " + level);
+    }
+
+    /**
+     * Appends an already serialized document, rolling the file first if
+     * needed.
+     *
+     * @param uri key to write the record under
+     * @param curi the capture, may be null
+     * @param seedUrl seed the capture was reached from, may be null
+     * @param document the record value, without its length prefix
+     * @param length number of bytes of <code>document</code> to write
+     * @exception IOException if the append failed
+     * @see HDFSWriter#capture
+     */
+    public void appendRecord(String uri, CrawlURI curi, String seedUrl,
+                             byte [] document, int length) throws IOException {
+        checkSize(4 + length);
+        write(document, 0, length);
+        postWriteRecordTasks(uri, curi, seedUrl);
+    }
+
+    /**
+     * Makes the records appended so far visible to readers.  With BLOCK
+     * compression the records buffered by the SequenceFile writer are
+     * first written out as a block.
+     *
+     * @exception IOException if the flush failed
+     */
+    public synchronized void hflush() throws IOException {
+        if (sfWriter == null)
+            return;
+
+        if (compType == SequenceFile.CompressionType.BLOCK)
+            sfWriter.sync();
+        sfWriter.hflush();
+        lastHflush = System.currentTimeMillis();
+        unflushed = false;
+    }
+
+    /**
+     * @return true if the last append failed and its record is still
+     * buffered, see {@link #retryFailedAppend(HDFSWriterPoolMember)}
+     */
+    public boolean hasFailedAppend() {
+        return failedUri != null;
+    }
+
+    /**
+     * Appends the record whose append failed on this member to
+     * <code>other</code>.  If that append fails too the record is left
+     * buffered in <code>other</code>, so it can be retried from there.
+     *
+     * @param other member to append the record to
+     * @exception IOException if the append failed
+     */
+    public void retryFailedAppend(HDFSWriterPoolMember other) throws IOException {
+        if (failedUri == null)
+            throw new IllegalStateException("No failed append to retry");
+
+        other.checkSize(accumOffset);
+        other.write(accumBuffer, 4, accumOffset - 4);
+
+        String uri = failedUri;
+        CrawlURI curi = failedCuri;
+        String seedUrl = failedSeedUrl;
+        failedUri = null;
+        failedCuri = null;
+        failedSeedUrl = null;
+        accumOffset = 4;
+
+        other.postWriteRecordTasks(uri, curi, seedUrl);
+    }
+
+    /**
+     * Waits until the per-writer and global bandwidth limits allow
+     * <code>bytes</code> more bytes to be appended.  The limits are
+     * re-read from the parameters each time so that changes made through
+     * the bean settings apply immediately.
+     *
+     * @param bytes number of bytes about to be appended
+     * @exception IOException if interrupted while throttled
+     */
+    private void throttle(long bytes) throws IOException {
+        if (parameters == null)
+            return;
+
+        writerThrottle.setBytesPerSecond(parameters.getWriterBytesPerSecond());
+        if (globalThrottle != null)
+            globalThrottle.setBytesPerSecond(parameters.getGlobalBytesPerSecond());
+
+        try {
+            long writerNanos = writerThrottle.acquire(bytes);
+            long globalNanos = (globalThrottle == null) ? 0 : globalThrottle.acquire(bytes);
+
+            throttledNanos += writerNanos + globalNanos;
+            if (metrics != null)
+                metrics.recordThrottle(writerNanos, globalNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled writing " + fstr);
+        }
+    }
+
+    /**
+     * Makes the records appended so far visible to readers of the open
+     * file once <code>hflushIntervalMs</code> has passed since the last
+     * flush.  With BLOCK compression the records buffered by the
+     * SequenceFile writer are first written out as a block, so every
+     * flush ends on a record boundary.
+     *
+     * Called after each append, and by the pool for writers that have
+     * stopped appending, so the last records of an idle writer become
+     * visible too.
+     *
+     * @see HDFSTailReader
+     */
+    public synchronized void hflushIfDue() throws IOException {
+        if (hflushIntervalMs <= 0 || sfWriter == null || !unflushed)
+            return;
+
+        if (System.currentTimeMillis() - lastHflush < hflushIntervalMs)
+            return;
+
+        hflush();
+    }
+
+    /**
+     * Makes the records appended so far durable and describes the open
+     * file for a crawl checkpoint.  May be called from another thread
+     * while the writer is borrowed, the record being written, if any, is
+     * appended after the checkpoint.
+     *
+     * @return path, durable length and statistics of the open file, or
+     * null if no file is open
+     * @exception IOException if the file could not be synced
+     * @see HDFSWriterCheckpoint
+     */
+    public synchronized JSONObject checkpoint() throws IOException {
+        if (sfWriter == null)
+            return null;
+
+        if (compType == SequenceFile.CompressionType.BLOCK)
+            sfWriter.sync();
+        sfWriter.hsync();
+        lastHflush = System.currentTimeMillis();
+        unflushed = false;
+
+        try {
+            long length = fsOut.getPos();
+            String finalPath = fstr.endsWith(OCCUPIED_SUFFIX) ?
+                fstr.substring(0, fstr.length() - OCCUPIED_SUFFIX.length()) : fstr;
+
+            JSONObject file = new JSONObject();
+            file.put(HDFSWriterCheckpoint.PATH, fstr);
+            file.put(HDFSWriterCheckpoint.LENGTH, length);
+            file.put(HDFSWriterCheckpoint.MANIFEST_ENTRY, fileStats.toManifestEntry(finalPath, length));
+            file.put(HDFSWriterCheckpoint.SUMMARY, fileStats.toSummary(length));
+            return file;
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return milliseconds this writer has spent waiting on bandwidth limits
+     */
+    public long getThrottledMs() {
+        return throttledNanos / 1000000;
+    }
+
     /**
      * Postion in current physical file.  Used for making accounting
      * of bytes written.
@@ -336,11 +865,8 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
 
             try {
 
-                // Call flush on underlying file though probably not
-                // needed assuming above this.out.flush called through
-                // to this.fos.
-                sfWriter.syncFs();
-
+                // The length is the position of the output stream so
+                // no flush is needed, flushes are paced by hflushIfDue().
                 position = this.sfWriter.getLength() + accumOffset;
             } catch(IOException exception) {
 
@@ -418,6 +944,44 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
 
     @Override
     public void close() throws IOException {
+        if (abandoned) {
+            LOGGER.warning("Not closing " + fstr + ", its close missed the pool deadline");
+            return;
+        }
+
+        synchronized (this) {
+            closeFile();
+        }
+    }
+
+    /**
+     * Makes this member reject further appends and new files with an
+     * IOException.  Called by the pool on every member, borrowed or not,
+     * before it closes their files, so that a ToeThread still holding one
+     * neither appends to a closed file nor opens a new one.
+     */
+    public void startClosing() {
+        closing = true;
+    }
+
+    /**
+     * Makes further calls to {@link #close()} return at once.  Used by the
+     * pool for a member whose close missed the deadline, so the remaining
+     * members are not held up; the file stays <code>.open</code> and is
+     * recovered from its last flush.
+     */
+    public void abandon() {
+        abandoned = true;
+    }
+
+    /**
+     * @return path of the file being written, or null if no file is open
+     */
+    public String getOpenPath() {
+        return (sfWriter == null) ? null : fstr;
+    }
+
+    private void closeFile() throws IOException {
         LOGGER.info("Closing sequence file writer");
 
         if (this.sfWriter == null) {
@@ -425,7 +989,25 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
             return;
         }
 
-        this.sfWriter.close();
+        long size = -1;
+        try {
+            if (adaptiveCompression != null && compType != SequenceFile.CompressionType.NONE) {
+                // closing returns the compressor to the CodecPool, which must
+                // not come between the prime and the borrow of a new writer
+                synchronized (AdaptiveCompression.PRIME_LOCK) {
+                    this.sfWriter.close();
+                }
+            } else {
+                this.sfWriter.close();
+            }
+            size = this.fsOut.getPos();
+        } finally {
+            this.sfWriter = null;
+            if (this.fsOut != null) {
+                this.fsOut.close();
+                this.fsOut = null;
+            }
+        }
         LOGGER.info("Successfully closed sequence file writer, now renaming file...");
 
         if (this.fpath != null && this.fs.exists(fpath)) {
@@ -437,6 +1019,13 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
 
                 if (!this.fs.rename(fpath, finalPath)) {
                     LOGGER.warning("Failed rename of " + path);
+                } else {
+                    if (deferredReplication != null)
+                        deferredReplication.submit(this.fs, finalPath);
+                    if (manifest != null)
+                        appendManifestEntry(finalPath, size);
+                    if (statsSidecar)
+                        writeStatsSidecar(finalPath, size);
                 }
                 LOGGER.info("Successfully renamed " + fstr + " to final path " + finalPath);
 
@@ -448,6 +1037,108 @@ public class HDFSWriterPoolMember extends WriterPoolMember implements ArchiveFil
         }
     }
 
+    /**
+     * Writes new files at <code>initialReplication</code> and hands them
+     * to <code>deferredReplication</code> after they are closed.
+     *
+     * @param deferredReplication raises closed files to the target replication
+     * @param initialReplication replication used while writing
+     */
+    public void setDeferredReplication(DeferredReplication deferredReplication,
+                                       int initialReplication) {
+        this.deferredReplication = deferredReplication;
+        this.hdfsInitialReplication = initialReplication;
+    }
+
+    /**
+     * Shares the pool wide bandwidth limit and counters with this member.
+     *
+     * @param globalThrottle limit on the combined rate of all writers
+     * @param metrics counters shared by the pool
+     */
+    public void setPoolResources(TokenBucket globalThrottle, HDFSWriterMetrics metrics) {
+        this.globalThrottle = globalThrottle;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Chooses the compression level of new files with <code>adaptiveCompression</code>.
+     *
+     * @param adaptiveCompression controller shared by the pool
+     */
+    public void setAdaptiveCompression(AdaptiveCompression adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    /**
+     * Samples records for, then compresses values with, <code>dictionary</code>.
+     *
+     * @param dictionary dictionary shared by the pool
+     */
+    public void setDictionary(DeflateDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Writes new files into the directories given by <code>outputLayout</code>.
+     *
+     * @param outputLayout directory layout shared by the pool
+     */
+    public void setOutputLayout(HDFSOutputLayout outputLayout) {
+        this.outputLayout = outputLayout;
+    }
+
+    /**
+     * Records closed files in <code>manifest</code>.
+     *
+     * @param manifest crawl manifest shared by the pool
+     */
+    public void setManifest(HDFSManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Statistics of the records appended to the current file.
+     */
+    public HDFSFileStats getFileStats() {
+        return fileStats;
+    }
+
+    private void appendManifestEntry(Path finalPath, long size) {
+        try {
+            manifest.append(fileStats.toManifestEntry(finalPath.toString(), size));
+        } catch (Exception e) {
+            // the file itself is fine, consumers will only miss it until
+            // they fall back to listing the output directory
+            LOGGER.warning("Failed to add " + finalPath + " to manifest " +
+                           manifest.getPath() + ": " + e);
+        }
+    }
+
+    /**
+     * Returns the sidecar holding the statistics of <code>file</code>.
+     * The leading underscore keeps sidecars out of FileInputFormat
+     * listings.
+     */
+    public static Path getStatsSidecarPath(Path file) {
+        return new Path(file.getParent(), "_" + file.getName() + STATS_SIDECAR_SUFFIX);
+    }
+
+    private void writeStatsSidecar(Path finalPath, long size) {
+        Path sidecar = getStatsSidecarPath(finalPath);
+        try {
+            byte [] summary = fileStats.toSummary(size).toString().getBytes("UTF-8");
+            FSDataOutputStream out = fs.create(sidecar, true);
+            try {
+                out.write(summary);
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            LOGGER.warning("Failed to write statistics " + sidecar + ": " + e);
+        }
+    }
+
     protected String getCreateTimestamp() {
         return createTimestamp;
     }
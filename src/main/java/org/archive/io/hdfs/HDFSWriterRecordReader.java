@@ -0,0 +1,93 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads a split of an HDFSWriter SequenceFile into one reused key and
+ * {@link HDFSWriterDocument}, applying the projection and record filter
+ * configured on {@link HDFSWriterInputFormat}.
+ *
+ * The document returned by {@link #getCurrentValue()} refers to a buffer of
+ * this reader and is only valid until the next call to
+ * {@link #nextKeyValue()}.
+ */
+public class HDFSWriterRecordReader extends RecordReader<Text, HDFSWriterDocument> {
+
+    private HDFSProjectedReader reader = null;
+
+    private final Text key = new Text();
+    private final HDFSWriterDocument doc = new HDFSWriterDocument();
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+        FileSplit fileSplit = (FileSplit)split;
+        Configuration conf = context.getConfiguration();
+        Path path = fileSplit.getPath();
+
+        reader = new HDFSProjectedReader(path.getFileSystem(conf), path, conf,
+                                         fileSplit.getStart(), fileSplit.getLength());
+        reader.setProjection(conf.getBoolean(HDFSWriterInputFormat.PROJECTION, false));
+        reader.setPrefixLength(conf.getInt(HDFSWriterInputFormat.PREFIX_LENGTH,
+                                           HDFSProjectedReader.DEFAULT_PREFIX_LENGTH));
+
+        // records are filtered on their prefix, before the rest is read
+        HDFSWriterInputFormat.Filter filter = new HDFSWriterInputFormat.Filter(conf);
+        if (!filter.isEmpty())
+            reader.setFilter(filter);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+        return reader.next(key, doc);
+    }
+
+    @Override
+    public Text getCurrentKey() {
+        return key;
+    }
+
+    @Override
+    public HDFSWriterDocument getCurrentValue() {
+        return doc;
+    }
+
+    /**
+     * @return records left out by the filter so far
+     */
+    public long getSkipped() {
+        return reader.getRecordsSkipped();
+    }
+
+    /**
+     * @return bytes of record values read so far
+     */
+    public long getBytesRead() {
+        return reader.getBytesRead();
+    }
+
+    /**
+     * @return bytes of record values skipped by projection so far
+     */
+    public long getBytesSkipped() {
+        return reader.getBytesSkipped();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        return reader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null)
+            reader.close();
+    }
+}
@@ -0,0 +1,265 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import org.archive.io.hdfs.util.BoundedInputStream;
+
+/**
+ * Parses HDFSWriter documents from a stream in bounded memory.
+ *
+ * {@link HDFSWriterDocument#readFields(DataInput)} reads a whole document
+ * into one buffer, so a 1 GB capture takes a 1 GB buffer.  This parser
+ * reads a document only up to the end of its response headers plus the
+ * charset sniff window, and parses that head with
+ * {@link HDFSWriterDocument#wrapPrefix}.  The response body is left in the
+ * stream and handed out by {@link #getBody()}, which reads at most
+ * {@link #getBodyLength()} bytes, so a document of any size is parsed with
+ * a buffer the size of its head.  Heads longer than
+ * {@link #getMaxHeadLength()} are rejected.
+ *
+ * Dictionary compressed documents are inflated as they are read, with the
+ * dictionary given to {@link #setDictionary(byte[])}.
+ *
+ * The parser and its document are reused from one document to the next.
+ * The document, whose body is cut off, and the body stream are valid until
+ * the next call to {@link #parse} or {@link #readFields}, which first skips
+ * whatever of the body was not read.
+ */
+public class HDFSWriterStreamParser {
+
+    /** Bytes of a document read before its headers are looked for */
+    public static final int INITIAL_HEAD_LENGTH = 8192;
+
+    public static final int DEFAULT_MAX_HEAD_LENGTH = 1024*1024;
+
+    private final HDFSWriterDocument doc = new HDFSWriterDocument();
+
+    private byte [] head = new byte [INITIAL_HEAD_LENGTH];
+    private int maxHeadLength = DEFAULT_MAX_HEAD_LENGTH;
+    private byte [] dictionary = null;
+
+    private BoundedInputStream docIn = null;
+    private InputStream inflated = null;
+    private InputStream body = null;
+    private long bodyLength = 0;
+
+    /**
+     * Sets the dictionary of dictionary compressed documents, see
+     * {@link DeflateDictionary}.
+     */
+    public void setDictionary(byte [] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public byte [] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Sets the longest head, from the start of a document to the end of
+     * its response headers, that is read before giving up on it.
+     */
+    public void setMaxHeadLength(int maxHeadLength) {
+        this.maxHeadLength = Math.max(maxHeadLength, INITIAL_HEAD_LENGTH);
+    }
+
+    public int getMaxHeadLength() {
+        return maxHeadLength;
+    }
+
+    /**
+     * Reads a value as the HDFSWriter writes it, a four byte length and
+     * the document, and parses the document.
+     *
+     * @param in stream positioned at the length
+     * @return the parsed document
+     */
+    public HDFSWriterDocument readFields(DataInput in) throws IOException {
+        skipBody();
+        int length = in.readInt();
+        return parse((in instanceof InputStream) ? (InputStream)in : new DataInputAdapter(in), length);
+    }
+
+    /**
+     * Parses the document of <code>length</code> bytes at the current
+     * position of <code>in</code>.  Once the body is read or the next
+     * document parsed, <code>in</code> is positioned just past the
+     * document.
+     *
+     * @param in stream positioned at the document
+     * @param length length of the document
+     * @return the parsed document
+     * @throws IOException if the stream ends early, the document is
+     * corrupt or its head is longer than the maximum
+     */
+    public HDFSWriterDocument parse(InputStream in, long length) throws IOException {
+        skipBody();
+
+        docIn = new BoundedInputStream(in, length);
+        InputStream src = docIn;
+        long docLength = length;
+
+        int n = fill(src, 0, (int)Math.min(length, DeflateDictionary.MAGIC.length + 4));
+        if (DeflateDictionary.isCompressed(head, 0, n)) {
+            docLength = DeflateDictionary.rawLength(head, 0);
+            inflated = DeflateDictionary.inflate(dictionary, docIn);
+            src = inflated;
+            n = 0;
+        }
+        if (docLength > Integer.MAX_VALUE)
+            throw new IOException("document of " + docLength + " bytes");
+
+        int target = (int)Math.min(docLength, INITIAL_HEAD_LENGTH);
+        while (true) {
+            n = fill(src, n, target);
+            if (doc.wrapPrefix(head, 0, n, (int)docLength)) {
+                // read enough of the body for the charset to be sniffed
+                int needed = doc.getResponseBodyOffset() + doc.getCharsetSniffWindow();
+                if (!doc.isTruncated() || n >= needed || n >= maxHeadLength)
+                    break;
+                target = (int)Math.min(docLength, Math.min(needed, maxHeadLength));
+            } else {
+                if (n >= maxHeadLength)
+                    throw new IOException("document head longer than " + maxHeadLength + " bytes");
+                target = (int)Math.min(docLength, Math.min(2L * n, maxHeadLength));
+            }
+        }
+
+        int bodyOffset = Math.min(doc.getResponseBodyOffset(), n);
+        body = new SequenceInputStream(new ByteArrayInputStream(head, bodyOffset, n - bodyOffset),
+                                       new BoundedInputStream(src, docLength - n));
+        bodyLength = docLength - bodyOffset;
+        return doc;
+    }
+
+    /**
+     * Reads from <code>src</code> into head bytes <code>[from, to)</code>,
+     * growing head if needed and keeping the bytes before them.
+     *
+     * @return <code>to</code>
+     */
+    private int fill(InputStream src, int from, int to) throws IOException {
+        if (head.length < to) {
+            byte [] grown = new byte [Math.max(to, (int)Math.min(maxHeadLength, head.length * 2L))];
+            System.arraycopy(head, 0, grown, 0, from);
+            head = grown;
+        }
+        for (int pos = from; pos < to; ) {
+            int n = src.read(head, pos, to - pos);
+            if (n < 0)
+                throw new EOFException("document truncated at " + pos + " bytes");
+            pos += n;
+        }
+        return to;
+    }
+
+    /**
+     * Skips the unread rest of the current document, leaving the stream
+     * it was parsed from just past it, and releases its inflater, if any.
+     * The next parse does this first.
+     */
+    public void skipBody() throws IOException {
+        if (docIn == null)
+            return;
+        if (inflated != null)
+            inflated.close();
+        docIn.skipRemaining();
+        docIn = null;
+        inflated = null;
+        body = null;
+        bodyLength = 0;
+    }
+
+    /**
+     * @return the document last parsed; its body is cut off where the
+     * parsed head ends, see {@link HDFSWriterDocument#isTruncated()}
+     */
+    public HDFSWriterDocument getDocument() {
+        return doc;
+    }
+
+    /**
+     * Returns the response body of the document last parsed, the part
+     * held in the head followed by the rest of the stream.  Closing it
+     * does not close the underlying stream.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * @return the length of the response body of the document last parsed
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Reads a DataInput that is not an InputStream.  Only used below a
+     * BoundedInputStream, which never asks for more than the document
+     * holds, so reads can be satisfied in full.
+     */
+    private static class DataInputAdapter extends InputStream {
+        private final DataInput in;
+
+        DataInputAdapter(DataInput in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte [] b, int off, int len) throws IOException {
+            in.readFully(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+        }
+    }
+
+    static void printUsage() {
+        System.out.println("HDFSWriterStreamParser <input-file>");
+        System.exit(1);
+    }
+
+    /**
+     * Parses the documents of a file holding values as the HDFSWriter
+     * writes them, one after another, and prints the URL, status code,
+     * content type, charset and body length of each.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1)
+            printUsage();
+
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+        DataInputStream in = new DataInputStream(new FileInputStream(args[0]));
+        try {
+            while (true) {
+                HDFSWriterDocument doc;
+                try {
+                    doc = parser.readFields(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                System.out.println(doc.getField(HDFSParameters.NAMED_FIELD_URL) + "\t" +
+                                   doc.getResponseCode() + "\t" + doc.getContentType() + "\t" +
+                                   doc.getCharset() + "\t" + parser.getBodyLength());
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.archive.io.hdfs.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most a given number of bytes of another stream, for streams
+ * that hold one record after another.
+ *
+ * Reading stops at the limit, so the underlying stream is left at the end
+ * of the record once this one is drained (see {@link #skipRemaining()}).
+ * The underlying stream ending before the limit is an error, since the
+ * limit is the length the record claims.  Closing this stream does not
+ * close the underlying one.
+ */
+public class BoundedInputStream extends InputStream {
+
+    private final InputStream in;
+    private long remaining;
+
+    /**
+     * @param in underlying stream
+     * @param limit number of bytes that can be read
+     */
+    public BoundedInputStream(InputStream in, long limit) {
+        this.in = in;
+        this.remaining = limit;
+    }
+
+    /**
+     * @return bytes left before the limit
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException(remaining + " bytes missing");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte [] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (remaining <= 0)
+            return -1;
+        int n = in.read(b, off, (int)Math.min(len, remaining));
+        if (n < 0)
+            throw new EOFException(remaining + " bytes missing");
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(Math.max(n, 0), remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    /**
+     * Skips to the limit, reading what the underlying stream cannot skip.
+     */
+    public void skipRemaining() throws IOException {
+        while (remaining > 0) {
+            if (skip(remaining) == 0 && read() < 0)
+                break;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+    }
+}
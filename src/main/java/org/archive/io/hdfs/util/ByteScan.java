@@ -106,31 +106,64 @@ public class ByteScan {
      */
     public static boolean ParseInt(State bss) {
 	int base = bss.offset;
+	long value = 0;
 	while (bss.offset < bss.end &&
-	       Character.isDigit(bss.buf[bss.offset]))
+	       bss.buf[bss.offset] >= '0' && bss.buf[bss.offset] <= '9') {
+	    value = value*10 + (bss.buf[bss.offset] - '0');
+	    if (value > Integer.MAX_VALUE)
+		break;
 	    bss.offset++;
-	try {
-	    bss.ival = Integer.parseInt(new String(bss.buf, base, bss.offset-base));
-	    return true;
 	}
-	catch (NumberFormatException e) {
+	if (bss.offset == base || value > Integer.MAX_VALUE) {
 	    bss.ival = 0;
+	    return false;
 	}
-	return false;
+	bss.ival = (int)value;
+	return true;
     }
 
 
     /**
-     * This function is used to do a case insensitive match of a sequence
-     * of ASCII encoded bytes.
+     * This function is used to match a sequence of ASCII encoded bytes
+     * against a string of the same length.  The case sensitivity of the
+     * match is determined by the <code>bss.caseSensitive<code> flag.
      *
      * @param bss byte array scan state
      * @param str char string to match
-     * @return true if current byte array positon matches string
+     * @return true if the bytes from the current position to the end
+     * match string
      */
     public static boolean Equals(ByteSeq bss, char[] str) {
-	if (bss.end-bss.offset != str.length && !StartsWith(bss, str))
+	return bss.end-bss.offset == str.length && StartsWith(bss, str);
+    }
+
+
+    /**
+     * Returns the lower case of an ASCII letter, any other byte unchanged.
+     */
+    public static int ToLowerAscii(int b) {
+	return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+
+
+    /**
+     * This function is used to do an ASCII case insensitive match of a
+     * sequence of bytes against a string of the same length, without
+     * allocating.
+     *
+     * @param buf input byte array
+     * @param offset start of the sequence
+     * @param end end of the sequence
+     * @param str string to match
+     * @return true if the sequence matches string
+     */
+    public static boolean EqualsIgnoreCase(byte [] buf, int offset, int end, String str) {
+	if (end-offset != str.length())
 	    return false;
+	for (int i=0; i<str.length(); i++) {
+	    if (ToLowerAscii(buf[offset+i] & 0xff) != ToLowerAscii(str.charAt(i)))
+		return false;
+	}
 	return true;
     }
 
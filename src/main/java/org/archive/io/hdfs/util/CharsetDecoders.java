@@ -0,0 +1,107 @@
+package org.archive.io.hdfs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes bytes with per-thread, reused CharsetDecoders.
+ *
+ * <code>new String(bytes, charsetName)</code> looks the charset up by
+ * name and creates a decoder on every call.  Here each thread keeps one
+ * decoder per Charset, and {@link #decode} fills a CharBuffer supplied by
+ * the caller, so decoding many documents of the same charset allocates
+ * nothing once the buffer is large enough.  Malformed and unmappable
+ * input is replaced rather than reported.
+ */
+public class CharsetDecoders {
+
+    /** Used for charsets that are unknown or not supported */
+    public static final Charset FALLBACK = Charset.forName("ISO-8859-1");
+
+    private static final ThreadLocal<Map<Charset, CharsetDecoder>> DECODERS =
+        new ThreadLocal<Map<Charset, CharsetDecoder>>() {
+            protected Map<Charset, CharsetDecoder> initialValue() {
+                return new HashMap<Charset, CharsetDecoder>();
+            }
+        };
+
+    /**
+     * Returns the charset called <code>name</code>, or {@link #FALLBACK}
+     * if it is null, unknown or not supported.
+     */
+    public static Charset forName(String name) {
+        Charset charset = CharsetSniffer.forName(name);
+        return (charset == null) ? FALLBACK : charset;
+    }
+
+    /**
+     * Returns this thread's decoder for <code>charset</code>, reset.  It
+     * must not be used after the next call from the same thread.
+     */
+    public static CharsetDecoder get(Charset charset) {
+        Map<Charset, CharsetDecoder> decoders = DECODERS.get();
+        CharsetDecoder decoder = decoders.get(charset);
+        if (decoder == null) {
+            decoder = newDecoder(charset);
+            decoders.put(charset, decoder);
+        }
+        return decoder.reset();
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Decodes <code>buf[offset, offset+length)</code>.
+     *
+     * @param charset charset of the bytes
+     * @param out buffer to decode into, may be null; its contents are
+     * replaced
+     * @return <code>out</code>, or a larger buffer if it was too small,
+     * flipped for reading
+     */
+    public static CharBuffer decode(Charset charset, byte [] buf, int offset, int length, CharBuffer out) {
+        CharsetDecoder decoder = get(charset);
+        int needed = (int)Math.ceil(length * (double)decoder.maxCharsPerByte());
+        if (out == null || out.capacity() < needed)
+            out = CharBuffer.allocate(needed);
+        out.clear();
+
+        ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+        while (decoder.decode(in, out, true).isOverflow())
+            out = grow(out);
+        // once flushing has begun the decoder only accepts further flushes
+        while (decoder.flush(out).isOverflow())
+            out = grow(out);
+
+        out.flip();
+        return out;
+    }
+
+    private static CharBuffer grow(CharBuffer out) {
+        CharBuffer grown = CharBuffer.allocate(out.capacity() * 2 + 16);
+        out.flip();
+        grown.put(out);
+        return grown;
+    }
+
+    /**
+     * Returns a Reader decoding <code>buf[offset, offset+length)</code>
+     * incrementally, for text too large to decode at once.  It has its
+     * own decoder, so it can be read while this thread decodes other text.
+     */
+    public static Reader reader(Charset charset, byte [] buf, int offset, int length) {
+        return new InputStreamReader(new ByteArrayInputStream(buf, offset, length), newDecoder(charset));
+    }
+}
@@ -0,0 +1,368 @@
+package org.archive.io.hdfs.util;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Determines the character encoding of a response body.
+ *
+ * The sources are tried in this order:
+ *
+ * <ol>
+ * <li>a byte order mark at the start of the body;</li>
+ * <li>the charset of the HTTP Content-Type header;</li>
+ * <li>a <code>&lt;meta charset&gt;</code> or
+ * <code>&lt;meta http-equiv="Content-Type" content="...; charset=..."&gt;</code>
+ * element, or an <code>&lt;?xml ... encoding="..."?&gt;</code>
+ * declaration, found within the first {@link #getWindow()} bytes of the
+ * body.</li>
+ * </ol>
+ *
+ * Markup is matched without regard to ASCII case.  The scan stops at the
+ * end of the window, at <code>&lt;/head</code> or at <code>&lt;body</code>,
+ * so large bodies without a declaration cost no more than the window.
+ * An instance keeps the result of its last {@link #sniff} and is meant to
+ * be reused by one thread.
+ */
+public class CharsetSniffer {
+
+    /** Where the charset came from */
+    public enum Source { NONE, BOM, HEADER, META, XML }
+
+    public static final int DEFAULT_WINDOW = 4096;
+
+    /** Most charset names cached, so garbage names cannot grow the cache without bound */
+    private static final int MAX_CACHED = 1024;
+
+    private static final ConcurrentHashMap<String, Object> CHARSETS = new ConcurrentHashMap<String, Object>();
+    private static final Object UNSUPPORTED = new Object();
+
+    private static final char [] XML = { '?','x','m','l' };
+    private static final char [] META = { 'm','e','t','a' };
+    private static final char [] CLOSE_HEAD = { '/','h','e','a','d' };
+    private static final char [] BODY = { 'b','o','d','y' };
+    private static final char [] CHARSET = { 'c','h','a','r','s','e','t' };
+    private static final char [] ENCODING = { 'e','n','c','o','d','i','n','g' };
+    private static final char [] HTTP_EQUIV = { 'h','t','t','p','-','e','q','u','i','v' };
+    private static final char [] CONTENT = { 'c','o','n','t','e','n','t' };
+    private static final char [] CONTENT_TYPE = { 'c','o','n','t','e','n','t','-','t','y','p','e' };
+
+    private int window;
+
+    private Source source = Source.NONE;
+    private String name = null;
+    private String contentType = null;
+
+    /** Attribute slices of the element being parsed */
+    private final ByteScan.State scan = new ByteScan.State();
+    private final ByteScan.State contentScan = new ByteScan.State();
+    private final ByteSeq attrName = new ByteSeq();
+    private final ByteSeq attrValue = new ByteSeq();
+    private final ByteSeq charsetValue = new ByteSeq();
+    private final ByteSeq httpEquivValue = new ByteSeq();
+    private final ByteSeq contentValue = new ByteSeq();
+
+    public CharsetSniffer() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window number of body bytes searched for a declaration
+     */
+    public CharsetSniffer(int window) {
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * @return the source of the charset found by the last sniff
+     */
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return the upper cased charset name found by the last sniff, or null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the charset found by the last sniff, or null if none was
+     * found or Java does not support it
+     */
+    public Charset getCharset() {
+        return forName(name);
+    }
+
+    /**
+     * @return the content type given by a <code>&lt;meta http-equiv&gt;</code>
+     * element, or null
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Determines the charset of the body at <code>buf[offset, end)</code>.
+     *
+     * @param buf buffer holding the body
+     * @param offset start of the body
+     * @param end end of the body
+     * @param headerCharset charset of the Content-Type header, or null
+     * @return true if a charset was found, see {@link #getName()}
+     */
+    public boolean sniff(byte [] buf, int offset, int end, String headerCharset) {
+        source = Source.NONE;
+        name = null;
+        contentType = null;
+
+        if (sniffBOM(buf, offset, end))
+            return true;
+
+        if (headerCharset != null) {
+            source = Source.HEADER;
+            name = headerCharset;
+            return true;
+        }
+
+        return sniffMarkup(buf, offset, (int)Math.min(end, (long)offset + window));
+    }
+
+    private boolean sniffBOM(byte [] buf, int offset, int end) {
+        int n = end - offset;
+
+        if (n >= 3 && (buf[offset] & 0xff) == 0xef && (buf[offset+1] & 0xff) == 0xbb &&
+            (buf[offset+2] & 0xff) == 0xbf)
+            name = "UTF-8";
+        else if (n >= 2 && (buf[offset] & 0xff) == 0xfe && (buf[offset+1] & 0xff) == 0xff)
+            name = "UTF-16BE";
+        else if (n >= 2 && (buf[offset] & 0xff) == 0xff && (buf[offset+1] & 0xff) == 0xfe)
+            name = "UTF-16LE";
+        else
+            return false;
+
+        source = Source.BOM;
+        return true;
+    }
+
+    private boolean sniffMarkup(byte [] buf, int offset, int end) {
+        scan.init(buf, offset, end);
+
+        while (ByteScan.FindSkip(scan, '<')) {
+
+            if (ByteScan.StartsWithSkip(scan, XML)) {
+                if (findAttribute(ENCODING, charsetValue)) {
+                    name = cleanName(charsetValue.buf, charsetValue.offset, charsetValue.end);
+                    if (name != null) {
+                        source = Source.XML;
+                        return true;
+                    }
+                }
+                continue;
+            }
+
+            if (ByteScan.StartsWith(scan, CLOSE_HEAD) || ByteScan.StartsWith(scan, BODY))
+                return false;
+
+            if (ByteScan.StartsWithSkip(scan, META) && !scan.eob() && isSpace(buf[scan.offset])) {
+                if (parseMeta())
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the attributes of a <code>&lt;meta</code> element.
+     */
+    private boolean parseMeta() {
+        charsetValue.init(null, 0, 0);
+        httpEquivValue.init(null, 0, 0);
+        contentValue.init(null, 0, 0);
+
+        while (nextAttribute()) {
+            if (ByteScan.Equals(attrName, CHARSET))
+                copy(attrValue, charsetValue);
+            else if (ByteScan.Equals(attrName, HTTP_EQUIV))
+                copy(attrValue, httpEquivValue);
+            else if (ByteScan.Equals(attrName, CONTENT))
+                copy(attrValue, contentValue);
+        }
+
+        if (charsetValue.buf != null) {
+            name = cleanName(charsetValue.buf, charsetValue.offset, charsetValue.end);
+            if (name != null) {
+                source = Source.META;
+                return true;
+            }
+        }
+
+        if (httpEquivValue.buf == null || contentValue.buf == null ||
+            !ByteScan.Equals(httpEquivValue, CONTENT_TYPE))
+            return false;
+
+        // content="text/html; charset=..."
+        byte [] buf = contentValue.buf;
+        int p = contentValue.offset;
+        int end = contentValue.end;
+        while (p < end && buf[p] != ';')
+            p++;
+        contentType = new String(buf, contentValue.offset, p - contentValue.offset).trim().toLowerCase();
+        if (contentType.indexOf('/') == -1)
+            contentType = null;
+
+        contentScan.init(buf, p, end);
+        while (ByteScan.FindSkip(contentScan, CHARSET)) {
+            int q = contentScan.offset;
+            while (q < end && isSpace(buf[q]))
+                q++;
+            if (q < end && buf[q] == '=') {
+                name = cleanName(buf, q + 1, end);
+                if (name != null) {
+                    source = Source.META;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds attribute <code>label</code> in the element at the scan
+     * position, leaving the scan after the element.
+     */
+    private boolean findAttribute(char [] label, ByteSeq value) {
+        boolean found = false;
+        while (nextAttribute()) {
+            if (!found && ByteScan.Equals(attrName, label)) {
+                copy(attrValue, value);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads the next attribute of the element at the scan position into
+     * attrName and attrValue.
+     *
+     * @return false at the end of the element or of the window
+     */
+    private boolean nextAttribute() {
+        byte [] buf = scan.buf;
+        int p = scan.offset;
+        int end = scan.end;
+
+        while (p < end && (isSpace(buf[p]) || buf[p] == '/' || buf[p] == '?'))
+            p++;
+        if (p >= end || buf[p] == '>') {
+            scan.offset = Math.min(p + 1, end);
+            return false;
+        }
+
+        int nameStart = p;
+        while (p < end && !isSpace(buf[p]) && buf[p] != '=' && buf[p] != '>' && buf[p] != '/')
+            p++;
+        attrName.init(buf, nameStart, p);
+        attrValue.init(buf, p, p);
+
+        while (p < end && isSpace(buf[p]))
+            p++;
+        if (p < end && buf[p] == '=') {
+            p++;
+            while (p < end && isSpace(buf[p]))
+                p++;
+            if (p < end && (buf[p] == '"' || buf[p] == '\'')) {
+                byte quote = buf[p++];
+                int valueStart = p;
+                while (p < end && buf[p] != quote)
+                    p++;
+                attrValue.init(buf, valueStart, p);
+                if (p < end)
+                    p++;
+            } else {
+                int valueStart = p;
+                while (p < end && !isSpace(buf[p]) && buf[p] != '>')
+                    p++;
+                attrValue.init(buf, valueStart, p);
+            }
+        }
+
+        scan.offset = p;
+        return true;
+    }
+
+    private static void copy(ByteSeq from, ByteSeq to) {
+        to.init(from.buf, from.offset, from.end);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    /**
+     * Returns the upper cased charset name at the start of
+     * <code>buf[offset, end)</code>, normalizing common misspellings, or
+     * null if there is none.
+     */
+    public static String cleanName(byte [] buf, int offset, int end) {
+        while (offset < end && (isSpace(buf[offset]) || buf[offset] == '"' || buf[offset] == '\''))
+            offset++;
+
+        int p = offset;
+        while (p < end && (Character.isLetterOrDigit(buf[p]) || buf[p] == '-' ||
+                           buf[p] == '_' || buf[p] == '.' || buf[p] == ':'))
+            p++;
+        if (p == offset)
+            return null;
+
+        return normalize(new String(buf, offset, p - offset).toUpperCase());
+    }
+
+    /**
+     * Normalizes common misspellings of an upper cased charset name.
+     */
+    public static String normalize(String charset) {
+        if (!charset.startsWith("ISO-") &&
+            ((charset.endsWith("8859-1") || charset.endsWith("8859_1")))) {
+            charset = "ISO-8859-1";
+        }
+        else if (charset.endsWith("UTF8")) {
+            charset = "UTF-8";
+        }
+        return charset;
+    }
+
+    /**
+     * Returns the Charset for <code>name</code>, looked up once per name.
+     *
+     * @return the charset, or null if <code>name</code> is null or not
+     * supported by this JVM
+     */
+    public static Charset forName(String name) {
+        if (name == null)
+            return null;
+
+        Object charset = CHARSETS.get(name);
+        if (charset == null) {
+            try {
+                charset = Charset.forName(name);
+            } catch (Exception e) {
+                // IllegalCharsetNameException or UnsupportedCharsetException
+                charset = UNSUPPORTED;
+            }
+            if (CHARSETS.size() < MAX_CACHED)
+                CHARSETS.put(name, charset);
+        }
+        return (charset == UNSUPPORTED) ? null : (Charset)charset;
+    }
+}
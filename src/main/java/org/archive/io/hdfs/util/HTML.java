@@ -71,7 +71,7 @@ public class HTML {
 			if (bss.eob())
 				return false;
 			while (ByteScan.FindSkip(bss, '<')) {
-				if (ByteScan.Equals(bss, name)) {
+				if (ByteScan.StartsWith(bss, name)) {
 					bss.offset += name.length;
 					if (!bss.eob() && (Character.isWhitespace(bss.buf[bss.offset]) || bss.buf[bss.offset] == '>')) {
 						tagOpen = true;
@@ -191,7 +191,7 @@ public class HTML {
 		private boolean FindCloseTag() {
 			int saveOffset = bss.offset;
 			while (ByteScan.FindSkip(bss, closeTagChars)) {
-				if (ByteScan.Equals(bss, name)) {
+				if (ByteScan.StartsWith(bss, name)) {
 					bss.offset += name.length;
 					if (bss.eob() || bss.buf[bss.offset] == '>') {
 						bss.offset -= name.length + closeTagChars.length;
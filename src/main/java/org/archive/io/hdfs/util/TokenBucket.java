@@ -0,0 +1,88 @@
+package org.archive.io.hdfs.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting a byte rate.
+ *
+ * The bucket holds at most one second worth of tokens, so a writer that
+ * has been idle can burst for up to a second before it is throttled.  The
+ * rate can be changed at any time; a rate of zero or less disables the
+ * limit.  Callers that have to wait sleep outside of the bucket lock, and
+ * the total time spent waiting is kept for reporting.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private volatile long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong throttleCount = new AtomicLong();
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.max(0, bytesPerSecond);
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Changes the rate.  Takes effect for the next call to
+     * {@link #acquire(long)}.
+     *
+     * @param bytesPerSecond new rate, zero or less for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Takes <code>bytes</code> tokens, sleeping until the bucket has caught
+     * up if it is overdrawn.
+     *
+     * @param bytes number of bytes about to be written
+     * @return nanoseconds spent waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate <= 0)
+            return 0;
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (double)(now - lastRefill) * rate / NANOS_PER_SECOND);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = (tokens >= 0) ? 0 : (long)(-tokens * NANOS_PER_SECOND / rate);
+        }
+
+        if (waitNanos == 0)
+            return 0;
+
+        Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+        throttledNanos.addAndGet(waitNanos);
+        throttleCount.incrementAndGet();
+        return waitNanos;
+    }
+
+    /**
+     * @return total nanoseconds callers have spent waiting on this bucket
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    /**
+     * @return number of calls that had to wait
+     */
+    public long getThrottleCount() {
+        return throttleCount.get();
+    }
+}
@@ -1,26 +1,34 @@
 package org.archive.modules.writer;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.context.ApplicationListener;
 import org.apache.log4j.Logger;
+import org.archive.checkpointing.Checkpoint;
 import org.archive.crawler.event.CrawlStateEvent;
 import org.archive.crawler.framework.CrawlController;
 import org.archive.io.ReplayInputStream;
 import org.archive.io.WriterPoolMember;
+import org.archive.io.hdfs.AdaptiveCompression;
+import org.archive.io.hdfs.HDFSGroupCommitWriter;
 import org.archive.io.hdfs.HDFSParameters;
 import org.archive.io.hdfs.HDFSWriter;
+import org.archive.io.hdfs.HDFSWriterMetrics;
 import org.archive.io.hdfs.HDFSWriterPool;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessResult;
 import org.archive.net.UURI;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.anvl.ANVLRecord;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.springframework.context.ApplicationEvent;
 import org.archive.spring.ConfigPath;
 
@@ -63,11 +71,58 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
 
     private static final long serialVersionUID = -177504411709375639L;
 
+    /**
+     * Key of the open HDFS files in the checkpoint JSON of this processor.
+     */
+    private static final String CHECKPOINT_HDFS_FILES = "hdfsWriters";
+
+    /**
+     * Capture buffer that hands out its backing array, so a record goes to
+     * the group commit writer without being copied.
+     */
+    private static class CaptureBuffer extends ByteArrayOutputStream {
+
+        CaptureBuffer() {
+            super(65536);
+        }
+
+        byte [] getBuffer() {
+            return buf;
+        }
+
+        /**
+         * Empties the buffer, dropping it if a large record grew it.
+         */
+        void recycle() {
+            reset();
+            if (buf.length > 1048576)
+                buf = new byte [ 65536 ];
+        }
+    }
+
+    /**
+     * Group commit capture buffers, reused by each thread from one record
+     * to the next.
+     */
+    private static final ThreadLocal<CaptureBuffer> CAPTURE_BUFFERS =
+        new ThreadLocal<CaptureBuffer>() {
+            @Override
+            protected CaptureBuffer initialValue() {
+                return new CaptureBuffer();
+            }
+        };
+
     /**
      * @see org.archive.io.hdfs.HDFSParameters
      */
     HDFSParameters hdfsParameters;
 
+    /**
+     * Open files recorded by the checkpoint being recovered, when it is
+     * read before the pool is set up; rolled back once it is.
+     */
+    private JSONObject recoveredFiles = null;
+
     public HDFSParameters getHdfsParameters() {
         return hdfsParameters;
     }
@@ -76,6 +131,66 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
         this.hdfsParameters = hdfsParameters;
     }
 
+    /**
+     * Counters of the writer pool, or null before the pool is set up.
+     */
+    public HDFSWriterMetrics getWriterMetrics() {
+        if (getPool() == null)
+            return null;
+        return ((HDFSWriterPool)getPool()).getMetrics();
+    }
+
+    /**
+     * @return milliseconds writers have spent waiting on their own bandwidth limit
+     */
+    public long getWriterThrottledMs() {
+        HDFSWriterMetrics metrics = getWriterMetrics();
+        return (metrics == null) ? 0 : metrics.getWriterThrottledMs();
+    }
+
+    /**
+     * @return milliseconds writers have spent waiting on the global bandwidth limit
+     */
+    public long getGlobalThrottledMs() {
+        HDFSWriterMetrics metrics = getWriterMetrics();
+        return (metrics == null) ? 0 : metrics.getGlobalThrottledMs();
+    }
+
+    /**
+     * @return appends retried on another writer after a failure
+     */
+    public long getAppendRetries() {
+        HDFSWriterMetrics metrics = getWriterMetrics();
+        return (metrics == null) ? 0 : metrics.getAppendRetries();
+    }
+
+    /**
+     * @return writers whose file was invalidated by a failed append
+     */
+    public long getFailovers() {
+        HDFSWriterMetrics metrics = getWriterMetrics();
+        return (metrics == null) ? 0 : metrics.getFailovers();
+    }
+
+    /**
+     * @return records that could not be written
+     */
+    public long getFailedRecords() {
+        HDFSWriterMetrics metrics = getWriterMetrics();
+        return (metrics == null) ? 0 : metrics.getFailedRecords();
+    }
+
+    /**
+     * @return compression level of new files under adaptive compression,
+     * null if it is disabled
+     */
+    public String getCompressionLevel() {
+        if (getPool() == null)
+            return null;
+        AdaptiveCompression adaptive = ((HDFSWriterPool)getPool()).getAdaptiveCompression();
+        return (adaptive == null) ? null : adaptive.getLevel();
+    }
+
     @Override
     long getDefaultMaxFileSize() {
         return (20 * 1024 * 1024);
@@ -96,10 +211,63 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
 
     @Override
     protected void setupPool(AtomicInteger serialNo) {
-        setPool(new HDFSWriterPool(serialNo,
-                                   getHdfsParameters(),
-                                   getPoolMaxActive(),
-                                   getMaxWaitForIdleMs()));
+        HDFSWriterPool pool = new HDFSWriterPool(serialNo,
+                                                 getHdfsParameters(),
+                                                 getPoolMaxActive(),
+                                                 getMaxWaitForIdleMs());
+        setPool(pool);
+
+        if (recoveredFiles != null) {
+            recover(pool, recoveredFiles);
+            recoveredFiles = null;
+        }
+    }
+
+    /**
+     * Rolls the output back to the open files recorded by a checkpoint.
+     */
+    private void recover(HDFSWriterPool pool, JSONObject files) {
+        try {
+            pool.recover(files);
+        } catch (IOException e) {
+            // resuming would leave output the frontier knows nothing about
+            throw new IllegalStateException("Failed to roll HDFS output back to the checkpoint", e);
+        }
+    }
+
+    /**
+     * Syncs the open files of all writers in parallel and records their
+     * paths and durable lengths with the checkpoint.  Unlike the default,
+     * files are left open.
+     *
+     * @see org.archive.io.hdfs.HDFSWriterCheckpoint
+     */
+    @Override
+    public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+        JSONObject files = ((HDFSWriterPool)getPool()).checkpoint(checkpointInProgress.getName());
+
+        try {
+            JSONObject json = toCheckpointJson();
+            json.put(CHECKPOINT_HDFS_FILES, files);
+            checkpointInProgress.saveJson(getBeanName(), json);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    protected void fromCheckpointJson(JSONObject json) throws JSONException {
+        super.fromCheckpointJson(json);
+
+        JSONObject files = json.optJSONObject(CHECKPOINT_HDFS_FILES);
+        if (files == null)
+            return;
+
+        // the checkpoint may be read before or after the pool is set up
+        if (getPool() != null)
+            recover((HDFSWriterPool)getPool(), files);
+        else
+            recoveredFiles = files;
     }
 
     @Override
@@ -179,14 +347,21 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
      * @throws IOException Signals that an I/O exception has occurred.
      */
     protected ProcessResult write(final CrawlURI curi, long recordLength, InputStream in) throws IOException {
+        String seedUrl = getSeedUrl(curi);
+        final byte [] namedFieldsBlock = getNamedFields(curi, seedUrl).getUTF8Bytes();
+
+        HDFSGroupCommitWriter groupCommitWriter = ((HDFSWriterPool)getPool()).getGroupCommitWriter();
+        if (groupCommitWriter != null)
+            return writeGroupCommit(groupCommitWriter, curi, seedUrl, namedFieldsBlock, recordLength);
+
         WriterPoolMember writerPoolMember = getPool().borrowFile();
 
         long writerPoolMemberPosition = writerPoolMember.getPosition();
 
         // See if we need to open a new file because we've exceeed maxBytes.
         // Call to checkFileSize will open new file if we're at maximum for
-        // current file.
-        writerPoolMember.checkSize();
+        // current file, or if this record would cross a block boundary.
+        ((HDFSWriter)writerPoolMember).checkSize(recordLength);
 
         if (writerPoolMember.getPosition() != writerPoolMemberPosition) {
             // We just closed the file because it was larger than maxBytes.
@@ -197,10 +372,48 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
             writerPoolMemberPosition = writerPoolMember.getPosition();
         }
 
-        UURI via = curi.getVia();
+        HDFSWriter writer = (HDFSWriter)writerPoolMember;
+        try {
+            writer.write(curi, seedUrl, namedFieldsBlock, curi.getRecorder().getRecordedOutput(),
+                         curi.getRecorder().getRecordedInput());
+
+            LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI());
+        } catch (IOException e) {
+            // Invalidate this file (It gets a '.invalid' suffix).
+            invalidate(writerPoolMember);
+
+            // Set the writer to null otherwise the pool accounting
+            // of how many active writers gets skewed if we subsequently
+            // do a returnWriter call on this object in the finally block.
+            writerPoolMember = null;
+
+            if (!writer.hasFailedAppend()) {
+                getWriterMetrics().recordFailedRecord();
+                LOG.error("Error encountered while processing: " + curi.toString());
+                throw e;
+            }
+
+            getWriterMetrics().recordFailover();
+            retryFailedAppend(curi, writer, e);
+        } finally {
+            if (writerPoolMember != null) {
+                setTotalBytesWritten(getTotalBytesWritten() +
+                                     (writerPoolMember.getPosition() - writerPoolMemberPosition));
+
+                getPool().returnFile(writerPoolMember);
+            }
+        }
 
+        return checkBytesWritten();
+    }
+
+    /**
+     * Finds the seed <code>curi</code> was reached from.
+     *
+     * @return the seed URL, or an empty string if it is not known
+     */
+    protected String getSeedUrl(CrawlURI curi) {
         CrawlURI seed = curi.getFullVia();
-        String seedUrl = "";
 
         // Set a limit on the number of times to recurse
         int count = 50;
@@ -215,7 +428,16 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
         }
 
         if (seed != null && seed.isSeed())
-            seedUrl = seed.toString();
+            return seed.toString();
+
+        return "";
+    }
+
+    /**
+     * Builds the named fields written after the header line of a record.
+     */
+    protected ANVLRecord getNamedFields(CrawlURI curi, String seedUrl) {
+        UURI via = curi.getVia();
 
         ANVLRecord record = new ANVLRecord();
         record.addLabelValue(getHdfsParameters().getUrlFieldName(), curi.toString());
@@ -231,35 +453,116 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
         if (via != null && via.toString().trim().length() > 0)
             record.addLabelValue(getHdfsParameters().getViaFieldName(), via.toString());
 
-        final byte [] namedFieldsBlock = record.getUTF8Bytes();
+        return record;
+    }
 
-        HDFSWriter writer = (HDFSWriter)writerPoolMember;
+    /**
+     * Write to a file shared with group commit.
+     *
+     * @see org.archive.io.hdfs.HDFSGroupCommitWriter
+     */
+    protected ProcessResult writeGroupCommit(HDFSGroupCommitWriter groupCommitWriter, final CrawlURI curi,
+                                             String seedUrl, byte [] namedFieldsBlock,
+                                             long recordLength) throws IOException {
+        // write() returns only once the record is committed or withdrawn,
+        // so the buffer is handed over as is and reused afterwards
+        CaptureBuffer document = CAPTURE_BUFFERS.get();
+        int length;
         try {
-            writer.write(curi, namedFieldsBlock, curi.getRecorder().getRecordedOutput(),
-                         curi.getRecorder().getRecordedInput());
+            long remaining = HDFSWriter.capture(HDFSWriter.versionId(getHdfsParameters().getRecordFormat()),
+                                                curi.toString(), namedFieldsBlock,
+                                                curi.getRecorder().getRecordedOutput(),
+                                                curi.getRecorder().getRecordedInput(),
+                                                document);
+            if (remaining != 0) {
+                getWriterMetrics().recordFailedRecord();
+                throw new IOException("Gap between expected and actual: " + remaining);
+            }
 
-            LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI());
-        } catch (IOException e) {
-            // Invalidate this file (It gets a '.invalid' suffix).
-            getPool().invalidateFile(writerPoolMember);
+            length = document.size();
+            groupCommitWriter.write(curi.toString(), curi, seedUrl, document.getBuffer(), length);
+        } finally {
+            document.recycle();
+        }
+        setTotalBytesWritten(getTotalBytesWritten() + length);
 
-            // Set the writer to null otherwise the pool accounting
-            // of how many active writers gets skewed if we subsequently
-            // do a returnWriter call on this object in the finally block.
-            writerPoolMember = null;
+        LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI());
 
-            LOG.error("Error encountered while processing: " + curi.toString());
-            throw e;
-        } finally {
-            if (writerPoolMember != null) {
-                setTotalBytesWritten(getTotalBytesWritten() +
-                                     (writerPoolMember.getPosition() - writerPoolMemberPosition));
+        return checkBytesWritten();
+    }
 
-                getPool().returnFile(writerPoolMember);
+    /**
+     * Appends the record whose append failed on <code>failed</code> to
+     * another writer, backing off exponentially between attempts.  Each
+     * writer that fails is invalidated in turn.
+     *
+     * @param curi the capture being written
+     * @param failed writer whose append failed, already invalidated
+     * @param cause the failure
+     *
+     * @throws IOException if every retry failed
+     */
+    protected void retryFailedAppend(CrawlURI curi, HDFSWriter failed, IOException cause) throws IOException {
+        HDFSParameters parameters = getHdfsParameters();
+        HDFSWriterMetrics metrics = getWriterMetrics();
+        long backoff = parameters.getAppendRetryBackoffMs();
+
+        for (int attempt = 1; attempt <= parameters.getAppendRetries(); attempt++) {
+            LOG.warn("Append of " + curi + " failed (" + cause + "), retry " + attempt + " of " +
+                     parameters.getAppendRetries() + " in " + backoff + "ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                metrics.recordFailedRecord();
+                throw new InterruptedIOException("Interrupted retrying append of " + curi);
             }
+            backoff = Math.min(backoff * 2, parameters.getAppendRetryMaxBackoffMs());
+
+            metrics.recordRetry();
+            WriterPoolMember writerPoolMember = getPool().borrowFile();
+            HDFSWriter writer = (HDFSWriter)writerPoolMember;
+            long position = writer.getPosition();
+
+            try {
+                failed.retryFailedAppend(writer);
+            } catch (IOException e) {
+                invalidate(writerPoolMember);
+                if (!writer.hasFailedAppend()) {
+                    metrics.recordFailedRecord();
+                    throw e;
+                }
+
+                metrics.recordFailover();
+                failed = writer;
+                cause = e;
+                continue;
+            }
+
+            setTotalBytesWritten(getTotalBytesWritten() + (writer.getPosition() - position));
+            getPool().returnFile(writerPoolMember);
+            LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI() +
+                     " after " + attempt + " retries");
+            return;
         }
 
-        return checkBytesWritten();
+        metrics.recordFailedRecord();
+        LOG.error("Error encountered while processing: " + curi.toString());
+        throw cause;
+    }
+
+    /**
+     * Invalidates a writer whose append failed.  Closing its file usually
+     * fails too, rethrowing the error of the broken pipeline; that is
+     * logged rather than thrown, so the record buffered in the writer is
+     * still retried and the caller sees the append error.
+     */
+    private void invalidate(WriterPoolMember writerPoolMember) {
+        try {
+            getPool().invalidateFile(writerPoolMember);
+        } catch (Exception e) {
+            LOG.warn("Failed to close invalidated writer (" + e + ")");
+        }
     }
 
     public void onApplicationEvent(ApplicationEvent applicationEvent) {
@@ -271,6 +574,15 @@ public class HDFSWriterProcessor extends WriterPoolProcessor implements Applicat
             if ( crawlEvent.getState() == CrawlController.State.STOPPING ) {
                 LOG.info("Received crawl state = STOPPING. Shutting down pool...");
                 getPool().close();
+
+                HDFSWriterPool pool = (HDFSWriterPool)getPool();
+                if (!pool.awaitReplication()) {
+                    LOG.error("Crawl output is under-replicated: " +
+                              pool.getDeferredReplication().getPendingCount() +
+                              " files have not reached replication " +
+                              getHdfsParameters().getHdfsReplication());
+                }
+                pool.closeFileSystems();
             }
         }
     }
@@ -0,0 +1,495 @@
+package org.archive.modules.writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+import org.archive.io.hdfs.HDFSParameters;
+import org.archive.io.hdfs.HDFSWriterDocument;
+import org.archive.io.hdfs.HDFSWriterPool;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.modules.net.CrawlHost;
+import org.archive.modules.net.DefaultServerCache;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.ArchiveUtils;
+import org.archive.util.Recorder;
+
+/**
+ * End-to-end replay benchmark for the {@link HDFSWriterProcessor}.
+ *
+ * Microbenchmarks of the record format miss the effects of the writer
+ * pool and of file roll-over, so this harness drives real captures through
+ * {@link HDFSWriterProcessor#innerProcessResult(CrawlURI)} exactly as the
+ * disposition chain would.  It works in two steps:
+ *
+ * <pre>
+ *   # 1. record a corpus once from existing HDFSWriter output
+ *   HDFSWriterReplayBenchmark record &lt;source-path&gt; &lt;corpus-file&gt; [max-records]
+ *
+ *   # 2. replay it against one or more writer configurations
+ *   HDFSWriterReplayBenchmark replay &lt;corpus-file&gt; &lt;output-fs&gt; &lt;output-dir&gt;
+ *       [-threads 1,4,16] [-poolMaxActive 1,4] [-maxSize 20m,63m]
+ *       [-compression NONE,RECORD,BLOCK] [-records N] [-scratch dir]
+ * </pre>
+ *
+ * The corpus is a local SequenceFile holding the HDFSWriter documents of
+ * the recorded captures, so it carries the request bytes, the response
+ * bytes and the CrawlURI metadata (URL, IP, crawl time, seed, via).  The
+ * output filesystem is either a filesystem URI (for example
+ * <code>file:///</code> or <code>hdfs://namenode:9000</code>) or the
+ * literal <code>minidfs</code>, which starts an in-process MiniDFSCluster
+ * when the hadoop-hdfs test jar is on the classpath.
+ *
+ * For every combination of the comma separated settings a throughput and
+ * latency report line is printed, which can be used to size
+ * <code>poolMaxActive</code>, <code>maxSize</code> and the compression
+ * type before a production crawl.
+ */
+public class HDFSWriterReplayBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(HDFSWriterReplayBenchmark.class.getName());
+
+    /**
+     * A capture parsed back out of the corpus.
+     */
+    static class Capture {
+        String url;
+        String ip;
+        long fetchBeginTime;
+        boolean isSeed;
+        String via;
+        String pathFromSeed;
+        int fetchStatus;
+        byte [] request;
+        byte [] response;
+    }
+
+    /**
+     * One point in the benchmark matrix.
+     */
+    static class RunConfig {
+        int threads;
+        int poolMaxActive;
+        long maxSize;
+        String compression;
+
+        public String toString() {
+            return "threads=" + threads + " poolMaxActive=" + poolMaxActive +
+                " maxSize=" + maxSize + " compression=" + compression;
+        }
+    }
+
+    private List<Capture> corpus;
+    private String fsDefaultName;
+    private String outputDir;
+    private File scratchDir;
+    private int recordsPerRun;
+
+    public HDFSWriterReplayBenchmark(List<Capture> corpus,
+                                     String fsDefaultName,
+                                     String outputDir,
+                                     File scratchDir,
+                                     int recordsPerRun) {
+        this.corpus = corpus;
+        this.fsDefaultName = fsDefaultName;
+        this.outputDir = outputDir;
+        this.scratchDir = scratchDir;
+        this.recordsPerRun = recordsPerRun;
+    }
+
+    /**
+     * Copies up to <code>maxRecords</code> records from the HDFSWriter
+     * output at <code>source</code> (a file or a directory of files) into
+     * a local corpus file.
+     *
+     * @return number of records recorded
+     */
+    public static int record(Path source, File corpusFile, int maxRecords) throws IOException {
+        Configuration conf = new Configuration();
+        FileSystem srcFs = source.getFileSystem(conf);
+        FileSystem localFs = FileSystem.getLocal(conf);
+
+        List<Path> inputs = new ArrayList<Path>();
+        if (srcFs.getFileStatus(source).isDirectory()) {
+            for (FileStatus status : srcFs.listStatus(source)) {
+                String name = status.getPath().getName();
+                if (status.isFile() && !name.startsWith("_") && !name.startsWith("."))
+                    inputs.add(status.getPath());
+            }
+        } else {
+            inputs.add(source);
+        }
+
+        SequenceFile.Writer out =
+            SequenceFile.createWriter(localFs, conf, new Path(corpusFile.getAbsolutePath()),
+                                      Text.class, Text.class, SequenceFile.CompressionType.NONE);
+        Text key = new Text();
+        Text value = new Text();
+        int count = 0;
+
+        try {
+            for (Path input : inputs) {
+                SequenceFile.Reader in = new SequenceFile.Reader(srcFs, input, conf);
+                try {
+                    while (count < maxRecords && in.next(key, value)) {
+                        out.append(key, value);
+                        count++;
+                    }
+                } finally {
+                    in.close();
+                }
+                if (count >= maxRecords)
+                    break;
+            }
+        } finally {
+            out.close();
+        }
+
+        return count;
+    }
+
+    /**
+     * Loads a corpus file into memory, parsing each document into a
+     * {@link Capture}.
+     */
+    public static List<Capture> loadCorpus(File corpusFile) throws IOException {
+        Configuration conf = new Configuration();
+        FileSystem localFs = FileSystem.getLocal(conf);
+        SequenceFile.Reader in =
+            new SequenceFile.Reader(localFs, new Path(corpusFile.getAbsolutePath()), conf);
+        List<Capture> captures = new ArrayList<Capture>();
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+        Text key = new Text();
+        Text value = new Text();
+
+        try {
+            while (in.next(key, value)) {
+                doc.wrap(value);
+
+                Capture capture = new Capture();
+                capture.url = doc.getField(HDFSParameters.NAMED_FIELD_URL);
+                if (capture.url == null)
+                    capture.url = key.toString();
+                capture.ip = doc.getField(HDFSParameters.NAMED_FIELD_IP);
+                capture.via = doc.getField(HDFSParameters.NAMED_FIELD_VIA);
+                capture.pathFromSeed = doc.getField(HDFSParameters.NAMED_FIELD_PATH_FROM_SEED);
+                capture.isSeed = Boolean.valueOf(doc.getField(HDFSParameters.NAMED_FIELD_IS_SEED));
+
+                String crawlTime = doc.getField(HDFSParameters.NAMED_FIELD_CRAWL_TIME);
+                try {
+                    capture.fetchBeginTime = (crawlTime == null) ? System.currentTimeMillis() :
+                        ArchiveUtils.parse14DigitDate(crawlTime).getTime();
+                } catch (java.text.ParseException e) {
+                    capture.fetchBeginTime = System.currentTimeMillis();
+                }
+
+                capture.fetchStatus = (doc.getResponseCode() > 0) ? doc.getResponseCode() : 200;
+                capture.request = Arrays.copyOfRange(doc.getRequestBytes(), doc.getRequestOffset(),
+                                                     doc.getRequestOffset() + doc.getRequestLength());
+                capture.response = Arrays.copyOfRange(doc.getResponseBytes(), doc.getResponseOffset(),
+                                                      doc.getResponseOffset() + doc.getResponseLength());
+                captures.add(capture);
+            }
+        } finally {
+            in.close();
+        }
+
+        return captures;
+    }
+
+    /**
+     * Builds a CrawlURI whose recorder holds the captured request and
+     * response, as FetchHTTP would have left it.
+     */
+    private CrawlURI toCrawlURI(Capture capture, DefaultServerCache serverCache,
+                                String recorderName) throws IOException {
+        UURI uuri = UURIFactory.getInstance(capture.url);
+        UURI via = (capture.via == null) ? null : UURIFactory.getInstance(capture.via);
+        String pathFromSeed = (capture.pathFromSeed == null) ? "" : capture.pathFromSeed;
+
+        CrawlURI curi = new CrawlURI(uuri, pathFromSeed, via, LinkContext.NAVLINK_MISC);
+        curi.setSeed(capture.isSeed);
+        curi.setFetchStatus(capture.fetchStatus);
+        curi.setFetchBeginTime(capture.fetchBeginTime);
+        curi.setContentSize(capture.response.length);
+        if (uuri.getScheme().startsWith("http"))
+            curi.setHttpMethod(new GetMethod(capture.url));
+
+        CrawlHost host = serverCache.getHostFor(uuri);
+        if (host != null && host.getIP() == null && capture.ip != null && capture.ip.length() > 0)
+            host.setIP(InetAddress.getByName(capture.ip), -1);
+
+        Recorder recorder = new Recorder(scratchDir, recorderName, 16384, 524288);
+        OutputStream out = recorder.outputWrap(new ByteArrayOutputStream(capture.request.length));
+        out.write(capture.request);
+        out.flush();
+
+        InputStream in = recorder.inputWrap(new ByteArrayInputStream(capture.response));
+        byte [] drain = new byte [8192];
+        while (in.read(drain) != -1)
+            ;
+        recorder.close();
+
+        curi.setRecorder(recorder);
+        return curi;
+    }
+
+    /**
+     * Runs a single configuration and prints its report line.
+     */
+    public void run(final RunConfig config, int runNumber) throws Exception {
+        HDFSParameters parameters = new HDFSParameters();
+        parameters.setPrefix("BENCH");
+        parameters.setHdfsFsDefaultName(fsDefaultName);
+        parameters.setHdfsOutputPath(outputDir + "/run-" + runNumber);
+        parameters.setHdfsCompressionType(config.compression);
+        parameters.setMaxSize(config.maxSize);
+        parameters.setHdfsReplication(1);
+
+        final DefaultServerCache serverCache = new DefaultServerCache();
+        final HDFSWriterProcessor processor = new HDFSWriterProcessor();
+        processor.setHdfsParameters(parameters);
+        processor.setPoolMaxActive(config.poolMaxActive);
+        processor.setMaxFileSizeBytes(config.maxSize);
+        processor.setServerCache(serverCache);
+        processor.start();
+
+        final AtomicInteger nextRecord = new AtomicInteger();
+        final AtomicLong bytesReplayed = new AtomicLong();
+        final long [][] latencies = new long [config.threads][];
+        final int [] latencyCounts = new int [config.threads];
+        final CountDownLatch done = new CountDownLatch(config.threads);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+
+        long start = System.nanoTime();
+
+        for (int t = 0; t < config.threads; t++) {
+            final int threadNo = t;
+            latencies[t] = new long [recordsPerRun / config.threads + 1];
+
+            Thread thread = new Thread("replay-" + t) {
+                public void run() {
+                    try {
+                        int n;
+                        while ((n = nextRecord.getAndIncrement()) < recordsPerRun) {
+                            Capture capture = corpus.get(n % corpus.size());
+                            CrawlURI curi = toCrawlURI(capture, serverCache, getName() + "-" + n);
+
+                            long begin = System.nanoTime();
+                            processor.innerProcessResult(curi);
+                            long elapsed = System.nanoTime() - begin;
+
+                            curi.getRecorder().cleanup();
+
+                            if (latencyCounts[threadNo] == latencies[threadNo].length)
+                                latencies[threadNo] = Arrays.copyOf(latencies[threadNo],
+                                                                    latencies[threadNo].length * 2);
+                            latencies[threadNo][latencyCounts[threadNo]++] = elapsed;
+                            bytesReplayed.addAndGet(capture.request.length + capture.response.length);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        done.await();
+        HDFSWriterPool pool = (HDFSWriterPool)processor.getPool();
+        pool.close();
+        long elapsedNanos = System.nanoTime() - start;
+        processor.stop();
+
+        // release this run's HDFS clients so they do not load later runs
+        pool.awaitReplication();
+        pool.closeFileSystems();
+
+        if (!failures.isEmpty()) {
+            LOG.error("Replay thread failed for " + config, failures.get(0));
+            System.out.println(config + " FAILED: " + failures.get(0));
+            return;
+        }
+
+        int total = 0;
+        for (int t = 0; t < config.threads; t++)
+            total += latencyCounts[t];
+        long [] all = new long [total];
+        int pos = 0;
+        for (int t = 0; t < config.threads; t++) {
+            System.arraycopy(latencies[t], 0, all, pos, latencyCounts[t]);
+            pos += latencyCounts[t];
+        }
+        Arrays.sort(all);
+
+        FileSystem fs = FileSystem.get(java.net.URI.create(fsDefaultName), new Configuration());
+        FileStatus [] files = fs.listStatus(new Path(parameters.getHdfsOutputPath()));
+        long bytesOnDisk = 0;
+        for (FileStatus file : files)
+            bytesOnDisk += file.getLen();
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(
+            "%s records=%d secs=%.2f rec/s=%.1f MB/s=%.2f p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms files=%d ratio=%.2f",
+            config, total, seconds, total / seconds,
+            bytesReplayed.get() / seconds / (1024 * 1024),
+            percentile(all, 0.50), percentile(all, 0.95), percentile(all, 0.99),
+            percentile(all, 1.0), files.length,
+            (bytesReplayed.get() == 0) ? 0.0 : (double)bytesOnDisk / bytesReplayed.get()));
+    }
+
+    private static double percentile(long [] sorted, double p) {
+        if (sorted.length == 0)
+            return 0.0;
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        if (index < 0)
+            index = 0;
+        return sorted[index] / 1e6;
+    }
+
+    private static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (s.endsWith("k"))
+            multiplier = 1024;
+        else if (s.endsWith("m"))
+            multiplier = 1024 * 1024;
+        else if (s.endsWith("g"))
+            multiplier = 1024 * 1024 * 1024;
+        if (multiplier != 1)
+            s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * multiplier;
+    }
+
+    /**
+     * Starts a MiniDFSCluster by reflection so that hadoop-hdfs test
+     * classes are only needed when actually asked for.
+     *
+     * @return the running cluster, call <code>shutdown()</code> on it when done
+     */
+    private static Object startMiniDFSCluster(int dataNodes) throws Exception {
+        Class<?> builderClass = Class.forName("org.apache.hadoop.hdfs.MiniDFSCluster$Builder");
+        Object builder = builderClass.getConstructor(Configuration.class).newInstance(new Configuration());
+        builderClass.getMethod("numDataNodes", int.class).invoke(builder, dataNodes);
+        return builderClass.getMethod("build").invoke(builder);
+    }
+
+    static void printUsage() {
+        System.out.println("HDFSWriterReplayBenchmark record <source-path> <corpus-file> [max-records]");
+        System.out.println("HDFSWriterReplayBenchmark replay <corpus-file> <output-fs|minidfs> <output-dir>");
+        System.out.println("    [-threads 1,4,16] [-poolMaxActive 1,4] [-maxSize 20m,63m]");
+        System.out.println("    [-compression NONE,RECORD,BLOCK] [-records N] [-scratch dir]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3)
+            printUsage();
+
+        if (args[0].equals("record")) {
+            int max = (args.length > 3) ? Integer.parseInt(args[3]) : 10000;
+            int count = record(new Path(args[1]), new File(args[2]), max);
+            System.out.println("Recorded " + count + " captures to " + args[2]);
+            return;
+        }
+
+        if (!args[0].equals("replay") || args.length < 4)
+            printUsage();
+
+        String [] threads = { "1", "4", "16" };
+        String [] poolMaxActive = { "1", "4" };
+        String [] maxSizes = { "63m" };
+        String [] compressions = { "NONE" };
+        int records = 0;
+        File scratch = new File(System.getProperty("java.io.tmpdir"), "hdfs-replay-scratch");
+
+        for (int i = 4; i + 1 < args.length; i += 2) {
+            String [] values = args[i+1].split(",");
+            if (args[i].equals("-threads"))
+                threads = values;
+            else if (args[i].equals("-poolMaxActive"))
+                poolMaxActive = values;
+            else if (args[i].equals("-maxSize"))
+                maxSizes = values;
+            else if (args[i].equals("-compression"))
+                compressions = values;
+            else if (args[i].equals("-records"))
+                records = Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-scratch"))
+                scratch = new File(args[i+1]);
+            else
+                printUsage();
+        }
+        scratch.mkdirs();
+
+        List<Capture> corpus = loadCorpus(new File(args[1]));
+        if (corpus.isEmpty()) {
+            System.out.println("Corpus " + args[1] + " is empty");
+            return;
+        }
+        if (records <= 0)
+            records = corpus.size();
+
+        Object cluster = null;
+        String fsDefaultName = args[2];
+        if (fsDefaultName.equals("minidfs")) {
+            cluster = startMiniDFSCluster(3);
+            Object fs = cluster.getClass().getMethod("getFileSystem").invoke(cluster);
+            fsDefaultName = ((FileSystem)fs).getUri().toString();
+        }
+
+        try {
+            HDFSWriterReplayBenchmark bench =
+                new HDFSWriterReplayBenchmark(corpus, fsDefaultName, args[3], scratch, records);
+
+            System.out.println("Replaying " + records + " records from a corpus of " +
+                               corpus.size() + " captures against " + fsDefaultName);
+
+            int runNumber = 0;
+            for (String t : threads) {
+                for (String p : poolMaxActive) {
+                    for (String m : maxSizes) {
+                        for (String c : compressions) {
+                            RunConfig config = new RunConfig();
+                            config.threads = Integer.parseInt(t.trim());
+                            config.poolMaxActive = Integer.parseInt(p.trim());
+                            config.maxSize = parseSize(m);
+                            config.compression = c.trim().toUpperCase();
+                            bench.run(config, runNumber++);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (cluster != null) {
+                Method shutdown = cluster.getClass().getMethod("shutdown");
+                shutdown.invoke(cluster);
+            }
+        }
+    }
+}
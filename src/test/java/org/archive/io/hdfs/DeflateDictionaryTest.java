@@ -0,0 +1,150 @@
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.Text;
+
+public class DeflateDictionaryTest extends TestCase {
+
+    private static final String HEADERS =
+        "HTTP/1.1 200 OK\r\n" +
+        "Server: Apache/2.2.22 (Debian)\r\n" +
+        "Content-Type: text/html; charset=UTF-8\r\n" +
+        "Cache-Control: no-cache, must-revalidate\r\n" +
+        "\r\n";
+
+    private static byte [] document(int n) throws IOException {
+        return (HEADERS + "<html><body>page " + n + " once only</body></html>\n").getBytes("ISO-8859-1");
+    }
+
+    private static List<byte []> samples(int count) throws IOException {
+        List<byte []> samples = new ArrayList<byte []>();
+        for (int i = 0; i < count; i++)
+            samples.add(document(i));
+        return samples;
+    }
+
+    public void testTrainKeepsRepeatedLines() throws IOException {
+        String dictionary = new String(DeflateDictionary.train(samples(5), DeflateDictionary.MAX_SIZE), "ISO-8859-1");
+
+        assertTrue(dictionary.contains("Server: Apache/2.2.22 (Debian)\r\n"));
+        assertTrue(dictionary.contains("Cache-Control: no-cache, must-revalidate\r\n"));
+        assertFalse(dictionary.contains("once only"));
+    }
+
+    public void testTrainRespectsSize() throws IOException {
+        byte [] dictionary = DeflateDictionary.train(samples(5), 50);
+
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 50);
+    }
+
+    public void testSampleTrainsOnceEnoughSeen() throws IOException {
+        DeflateDictionary dictionary = new DeflateDictionary(3, 1024);
+
+        for (int i = 0; i < 2; i++) {
+            byte [] document = document(i);
+            dictionary.sample(document, 0, document.length);
+        }
+        assertTrue(dictionary.isSampling());
+        assertNull(dictionary.getDictionary());
+
+        byte [] document = document(2);
+        dictionary.sample(document, 0, document.length);
+        assertFalse(dictionary.isSampling());
+        assertNotNull(dictionary.getDictionary());
+    }
+
+    public void testRoundTripWithDictionary() throws IOException {
+        byte [] dictionary = DeflateDictionary.train(samples(5), DeflateDictionary.MAX_SIZE);
+        byte [] document = document(42);
+        int [] end = new int [1];
+
+        byte [] out = DeflateDictionary.compress(new Deflater(), dictionary, document, 0, document.length,
+                                                 new byte [8], 4, end);
+
+        assertTrue(DeflateDictionary.isCompressed(out, 4, end[0] - 4));
+        assertTrue(Arrays.equals(document, DeflateDictionary.decompress(dictionary, out, 4, end[0] - 4)));
+    }
+
+    public void testRoundTripWithoutDictionary() throws IOException {
+        byte [] document = document(7);
+        int [] end = new int [1];
+
+        byte [] out = DeflateDictionary.compress(new Deflater(), null, document, 0, document.length,
+                                                 new byte [0], 0, end);
+
+        assertTrue(Arrays.equals(document, DeflateDictionary.decompress(null, out, 0, end[0])));
+    }
+
+    public void testDictionaryShrinksOutput() throws IOException {
+        byte [] dictionary = DeflateDictionary.train(samples(5), DeflateDictionary.MAX_SIZE);
+        byte [] document = document(9);
+        int [] withDictionary = new int [1];
+        int [] withoutDictionary = new int [1];
+
+        DeflateDictionary.compress(new Deflater(), dictionary, document, 0, document.length,
+                                   new byte [0], 0, withDictionary);
+        DeflateDictionary.compress(new Deflater(), null, document, 0, document.length,
+                                   new byte [0], 0, withoutDictionary);
+
+        assertTrue(withDictionary[0] < withoutDictionary[0]);
+    }
+
+    public void testMissingDictionaryFails() throws IOException {
+        byte [] dictionary = DeflateDictionary.train(samples(5), DeflateDictionary.MAX_SIZE);
+        byte [] document = document(1);
+        int [] end = new int [1];
+        byte [] out = DeflateDictionary.compress(new Deflater(), dictionary, document, 0, document.length,
+                                                 new byte [0], 0, end);
+
+        try {
+            DeflateDictionary.decompress(null, out, 0, end[0]);
+            fail("decompressed without the dictionary");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testIsCompressed() throws IOException {
+        byte [] document = document(3);
+
+        assertFalse(DeflateDictionary.isCompressed(document, 0, document.length));
+        assertFalse(DeflateDictionary.isCompressed(DeflateDictionary.MAGIC, 0, DeflateDictionary.MAGIC.length));
+    }
+
+    public void testMetadataRoundTrip() {
+        byte [] dictionary = { 1, 2, 3, (byte)0xff };
+
+        assertTrue(Arrays.equals(dictionary, DeflateDictionary.fromMetadata(DeflateDictionary.toMetadata(dictionary))));
+        assertNull(DeflateDictionary.fromMetadata(null));
+    }
+
+    public void testDecompressValue() throws IOException {
+        byte [] dictionary = DeflateDictionary.train(samples(5), DeflateDictionary.MAX_SIZE);
+        byte [] document = document(11);
+        int [] end = new int [1];
+        byte [] out = DeflateDictionary.compress(new Deflater(), dictionary, document, 0, document.length,
+                                                 new byte [4], 4, end);
+        Text value = new Text();
+        value.set(out, 0, end[0]);
+
+        DeflateDictionary.decompressValue(dictionary, value);
+
+        assertEquals(4 + document.length, value.getLength());
+        byte [] bytes = value.getBytes();
+        assertEquals(document.length, ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+                     ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff));
+        assertTrue(Arrays.equals(document, Arrays.copyOfRange(bytes, 4, 4 + document.length)));
+
+        // plain values are left alone
+        DeflateDictionary.decompressValue(dictionary, value);
+        assertEquals(4 + document.length, value.getLength());
+    }
+}
@@ -0,0 +1,150 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+public class HDFSSectionTableTest extends TestCase {
+
+    private static final String HEAD =
+        "HTTP/1.1 404 Not Found\r\n" +
+        "Server: test\r\n" +
+        "content-type : \"Text/HTML\"; charset=utf-8\r\n" +
+        "Content-Type: text/plain\r\n" +
+        "\r\n";
+
+    private static final String BODY = "<html>missing</html>";
+
+    private static byte [] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    public void testScanResponse() throws IOException {
+        byte [] response = bytes("xx" + HEAD + BODY);
+        HDFSSectionTable table = new HDFSSectionTable();
+
+        table.scanResponse(response, 2, response.length - 2, true);
+        table.layout(0, 0, 0, response.length - 2);
+
+        assertEquals(404, table.getStatusCode());
+        assertEquals(HEAD.length(), table.getHeaderLength());
+        assertEquals(BODY.length(), table.getBodyLength());
+        // the first Content-Type header counts
+        assertEquals("text/html", HDFSSectionTable.getContentType(table.getContentTypeId()));
+    }
+
+    public void testScanTruncatedHead() throws IOException {
+        byte [] response = bytes("HTTP/1.1 200 OK\r\nServer: test\r\n");
+        HDFSSectionTable table = new HDFSSectionTable();
+
+        table.scanResponse(response, 0, response.length, false);
+        table.layout(10, 5, 20, 1000);
+
+        assertEquals(200, table.getStatusCode());
+        assertEquals(-1, table.getHeaderLength());
+        assertEquals(table.getHeaderOffset(), table.getBodyOffset());
+        assertEquals(1000, table.getBodyLength());
+    }
+
+    public void testLayout() throws IOException {
+        byte [] response = bytes(HEAD + BODY);
+        HDFSSectionTable table = new HDFSSectionTable();
+
+        table.scanResponse(response, 0, response.length, true);
+        table.layout(12, 30, 100, response.length);
+
+        assertEquals(12 + HDFSSectionTable.SIZE, table.getFieldsOffset());
+        assertEquals(30, table.getFieldsLength());
+        assertEquals(table.getFieldsOffset() + 30, table.getRequestOffset());
+        assertEquals(100, table.getRequestLength());
+        assertEquals(table.getRequestOffset() + 100, table.getHeaderOffset());
+        assertEquals(table.getHeaderOffset() + HEAD.length(), table.getBodyOffset());
+        assertEquals(BODY.length(), table.getBodyLength());
+    }
+
+    public void testLayoutTooLarge() {
+        HDFSSectionTable table = new HDFSSectionTable();
+        try {
+            table.layout(0, 0, Integer.MAX_VALUE, 1);
+            fail("laid out a document over 2 GB");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte [] response = bytes(HEAD + BODY);
+        HDFSSectionTable table = new HDFSSectionTable();
+        table.scanResponse(response, 0, response.length, true);
+        table.layout(8, 16, 32, response.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte [8]);
+        table.write(out);
+        out.write(new byte [16 + 32]);
+        out.write(response);
+        byte [] document = out.toByteArray();
+
+        HDFSSectionTable read = new HDFSSectionTable();
+        assertEquals(HDFSSectionTable.SIZE, read.read(document, 8, 0, document.length));
+
+        assertEquals(table.getFieldsOffset(), read.getFieldsOffset());
+        assertEquals(table.getFieldsLength(), read.getFieldsLength());
+        assertEquals(table.getRequestOffset(), read.getRequestOffset());
+        assertEquals(table.getRequestLength(), read.getRequestLength());
+        assertEquals(table.getHeaderOffset(), read.getHeaderOffset());
+        assertEquals(table.getHeaderLength(), read.getHeaderLength());
+        assertEquals(table.getBodyOffset(), read.getBodyOffset());
+        assertEquals(table.getBodyLength(), read.getBodyLength());
+        assertEquals(404, read.getStatusCode());
+        assertEquals(table.getContentTypeId(), read.getContentTypeId());
+        assertEquals(BODY, new String(document, read.getBodyOffset(), read.getBodyLength(), "ISO-8859-1"));
+    }
+
+    public void testReadSkipsLargerTable() throws IOException {
+        HDFSSectionTable table = new HDFSSectionTable();
+        table.layout(0, 4, 0, 0);
+
+        // a later version with two more bytes in its table
+        byte [] document = new byte [HDFSSectionTable.SIZE + 2 + 4];
+        table.write(document, 0);
+        document[1] = (byte)(HDFSSectionTable.SIZE + 2);
+
+        HDFSSectionTable read = new HDFSSectionTable();
+        assertEquals(HDFSSectionTable.SIZE + 2, read.read(document, 0, 0, document.length));
+        assertEquals(4, read.getFieldsLength());
+    }
+
+    public void testReadRejectsBadTable() throws IOException {
+        HDFSSectionTable table = new HDFSSectionTable();
+        table.layout(0, 100, 0, 0);
+        byte [] document = new byte [HDFSSectionTable.SIZE + 10];
+        table.write(document, 0);
+
+        try {
+            new HDFSSectionTable().read(document, 0, 0, document.length);
+            fail("read fields past the end of the document");
+        } catch (IOException e) {
+            // expected
+        }
+
+        try {
+            new HDFSSectionTable().read(document, 0, 0, HDFSSectionTable.SIZE - 1);
+            fail("read a truncated table");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testContentTypeIds() {
+        assertEquals(0, HDFSSectionTable.getContentTypeId(null));
+        assertEquals(0, HDFSSectionTable.getContentTypeId("application/x-unknown"));
+        int id = HDFSSectionTable.getContentTypeId("image/png");
+        assertTrue(id > 0);
+        assertEquals("image/png", HDFSSectionTable.getContentType(id));
+        assertNull(HDFSSectionTable.getContentType(0));
+        assertNull(HDFSSectionTable.getContentType(10000));
+    }
+}
@@ -0,0 +1,161 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class HDFSWriterDocumentTest extends TestCase {
+
+    private static final String FIELDS =
+        "URL: http://example.com/index.html\r\n" +
+        "IP: 192.0.2.1\r\n" +
+        "\r\n";
+
+    private static final String REQUEST =
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: example.com\r\n" +
+        "\r\n";
+
+    private static final String HEAD =
+        "HTTP/1.1 200 OK\r\n" +
+        "Content-Type: text/html; charset=utf-8\r\n" +
+        "Content-Length: 40\r\n" +
+        "\r\n";
+
+    private static final String BODY = "<html><body>0123456789abcdef</body></html>";
+
+    private static byte [] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    private static byte [] document03() throws UnsupportedEncodingException {
+        return bytes("HDFSWriter/0.3\r\n" + FIELDS + REQUEST + HEAD + BODY);
+    }
+
+    private static byte [] document04() throws IOException {
+        byte [] preamble = bytes("HDFSWriter/0.4\r\n");
+        byte [] response = bytes(HEAD + BODY);
+        HDFSSectionTable table = new HDFSSectionTable();
+        table.scanResponse(response, 0, response.length, true);
+        table.layout(preamble.length, FIELDS.length(), REQUEST.length(), response.length);
+        byte [] tableBytes = new byte [HDFSSectionTable.SIZE];
+        table.write(tableBytes, 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(preamble);
+        out.write(tableBytes);
+        out.write(bytes(FIELDS + REQUEST));
+        out.write(response);
+        return out.toByteArray();
+    }
+
+    /** Length of a document up to the end of its response headers */
+    private static int headersEnd(byte [] doc) {
+        return doc.length - BODY.length();
+    }
+
+    private void assertProjected(HDFSWriterDocument doc) {
+        assertEquals("http://example.com/index.html", doc.getField("URL"));
+        assertEquals("192.0.2.1", doc.getField("IP"));
+        assertEquals(200, doc.getResponseCode());
+        assertEquals("text/html", doc.getContentType());
+        assertEquals("UTF-8", doc.getCharset());
+        assertEquals("40", doc.getHeaderString("Content-Length"));
+    }
+
+    public void testWrapPrefix03() throws IOException {
+        byte [] bytes = document03();
+        int prefix = headersEnd(bytes) + 10;
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+
+        assertTrue(doc.wrapPrefix(bytes, 0, prefix, bytes.length));
+        assertTrue(doc.isTruncated());
+        assertEquals(bytes.length, doc.getDocumentLength());
+        assertEquals(prefix, doc.getLength());
+        assertEquals(3, doc.getVersion());
+        assertProjected(doc);
+        assertEquals(10, doc.getResponseBodyLength());
+    }
+
+    public void testWrapPrefix04() throws IOException {
+        byte [] bytes = document04();
+        int prefix = headersEnd(bytes) + 10;
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+
+        assertTrue(doc.wrapPrefix(bytes, 0, prefix, bytes.length));
+        assertTrue(doc.isTruncated());
+        assertEquals(bytes.length, doc.getDocumentLength());
+        assertEquals(4, doc.getVersion());
+        assertProjected(doc);
+        assertEquals(10, doc.getResponseBodyLength());
+    }
+
+    public void testWrapPrefixEndingInHeaders() throws IOException {
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+
+        byte [] bytes = document03();
+        assertFalse(doc.wrapPrefix(bytes, 0, headersEnd(bytes) - 4, bytes.length));
+
+        bytes = document04();
+        assertFalse(doc.wrapPrefix(bytes, 0, headersEnd(bytes) - 4, bytes.length));
+        // the section table itself is incomplete
+        assertFalse(doc.wrapPrefix(bytes, 0, 20, bytes.length));
+    }
+
+    public void testWrapPrefixWholeDocument() throws IOException {
+        byte [] bytes = document04();
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+
+        assertTrue(doc.wrapPrefix(bytes, 0, bytes.length, bytes.length));
+        assertFalse(doc.isTruncated());
+        assertEquals(bytes.length, doc.getDocumentLength());
+        assertEquals(bytes.length, doc.getLength());
+        assertProjected(doc);
+        assertEquals(BODY.length(), doc.getResponseBodyLength());
+    }
+
+    public void testWrapClearsTruncation() throws IOException {
+        byte [] bytes = document03();
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+
+        assertTrue(doc.wrapPrefix(bytes, 0, headersEnd(bytes) + 1, bytes.length));
+        assertTrue(doc.isTruncated());
+
+        doc.wrap(bytes, 0, bytes.length);
+        assertFalse(doc.isTruncated());
+        assertEquals(BODY.length(), doc.getResponseBodyLength());
+    }
+
+    public void testWriteTruncated() throws IOException {
+        byte [] bytes = document03();
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+        assertTrue(doc.wrapPrefix(bytes, 0, headersEnd(bytes) + 1, bytes.length));
+
+        try {
+            doc.write(new DataOutputStream(new ByteArrayOutputStream()));
+            fail("wrote a truncated document");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testWrapPrefixCompressed() throws IOException {
+        byte [] dictionary = bytes(HEAD + BODY);
+        byte [] document = document03();
+        int [] end = new int [1];
+        byte [] bytes = DeflateDictionary.compress(new Deflater(), dictionary, document, 0, document.length,
+                                                   new byte [0], 0, end);
+        HDFSWriterDocument doc = new HDFSWriterDocument();
+
+        try {
+            doc.wrapPrefix(bytes, 0, end[0] - 1, end[0]);
+            fail("parsed a prefix of a compressed document");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
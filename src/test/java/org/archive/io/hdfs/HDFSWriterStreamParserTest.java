@@ -0,0 +1,154 @@
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class HDFSWriterStreamParserTest extends TestCase {
+
+    private static byte [] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    private static byte [] body(int length) {
+        byte [] b = new byte [length];
+        for (int i = 0; i < length; i++)
+            b[i] = (byte)('a' + i % 26);
+        return b;
+    }
+
+    private static byte [] document(String url, String extraHeaders, byte [] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(bytes("HDFSWriter/0.3\r\n" +
+                        "URL: " + url + "\r\n" +
+                        "\r\n" +
+                        "GET / HTTP/1.1\r\n" +
+                        "\r\n" +
+                        "HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: text/plain; charset=iso-8859-1\r\n" +
+                        extraHeaders +
+                        "\r\n"));
+        out.write(body);
+        return out.toByteArray();
+    }
+
+    /** Values as the HDFSWriter writes them, a length and the document */
+    private static DataInputStream values(byte [] ... documents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (byte [] document : documents) {
+            out.writeInt(document.length);
+            out.write(document);
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static byte [] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte [] b = new byte [1000];
+        int n;
+        while ((n = in.read(b)) >= 0)
+            out.write(b, 0, n);
+        return out.toByteArray();
+    }
+
+    public void testLargeBody() throws IOException {
+        byte [] body = body(200000);
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+
+        HDFSWriterDocument doc = parser.readFields(values(document("http://example.com/", "", body)));
+        assertEquals("http://example.com/", doc.getField("URL"));
+        assertEquals(200, doc.getResponseCode());
+        assertEquals("text/plain", doc.getContentType());
+        assertTrue(doc.isTruncated());
+        assertEquals(body.length, parser.getBodyLength());
+        assertTrue(Arrays.equals(body, readAll(parser.getBody())));
+    }
+
+    public void testSmallDocumentIsWhole() throws IOException {
+        byte [] body = body(100);
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+
+        HDFSWriterDocument doc = parser.readFields(values(document("http://example.com/", "", body)));
+        assertFalse(doc.isTruncated());
+        assertEquals(body.length, doc.getResponseBodyLength());
+        assertTrue(Arrays.equals(body, readAll(parser.getBody())));
+    }
+
+    public void testUnreadBodyIsSkipped() throws IOException {
+        DataInputStream in = values(document("http://example.com/a", "", body(50000)),
+                                    document("http://example.com/b", "", body(10)),
+                                    document("http://example.com/c", "", body(30000)));
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+
+        assertEquals("http://example.com/a", parser.readFields(in).getField("URL"));
+        parser.getBody().read(new byte [100]);
+        assertEquals("http://example.com/b", parser.readFields(in).getField("URL"));
+        assertEquals("http://example.com/c", parser.readFields(in).getField("URL"));
+        parser.skipBody();
+        assertEquals(0, in.available());
+    }
+
+    public void testCompressedDocument() throws IOException {
+        byte [] body = body(100000);
+        byte [] document = document("http://example.com/", "", body);
+        byte [] dictionary = Arrays.copyOfRange(document, 0, 200);
+        int [] end = new int [1];
+        byte [] compressed = DeflateDictionary.compress(new Deflater(), dictionary, document, 0, document.length,
+                                                        new byte [0], 0, end);
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+        parser.setDictionary(dictionary);
+
+        DataInputStream in = values(Arrays.copyOf(compressed, end[0]),
+                                    document("http://example.com/next", "", body(10)));
+        HDFSWriterDocument doc = parser.readFields(in);
+        assertEquals("http://example.com/", doc.getField("URL"));
+        assertEquals(body.length, parser.getBodyLength());
+        assertTrue(Arrays.equals(body, readAll(parser.getBody())));
+        assertEquals("http://example.com/next", parser.readFields(in).getField("URL"));
+    }
+
+    public void testHeadTooLong() throws IOException {
+        StringBuilder headers = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            headers.append("X-Filler-" + i + ": 0123456789\r\n");
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+        parser.setMaxHeadLength(HDFSWriterStreamParser.INITIAL_HEAD_LENGTH);
+
+        try {
+            parser.readFields(values(document("http://example.com/", headers.toString(), body(10))));
+            fail("parsed a head longer than the maximum");
+        } catch (IOException e) {
+            // expected
+        }
+
+        parser.setMaxHeadLength(HDFSWriterStreamParser.DEFAULT_MAX_HEAD_LENGTH);
+        HDFSWriterDocument doc = parser.readFields(values(document("http://example.com/", headers.toString(), body(10))));
+        assertEquals("0123456789", doc.getHeaderString("X-Filler-999"));
+    }
+
+    public void testTruncatedStream() throws IOException {
+        byte [] document = document("http://example.com/", "", body(10));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(document.length + 100);
+        out.write(document);
+        HDFSWriterStreamParser parser = new HDFSWriterStreamParser();
+
+        try {
+            parser.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("parsed a document past the end of the stream");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+}
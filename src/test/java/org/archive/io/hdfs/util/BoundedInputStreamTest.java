@@ -0,0 +1,99 @@
+package org.archive.io.hdfs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class BoundedInputStreamTest extends TestCase {
+
+    private static byte [] bytes(int length) {
+        byte [] b = new byte [length];
+        for (int i = 0; i < length; i++)
+            b[i] = (byte)i;
+        return b;
+    }
+
+    public void testReadStopsAtLimit() throws IOException {
+        ByteArrayInputStream under = new ByteArrayInputStream(bytes(10));
+        BoundedInputStream in = new BoundedInputStream(under, 4);
+
+        byte [] b = new byte [8];
+        assertEquals(4, in.read(b, 0, 8));
+        assertEquals(3, b[3]);
+        assertEquals(0, in.getRemaining());
+        assertEquals(-1, in.read(b, 0, 8));
+        assertEquals(-1, in.read());
+        assertEquals(6, under.available());
+    }
+
+    public void testSingleByteReads() throws IOException {
+        BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(bytes(10)), 2);
+
+        assertEquals(0, in.read());
+        assertEquals(1, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    public void testZeroLengthRead() throws IOException {
+        BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(bytes(10)), 0);
+        assertEquals(0, in.read(new byte [4], 0, 0));
+    }
+
+    public void testUnderlyingEndsEarly() throws IOException {
+        BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(bytes(3)), 5);
+        byte [] b = new byte [8];
+
+        assertEquals(3, in.read(b, 0, 8));
+        try {
+            in.read(b, 0, 8);
+            fail("read past the end of the underlying stream");
+        } catch (EOFException e) {
+            // expected
+        }
+        try {
+            in.read();
+            fail("read past the end of the underlying stream");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    public void testSkipRemaining() throws IOException {
+        ByteArrayInputStream under = new ByteArrayInputStream(bytes(10));
+        BoundedInputStream in = new BoundedInputStream(under, 7);
+
+        assertEquals(0, in.read());
+        assertEquals(2, in.skip(2));
+        in.skipRemaining();
+        assertEquals(0, in.getRemaining());
+        assertEquals(7, under.read());
+    }
+
+    public void testSkipBeyondLimit() throws IOException {
+        ByteArrayInputStream under = new ByteArrayInputStream(bytes(10));
+        BoundedInputStream in = new BoundedInputStream(under, 3);
+
+        assertEquals(3, in.skip(100));
+        assertEquals(0, in.skip(1));
+        assertEquals(0, in.skip(-1));
+        assertEquals(3, under.read());
+    }
+
+    public void testAvailable() throws IOException {
+        BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(bytes(10)), 4);
+        assertEquals(4, in.available());
+
+        in = new BoundedInputStream(new ByteArrayInputStream(bytes(2)), 4);
+        assertEquals(2, in.available());
+    }
+
+    public void testCloseLeavesUnderlyingOpen() throws IOException {
+        ByteArrayInputStream under = new ByteArrayInputStream(bytes(10));
+        BoundedInputStream in = new BoundedInputStream(under, 4);
+
+        in.close();
+        assertEquals(0, under.read());
+    }
+}
@@ -0,0 +1,99 @@
+package org.archive.io.hdfs.util;
+
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+public class ByteScanTest extends TestCase {
+
+    private static ByteScan.State state(String s) throws UnsupportedEncodingException {
+        return new ByteScan.State(s.getBytes("ISO-8859-1"));
+    }
+
+    public void testEqualsNeedsSameLength() throws UnsupportedEncodingException {
+        assertTrue(ByteScan.Equals(state("chunked"), "chunked".toCharArray()));
+        assertTrue(ByteScan.Equals(state("Chunked"), "chunked".toCharArray()));
+        assertFalse(ByteScan.Equals(state("chunked, gzip"), "chunked".toCharArray()));
+        assertFalse(ByteScan.Equals(state("gzip"), "chunked".toCharArray()));
+        assertFalse(ByteScan.Equals(state("chunkes"), "chunked".toCharArray()));
+    }
+
+    public void testEqualsCaseSensitive() throws UnsupportedEncodingException {
+        ByteScan.State bss = state("Chunked");
+        bss.caseSensitive(true);
+        assertFalse(ByteScan.Equals(bss, "chunked".toCharArray()));
+        assertTrue(ByteScan.Equals(bss, "Chunked".toCharArray()));
+    }
+
+    public void testEqualsIgnoreCase() throws UnsupportedEncodingException {
+        byte [] buf = "xxContent-TYPEyy".getBytes("ISO-8859-1");
+        assertTrue(ByteScan.EqualsIgnoreCase(buf, 2, 14, "content-type"));
+        assertFalse(ByteScan.EqualsIgnoreCase(buf, 2, 13, "content-type"));
+        assertFalse(ByteScan.EqualsIgnoreCase(buf, 2, 14, "content-typf"));
+        // only ASCII letters fold
+        assertFalse(ByteScan.EqualsIgnoreCase(new byte [] { (byte)0xc9 }, 0, 1, "\u00e9"));
+    }
+
+    public void testToLowerAscii() {
+        assertEquals('a', ByteScan.ToLowerAscii('A'));
+        assertEquals('z', ByteScan.ToLowerAscii('z'));
+        assertEquals('[', ByteScan.ToLowerAscii('['));
+        assertEquals(0xc9, ByteScan.ToLowerAscii(0xc9));
+    }
+
+    public void testStartsWithLeavesOffset() throws UnsupportedEncodingException {
+        ByteScan.State bss = state("HTTP/1.1 200 OK");
+        assertTrue(ByteScan.StartsWith(bss, "http/".toCharArray()));
+        assertEquals(0, bss.offset);
+        assertTrue(ByteScan.StartsWithSkip(bss, "http/".toCharArray()));
+        assertEquals(5, bss.offset);
+        assertFalse(ByteScan.StartsWithSkip(bss, "2.0".toCharArray()));
+        assertEquals(5, bss.offset);
+    }
+
+    public void testParseInt() throws UnsupportedEncodingException {
+        ByteScan.State bss = state("200 OK");
+        assertTrue(ByteScan.ParseInt(bss));
+        assertEquals(200, bss.ival);
+        assertEquals(3, bss.offset);
+
+        assertFalse(ByteScan.ParseInt(state("OK")));
+        assertFalse(ByteScan.ParseInt(state("99999999999")));
+    }
+
+    public void testWhitespace() throws UnsupportedEncodingException {
+        ByteScan.State bss = state("  a b");
+        assertTrue(ByteScan.SkipWhitespace(bss));
+        assertEquals(2, bss.offset);
+        assertTrue(ByteScan.SkipToWhitespace(bss));
+        assertEquals(3, bss.offset);
+        bss.offset = 4;
+        assertFalse(ByteScan.SkipToWhitespace(bss));
+        assertTrue(bss.eob());
+    }
+
+    public void testFind() throws UnsupportedEncodingException {
+        ByteScan.State bss = state("a: b\r\n\r\nbody");
+        assertTrue(ByteScan.Find(bss, ':'));
+        assertEquals(1, bss.offset);
+        assertTrue(ByteScan.FindSkip(bss, "\r\n\r\n".toCharArray()));
+        assertEquals(8, bss.offset);
+        assertFalse(ByteScan.Find(bss, "\r\n".toCharArray()));
+
+        bss = state("<META charset=utf-8>");
+        assertTrue(ByteScan.Find(bss, "meta".toCharArray()));
+        assertEquals(1, bss.offset);
+    }
+
+    public void testMarkAndFlip() throws UnsupportedEncodingException {
+        ByteScan.State bss = state("name=value");
+        bss.mark();
+        ByteScan.Find(bss, '=');
+        assertEquals("name", bss.toString());
+        bss.flip();
+        assertEquals(0, bss.offset);
+        assertEquals(4, bss.mark);
+        bss.reset();
+        assertEquals(4, bss.offset);
+    }
+}
@@ -0,0 +1,129 @@
+package org.archive.io.hdfs.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+import junit.framework.TestCase;
+
+public class CharsetDecodersTest extends TestCase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Decodes each byte to two chars while claiming at most one, and
+     * flushes a trailer, so both the decode and the flush overflow a
+     * buffer sized from maxCharsPerByte.
+     */
+    private static class Doubling extends Charset {
+
+        Doubling() {
+            super("X-TEST-DOUBLING", null);
+        }
+
+        public boolean contains(Charset cs) {
+            return false;
+        }
+
+        public CharsetEncoder newEncoder() {
+            throw new UnsupportedOperationException();
+        }
+
+        public CharsetDecoder newDecoder() {
+            return new CharsetDecoder(this, 1.0f, 1.0f) {
+                protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out) {
+                    while (in.hasRemaining()) {
+                        if (out.remaining() < 2)
+                            return CoderResult.OVERFLOW;
+                        char c = (char)(in.get() & 0xff);
+                        out.put(c);
+                        out.put(c);
+                    }
+                    return CoderResult.UNDERFLOW;
+                }
+
+                protected CoderResult implFlush(CharBuffer out) {
+                    if (out.remaining() < 3)
+                        return CoderResult.OVERFLOW;
+                    out.put("END");
+                    return CoderResult.UNDERFLOW;
+                }
+            };
+        }
+    }
+
+    public void testDecode() throws IOException {
+        byte [] buf = "xx caf\u00e9 xx".getBytes("UTF-8");
+        CharBuffer out = CharsetDecoders.decode(UTF8, buf, 3, buf.length - 6, null);
+        assertEquals("caf\u00e9", out.toString());
+    }
+
+    public void testReusesLargeEnoughBuffer() throws IOException {
+        CharBuffer buffer = CharBuffer.allocate(64);
+        buffer.put("stale contents");
+
+        byte [] buf = "fresh".getBytes("UTF-8");
+        CharBuffer out = CharsetDecoders.decode(UTF8, buf, 0, buf.length, buffer);
+        assertSame(buffer, out);
+        assertEquals("fresh", out.toString());
+    }
+
+    public void testReplacesSmallBuffer() throws IOException {
+        CharBuffer buffer = CharBuffer.allocate(2);
+        byte [] buf = "longer than two".getBytes("UTF-8");
+        CharBuffer out = CharsetDecoders.decode(UTF8, buf, 0, buf.length, buffer);
+        assertNotSame(buffer, out);
+        assertEquals("longer than two", out.toString());
+    }
+
+    public void testMalformedInputIsReplaced() {
+        byte [] buf = { 'a', (byte)0xff, 'b', (byte)0xe2, (byte)0x82 };
+        CharBuffer out = CharsetDecoders.decode(UTF8, buf, 0, buf.length, null);
+        assertEquals("a\ufffdb\ufffd", out.toString());
+    }
+
+    public void testDecodeOverflowGrows() {
+        byte [] buf = { 'a', 'b', 'c', 'd', 'e' };
+        CharBuffer out = CharsetDecoders.decode(new Doubling(), buf, 0, buf.length, null);
+        assertEquals("aabbccddeeEND", out.toString());
+    }
+
+    public void testFlushOverflowGrows() {
+        Charset doubling = new Doubling();
+        // room for the decoded chars but not for the flushed trailer
+        CharBuffer out = CharsetDecoders.decode(doubling, new byte [] { 'a' }, 0, 1, CharBuffer.allocate(2));
+        assertEquals("aaEND", out.toString());
+
+        out = CharsetDecoders.decode(doubling, new byte [0], 0, 0, null);
+        assertEquals("END", out.toString());
+    }
+
+    public void testDecoderReusedPerThread() {
+        CharsetDecoder decoder = CharsetDecoders.get(UTF8);
+        assertSame(decoder, CharsetDecoders.get(UTF8));
+        assertNotSame(decoder, CharsetDecoders.get(CharsetDecoders.FALLBACK));
+    }
+
+    public void testForName() {
+        assertEquals(UTF8, CharsetDecoders.forName("UTF-8"));
+        assertEquals(CharsetDecoders.FALLBACK, CharsetDecoders.forName("NO-SUCH-CHARSET"));
+        assertEquals(CharsetDecoders.FALLBACK, CharsetDecoders.forName(null));
+    }
+
+    public void testReader() throws IOException {
+        byte [] buf = "\u00fcber".getBytes("UTF-8");
+        Reader reader = CharsetDecoders.reader(UTF8, buf, 0, buf.length);
+
+        // decoding in between does not disturb the reader
+        assertEquals('\u00fc', reader.read());
+        CharsetDecoders.decode(UTF8, buf, 0, 2, null);
+        char [] rest = new char [8];
+        int n = reader.read(rest);
+        assertEquals("ber", new String(rest, 0, n));
+    }
+}
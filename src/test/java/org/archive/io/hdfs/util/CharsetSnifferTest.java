@@ -0,0 +1,106 @@
+package org.archive.io.hdfs.util;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+public class CharsetSnifferTest extends TestCase {
+
+    private final CharsetSniffer sniffer = new CharsetSniffer();
+
+    private boolean sniff(String body, String headerCharset) throws UnsupportedEncodingException {
+        byte [] buf = body.getBytes("ISO-8859-1");
+        return sniffer.sniff(buf, 0, buf.length, headerCharset);
+    }
+
+    public void testBOMWinsOverHeader() {
+        byte [] buf = { (byte)0xef, (byte)0xbb, (byte)0xbf, '<', 'p', '>' };
+        assertTrue(sniffer.sniff(buf, 0, buf.length, "ISO-8859-1"));
+        assertEquals(CharsetSniffer.Source.BOM, sniffer.getSource());
+        assertEquals("UTF-8", sniffer.getName());
+
+        buf = new byte [] { (byte)0xff, (byte)0xfe, '<', 0 };
+        assertTrue(sniffer.sniff(buf, 0, buf.length, null));
+        assertEquals("UTF-16LE", sniffer.getName());
+    }
+
+    public void testHeaderWinsOverMarkup() throws UnsupportedEncodingException {
+        assertTrue(sniff("<meta charset=\"shift_jis\">", "windows-1252"));
+        assertEquals(CharsetSniffer.Source.HEADER, sniffer.getSource());
+        assertEquals("windows-1252", sniffer.getName());
+    }
+
+    public void testMetaCharset() throws UnsupportedEncodingException {
+        assertTrue(sniff("<html><HEAD><META CharSet='utf8'></head>", null));
+        assertEquals(CharsetSniffer.Source.META, sniffer.getSource());
+        assertEquals("UTF-8", sniffer.getName());
+        assertEquals(Charset.forName("UTF-8"), sniffer.getCharset());
+    }
+
+    public void testMetaHttpEquiv() throws UnsupportedEncodingException {
+        assertTrue(sniff("<head><meta http-equiv=\"Content-Type\" " +
+                         "content=\"Text/HTML; charset=ISO8859-1\"></head>", null));
+        assertEquals(CharsetSniffer.Source.META, sniffer.getSource());
+        assertEquals("ISO-8859-1", sniffer.getName());
+        assertEquals("text/html", sniffer.getContentType());
+    }
+
+    public void testMetaWithoutCharset() throws UnsupportedEncodingException {
+        assertFalse(sniff("<meta name=\"description\" content=\"charset=utf-8\"><p>", null));
+        assertEquals(CharsetSniffer.Source.NONE, sniffer.getSource());
+        assertNull(sniffer.getName());
+        assertNull(sniffer.getCharset());
+    }
+
+    public void testXmlDeclaration() throws UnsupportedEncodingException {
+        assertTrue(sniff("<?xml version=\"1.0\" encoding=\"euc-jp\"?><rss/>", null));
+        assertEquals(CharsetSniffer.Source.XML, sniffer.getSource());
+        assertEquals("EUC-JP", sniffer.getName());
+    }
+
+    public void testStopsAtBody() throws UnsupportedEncodingException {
+        assertFalse(sniff("<head></head><body><meta charset=utf-8>", null));
+        assertFalse(sniff("<BODY><meta charset=utf-8>", null));
+    }
+
+    public void testStopsAtWindow() throws UnsupportedEncodingException {
+        StringBuilder body = new StringBuilder("<head>");
+        while (body.length() < 100)
+            body.append("<!-- padding -->");
+        body.append("<meta charset=utf-8>");
+
+        sniffer.setWindow(100);
+        assertFalse(sniff(body.toString(), null));
+        sniffer.setWindow(CharsetSniffer.DEFAULT_WINDOW);
+        assertTrue(sniff(body.toString(), null));
+    }
+
+    public void testResetsBetweenSniffs() throws UnsupportedEncodingException {
+        assertTrue(sniff("<meta charset=utf-8>", null));
+        assertFalse(sniff("<p>no declaration</p>", null));
+        assertEquals(CharsetSniffer.Source.NONE, sniffer.getSource());
+        assertNull(sniffer.getName());
+    }
+
+    public void testCleanName() throws UnsupportedEncodingException {
+        byte [] buf = " \"utf-8\"; foo".getBytes("ISO-8859-1");
+        assertEquals("UTF-8", CharsetSniffer.cleanName(buf, 0, buf.length));
+        buf = "\"\"".getBytes("ISO-8859-1");
+        assertNull(CharsetSniffer.cleanName(buf, 0, buf.length));
+    }
+
+    public void testNormalize() {
+        assertEquals("ISO-8859-1", CharsetSniffer.normalize("LATIN8859-1"));
+        assertEquals("ISO-8859-1", CharsetSniffer.normalize("ISO-8859-1"));
+        assertEquals("UTF-8", CharsetSniffer.normalize("UTF8"));
+        assertEquals("WINDOWS-1252", CharsetSniffer.normalize("WINDOWS-1252"));
+    }
+
+    public void testForName() {
+        assertEquals(Charset.forName("UTF-8"), CharsetSniffer.forName("UTF-8"));
+        assertNull(CharsetSniffer.forName("NO-SUCH-CHARSET"));
+        assertNull(CharsetSniffer.forName("bad name!"));
+        assertNull(CharsetSniffer.forName(null));
+    }
+}
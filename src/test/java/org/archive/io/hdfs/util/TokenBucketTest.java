@@ -0,0 +1,45 @@
+package org.archive.io.hdfs.util;
+
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase {
+
+    public void testNoLimit() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0);
+        assertEquals(0, bucket.acquire(1L << 40));
+        assertEquals(0, bucket.getThrottleCount());
+        assertEquals(0, bucket.getThrottledNanos());
+    }
+
+    public void testBurstWithinOneSecond() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000000);
+        assertEquals(0, bucket.acquire(600000));
+        assertEquals(0, bucket.acquire(400000));
+        assertEquals(0, bucket.getThrottleCount());
+    }
+
+    public void testOverdrawWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100000);
+        bucket.acquire(100000);
+
+        long begin = System.nanoTime();
+        long waited = bucket.acquire(10000);
+        long elapsed = System.nanoTime() - begin;
+
+        // 10000 bytes at 100000 bytes/s, less what refilled in between
+        assertTrue("waited " + waited, waited > 50000000L && waited <= 100000000L);
+        assertTrue("slept " + elapsed, elapsed >= waited);
+        assertEquals(1, bucket.getThrottleCount());
+        assertEquals(waited, bucket.getThrottledNanos());
+    }
+
+    public void testRateChange() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.acquire(1000);
+
+        bucket.setBytesPerSecond(0);
+        assertEquals(0, bucket.getBytesPerSecond());
+        assertEquals(0, bucket.acquire(1000000));
+        assertEquals(0, bucket.getThrottleCount());
+    }
+}